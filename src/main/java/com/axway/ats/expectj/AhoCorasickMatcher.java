@@ -0,0 +1,337 @@
+package com.axway.ats.expectj;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Looks for several case-insensitive plain texts in a single pass, using an
+ * Aho-Corasick automaton.
+ * <p>
+ * The automaton is fed incrementally: its state is kept between the calls to
+ * {@link #find(CharSequence, long)}, so each character of output is looked at
+ * only once, however many patterns there are. The same goes for
+ * {@link #findAll(CharSequence, long, long[])}, which finds every pattern
+ * rather than the first one.
+ */
+class AhoCorasickMatcher extends MultiMatcher {
+    /**
+     * Marks states where no pattern ends.
+     */
+    private static final int   NONE      = Integer.MAX_VALUE;
+
+    /**
+     * The texts we look for.
+     */
+    private final List<String> patterns;
+
+    /**
+     * The characters leading out of each state, sorted.
+     */
+    private final char[][]     edgeChars;
+
+    /**
+     * The states the characters in {@link #edgeChars} lead to.
+     */
+    private final int[][]      edgeTargets;
+
+    /**
+     * Where to continue when a state has no edge for a character.
+     */
+    private final int[]        failure;
+
+    /**
+     * How many characters lead from the root to each state.
+     */
+    private final int[]        depth;
+
+    /**
+     * The lowest index of the patterns ending in each state, including the
+     * ones reachable through failure links, or {@link #NONE}.
+     */
+    private final int[]        lowestOutput;
+
+    /**
+     * The indexes of all the patterns ending in each state, including the
+     * ones reachable through failure links.
+     */
+    private final int[][]      allOutputs;
+
+    /**
+     * The state of the automaton after the last character fed.
+     */
+    private int                state;
+
+    /**
+     * Absolute stream offset of the next character to feed.
+     */
+    private long               nextOffset;
+
+    /**
+     * The lowest index of the patterns found so far, or {@link #NONE}.
+     */
+    private int                foundIndex = NONE;
+
+    /**
+     * Absolute stream offset where the first occurrence of the found pattern ends.
+     */
+    private long               foundEnd;
+
+    /**
+     * Where the last match ends, relative to the text searched.
+     */
+    private int                end;
+
+    /**
+     * @param patterns the texts to look for
+     */
+    AhoCorasickMatcher( List<String> patterns ) {
+
+        this.patterns = patterns;
+
+        // build the trie
+        List<StringBuilder> chars = new ArrayList<StringBuilder>();
+        List<List<Integer>> targets = new ArrayList<List<Integer>>();
+        List<Integer> outputs = new ArrayList<Integer>();
+        List<List<Integer>> stateOutputs = new ArrayList<List<Integer>>();
+        List<Integer> depths = new ArrayList<Integer>();
+        chars.add( new StringBuilder() );
+        depths.add( 0 );
+        targets.add( new ArrayList<Integer>() );
+        outputs.add( NONE );
+        stateOutputs.add( new ArrayList<Integer>() );
+        for( int index = 0; index < patterns.size(); index++ ) {
+            String pattern = patterns.get( index );
+            int current = 0;
+            for( int i = 0; i < pattern.length(); i++ ) {
+                char c = LiteralMatcher.fold( pattern.charAt( i ) );
+                int edge = chars.get( current ).indexOf( String.valueOf( c ) );
+                if( edge == -1 ) {
+                    chars.get( current ).append( c );
+                    targets.get( current ).add( chars.size() );
+                    current = chars.size();
+                    chars.add( new StringBuilder() );
+                    targets.add( new ArrayList<Integer>() );
+                    outputs.add( NONE );
+                    stateOutputs.add( new ArrayList<Integer>() );
+                    depths.add( i + 1 );
+                } else {
+                    current = targets.get( current ).get( edge );
+                }
+            }
+            outputs.set( current, Math.min( outputs.get( current ), index ) );
+            stateOutputs.get( current ).add( index );
+        }
+
+        // sort the edges so we can binary search them
+        int states = chars.size();
+        edgeChars = new char[states][];
+        edgeTargets = new int[states][];
+        lowestOutput = new int[states];
+        depth = toArray( depths );
+        for( int s = 0; s < states; s++ ) {
+            char[] stateChars = chars.get( s ).toString().toCharArray();
+            long[] sorted = new long[stateChars.length];
+            for( int i = 0; i < stateChars.length; i++ ) {
+                sorted[i] = ( ( long ) stateChars[i] << 32 ) | targets.get( s ).get( i );
+            }
+            Arrays.sort( sorted );
+            edgeChars[s] = new char[sorted.length];
+            edgeTargets[s] = new int[sorted.length];
+            for( int i = 0; i < sorted.length; i++ ) {
+                edgeChars[s][i] = ( char ) ( sorted[i] >>> 32 );
+                edgeTargets[s][i] = ( int ) sorted[i];
+            }
+            lowestOutput[s] = outputs.get( s );
+        }
+
+        // breadth first, set the failure links and merge the outputs
+        failure = new int[states];
+        allOutputs = new int[states][];
+        allOutputs[0] = toArray( stateOutputs.get( 0 ) );
+        ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+        for( int child : edgeTargets[0] ) {
+            failure[child] = 0;
+            queue.add( child );
+        }
+        while( !queue.isEmpty() ) {
+            int s = queue.removeFirst();
+            lowestOutput[s] = Math.min( lowestOutput[s], lowestOutput[failure[s]] );
+            List<Integer> all = stateOutputs.get( s );
+            for( int index : allOutputs[failure[s]] ) {
+                all.add( index );
+            }
+            allOutputs[s] = toArray( all );
+            for( int i = 0; i < edgeChars[s].length; i++ ) {
+                int child = edgeTargets[s][i];
+                failure[child] = next( failure[s], edgeChars[s][i] );
+                queue.add( child );
+            }
+        }
+    }
+
+    /**
+     * @return the list as an array
+     */
+    private static int[] toArray(
+                                  List<Integer> list ) {
+
+        int[] array = new int[list.size()];
+        for( int i = 0; i < array.length; i++ ) {
+            array[i] = list.get( i );
+        }
+        return array;
+    }
+
+    /**
+     * @param from a state
+     * @param c a case folded character
+     * @return the state reached from the given one by the character
+     */
+    private int next(
+                      int from,
+                      char c ) {
+
+        int s = from;
+        while( true ) {
+            int edge = Arrays.binarySearch( edgeChars[s], c );
+            if( edge >= 0 ) {
+                return edgeTargets[s][edge];
+            }
+            if( s == 0 ) {
+                return 0;
+            }
+            s = failure[s];
+        }
+    }
+
+    /**
+     * Get ready to feed the characters following the ones already fed.
+     *
+     * @param textOffset the position of the first character of the text in
+     * the whole output of the spawn
+     * @return true if the automaton starts over
+     */
+    private boolean resume(
+                            long textOffset ) {
+
+        if( nextOffset <= textOffset ) {
+            // first call, or everything we saw was consumed in between
+            state = 0;
+            nextOffset = textOffset;
+            return true;
+        }
+        // part of what we saw may have been dropped, a partial match must
+        // not start before the text
+        int kept = ( int ) ( nextOffset - textOffset );
+        while( depth[state] > kept ) {
+            state = failure[state];
+        }
+        return false;
+    }
+
+    @Override
+    int find(
+              CharSequence text,
+              long textOffset ) {
+
+        if( resume( textOffset ) ) {
+            foundIndex = NONE;
+            if( lowestOutput[0] != NONE ) {
+                // an empty pattern matches right away
+                foundIndex = lowestOutput[0];
+                foundEnd = textOffset;
+            }
+        }
+
+        int textLength = text.length();
+        for( int i = ( int ) ( nextOffset - textOffset ); i < textLength && foundIndex != 0; i++ ) {
+            state = next( state, LiteralMatcher.fold( text.charAt( i ) ) );
+            if( lowestOutput[state] < foundIndex ) {
+                foundIndex = lowestOutput[state];
+                foundEnd = textOffset + i + 1;
+            }
+            nextOffset = textOffset + i + 1;
+        }
+
+        if( foundIndex == NONE ) {
+            return -1;
+        }
+        end = ( int ) ( foundEnd - textOffset );
+        return foundIndex;
+    }
+
+    /**
+     * Look for all the patterns, feeding the automaton the characters it did
+     * not see yet.
+     *
+     * @param text the text received from the spawn and not consumed yet
+     * @param textOffset the position of the first character of the text in
+     * the whole output of the spawn
+     * @param ends the absolute stream offset where the first occurrence of
+     * each pattern ends, -1 for the patterns not found yet. Updated with the
+     * patterns found by this call
+     * @return how many patterns this call found
+     */
+    int findAll(
+                 CharSequence text,
+                 long textOffset,
+                 long[] ends ) {
+
+        int count = 0;
+        if( resume( textOffset ) ) {
+            count += record( allOutputs[0], textOffset, ends );
+        }
+
+        int textLength = text.length();
+        for( int i = ( int ) ( nextOffset - textOffset ); i < textLength; i++ ) {
+            state = next( state, LiteralMatcher.fold( text.charAt( i ) ) );
+            if( allOutputs[state].length > 0 ) {
+                count += record( allOutputs[state], textOffset + i + 1, ends );
+            }
+        }
+        nextOffset = textOffset + textLength;
+        return count;
+    }
+
+    private static int record(
+                               int[] indexes,
+                               long end,
+                               long[] ends ) {
+
+        int count = 0;
+        for( int index : indexes ) {
+            if( ends[index] == -1 ) {
+                ends[index] = end;
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    int start() {
+
+        return end - patterns.get( foundIndex ).length();
+    }
+
+    @Override
+    int end() {
+
+        return end;
+    }
+
+    @Override
+    int size() {
+
+        return patterns.size();
+    }
+
+    @Override
+    String getPattern(
+                       int index ) {
+
+        return patterns.get( index );
+    }
+}
@@ -0,0 +1,207 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The event loop running the operations of all {@link AsyncSpawn}s.
+ * <p>
+ * One thread runs the tasks submitted by the spawns, and selects on the pipes
+ * of the spawns with pending expects. Spawns whose output is delivered
+ * directly submit a task when output arrives instead. Writing to a spawn's
+ * stdin may block, so sends run on a separate pool.
+ */
+final class AsyncLoop implements Runnable {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger   LOG      = Logger.getLogger( AsyncLoop.class );
+
+    /**
+     * The only instance, started on first use.
+     */
+    private static AsyncLoop      instance;
+
+    /**
+     * Waits for output on the pipes of all spawns.
+     */
+    private final Selector        selector;
+
+    /**
+     * Tasks to run on the loop thread.
+     */
+    private final Queue<Runnable> tasks    = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Runs the blocking writes to the spawns' stdin.
+     */
+    private final ExecutorService sendPool;
+
+    /**
+     * The loop thread.
+     */
+    private final Thread          thread;
+
+    private AsyncLoop() throws IOException {
+
+        selector = Selector.open();
+        sendPool = new ThreadPoolExecutor( 0,
+                                           Integer.MAX_VALUE,
+                                           10,
+                                           TimeUnit.SECONDS,
+                                           new SynchronousQueue<Runnable>(),
+                                           SpawnThreads.newThreadFactory( "ExpectJ Async Send" ) );
+        thread = SpawnThreads.newThread( this, "ExpectJ Async Loop", true );
+        thread.start();
+    }
+
+    /**
+     * @return the loop shared by all asynchronous spawns
+     * @throws IOException if the selector can't be opened
+     */
+    static synchronized AsyncLoop getInstance() throws IOException {
+
+        if( instance == null ) {
+            instance = new AsyncLoop();
+        }
+        return instance;
+    }
+
+    /**
+     * Run a task on the loop thread.
+     *
+     * @param task the task
+     */
+    void execute(
+                  Runnable task ) {
+
+        tasks.add( task );
+        selector.wakeup();
+    }
+
+    /**
+     * Run a task that may block, out of the loop thread.
+     *
+     * @param task the task
+     */
+    void executeBlocking(
+                          Runnable task ) {
+
+        sendPool.execute( task );
+    }
+
+    /**
+     * Start or stop waiting for output of a spawn, must be called from the
+     * loop thread.
+     *
+     * @param spawn the spawn, told when there is output
+     * @param stderr whether to wait for the spawn's stderr
+     * @param wanted true to wait for output, false to stop waiting
+     */
+    void setReadInterest(
+                          final AsyncSpawn spawn,
+                          boolean stderr,
+                          boolean wanted ) {
+
+        final SpawnOutput output = spawn.getSpawn().getOutput( stderr );
+        if( output == null ) {
+            return;
+        }
+        final Runnable onReadable = new Runnable() {
+            public void run() {
+
+                spawn.onReadable( output );
+            }
+        };
+
+        if( output instanceof DirectOutput ) {
+            Runnable listener = null;
+            if( wanted ) {
+                listener = new Runnable() {
+                    public void run() {
+
+                        execute( onReadable );
+                    }
+                };
+            }
+            ( ( DirectOutput ) output ).setListener( listener );
+            return;
+        }
+
+        Pipe.SourceChannel channel = ( ( PipeOutput ) output ).getChannel();
+        if( !channel.isOpen() ) {
+            return;
+        }
+        SelectionKey key = channel.keyFor( selector );
+        try {
+            if( key == null ) {
+                if( wanted ) {
+                    channel.register( selector, SelectionKey.OP_READ, onReadable );
+                }
+            } else if( key.isValid() ) {
+                key.interestOps( wanted
+                                        ? SelectionKey.OP_READ
+                                        : 0 );
+            }
+        } catch( IOException e ) {
+            LOG.error( "Failed waiting for output of " + spawn.getSpawn(), e );
+        } catch( CancelledKeyException e ) {
+            // the spawn was closed, nothing to wait for
+        }
+    }
+
+    public void run() {
+
+        while( true ) {
+            // only the tasks queued before this pass: a read queues its task
+            // again when output is left, and a spawn that keeps printing
+            // must not keep the pipes waiting
+            Runnable task;
+            for( int queued = tasks.size(); queued > 0 && ( task = tasks.poll() ) != null; queued-- ) {
+                try {
+                    task.run();
+                } catch( RuntimeException e ) {
+                    LOG.error( "Asynchronous spawn task failed", e );
+                }
+            }
+
+            try {
+                if( tasks.isEmpty() ) {
+                    selector.select();
+                } else {
+                    selector.selectNow();
+                }
+            } catch( IOException e ) {
+                LOG.error( "Failed waiting for spawn output", e );
+                continue;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while( it.hasNext() ) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if( key.isValid() && key.isReadable() ) {
+                        ( ( Runnable ) key.attachment() ).run();
+                    }
+                } catch( CancelledKeyException e ) {
+                    // the spawn was closed meanwhile
+                } catch( RuntimeException e ) {
+                    LOG.error( "Asynchronous spawn task failed", e );
+                }
+            }
+        }
+    }
+}
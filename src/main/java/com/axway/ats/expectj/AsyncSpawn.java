@@ -0,0 +1,739 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
+
+/**
+ * Non-blocking facade of a {@link Spawn}, obtained with {@link Spawn#async()}.
+ * <p>
+ * Each method queues an operation and returns a future at once. The
+ * operations of a spawn run one after the other, in the order they were
+ * queued, so an expect queued after a send only sees the output that follows
+ * the send. They are run by the library's own threads: one event loop
+ * waits for the output of all asynchronous spawns, so a few threads can
+ * drive any number of sessions.
+ * <p>
+ * Timeouts are given in seconds, -1 meaning no timeout, like for the
+ * blocking methods. A timed out expect completes with a
+ * {@link TimeoutException}, an expect reaching the end of the output with an
+ * {@link IOException}. Cancelling a future cancels its operation, and the
+ * next one starts.
+ */
+public class AsyncSpawn {
+    /**
+     * The spawn we drive.
+     */
+    private final Spawn               spawn;
+
+    /**
+     * Operations waiting for their turn. Guarded by this.
+     */
+    private final Queue<Operation<?>> queue = new ArrayDeque<Operation<?>>();
+
+    /**
+     * The operation being run, or null. Guarded by this.
+     */
+    private Operation<?>              current;
+
+    /**
+     * The loop running our operations, set when the first one is queued.
+     */
+    private volatile AsyncLoop        loop;
+
+    /**
+     * @param spawn the spawn to drive
+     */
+    AsyncSpawn( Spawn spawn ) {
+
+        this.spawn = spawn;
+    }
+
+    /**
+     * @return the spawn we drive
+     */
+    public Spawn getSpawn() {
+
+        return spawn;
+    }
+
+    /**
+     * Wait for a pattern to appear on standard out.
+     *
+     * @param pattern The case-insensitive substring or regular expression to match against.
+     * @param isRegex whether the pattern is a regular expression or plain text.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match
+     * @see Spawn#expect(String, boolean, long)
+     */
+    public CompletableFuture<MatchResult> expect(
+                                                  String pattern,
+                                                  boolean isRegex,
+                                                  long timeOutSeconds ) {
+
+        return expect( single( spawn.newMatcher( pattern, isRegex ) ), false, timeOutSeconds );
+    }
+
+    /**
+     * Wait the default timeout for a pattern to appear on standard out.
+     *
+     * @param pattern The case-insensitive substring or regular expression to match against.
+     * @param isRegex whether the pattern is a regular expression or plain text.
+     * @return the future match
+     */
+    public CompletableFuture<MatchResult> expect(
+                                                  String pattern,
+                                                  boolean isRegex ) {
+
+        return expect( pattern, isRegex, spawn.getDefaultTimeOutSeconds() );
+    }
+
+    /**
+     * Wait for a precompiled regular expression to appear on standard out.
+     *
+     * @param pattern The regular expression to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match
+     */
+    public CompletableFuture<MatchResult> expect(
+                                                  Pattern pattern,
+                                                  long timeOutSeconds ) {
+
+        return expect( single( spawn.newMatcher( pattern ) ), false, timeOutSeconds );
+    }
+
+    /**
+     * Wait for a pattern to appear on standard error.
+     *
+     * @param pattern The case-insensitive substring or regular expression to match against.
+     * @param isRegex whether the pattern is a regular expression or plain text.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match
+     */
+    public CompletableFuture<MatchResult> expectErr(
+                                                     String pattern,
+                                                     boolean isRegex,
+                                                     long timeOutSeconds ) {
+
+        return expect( single( spawn.newMatcher( pattern, isRegex ) ), true, timeOutSeconds );
+    }
+
+    /**
+     * Wait for a precompiled regular expression to appear on standard error.
+     *
+     * @param pattern The regular expression to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match
+     */
+    public CompletableFuture<MatchResult> expectErr(
+                                                     Pattern pattern,
+                                                     long timeOutSeconds ) {
+
+        return expect( single( spawn.newMatcher( pattern ) ), true, timeOutSeconds );
+    }
+
+    /**
+     * Wait for any of the given patterns to appear on standard out.
+     *
+     * @param patterns The patterns to match against.
+     * @param isRegex whether the patterns are regular expressions or plain text.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match, telling which pattern matched
+     * @see Spawn#expectAny(List, boolean, long)
+     */
+    public CompletableFuture<MatchResult> expectAny(
+                                                     List<String> patterns,
+                                                     boolean isRegex,
+                                                     long timeOutSeconds ) {
+
+        return expect( spawn.newMultiMatcher( patterns, isRegex ), false, timeOutSeconds );
+    }
+
+    /**
+     * Wait for any of the given precompiled regular expressions to appear on
+     * standard out.
+     *
+     * @param patterns The regular expressions to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match, telling which pattern matched
+     */
+    public CompletableFuture<MatchResult> expectAny(
+                                                     List<Pattern> patterns,
+                                                     long timeOutSeconds ) {
+
+        return expect( spawn.newMultiMatcher( patterns ), false, timeOutSeconds );
+    }
+
+    /**
+     * Wait for any of the given patterns to appear on standard error.
+     *
+     * @param patterns The patterns to match against.
+     * @param isRegex whether the patterns are regular expressions or plain text.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match, telling which pattern matched
+     */
+    public CompletableFuture<MatchResult> expectErrAny(
+                                                        List<String> patterns,
+                                                        boolean isRegex,
+                                                        long timeOutSeconds ) {
+
+        return expect( spawn.newMultiMatcher( patterns, isRegex ), true, timeOutSeconds );
+    }
+
+    /**
+     * Wait for any of the given precompiled regular expressions to appear on
+     * standard error.
+     *
+     * @param patterns The regular expressions to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future match, telling which pattern matched
+     */
+    public CompletableFuture<MatchResult> expectErrAny(
+                                                        List<Pattern> patterns,
+                                                        long timeOutSeconds ) {
+
+        return expect( spawn.newMultiMatcher( patterns ), true, timeOutSeconds );
+    }
+
+    /**
+     * Wait for all of the given patterns to appear on standard out, in the
+     * given order.
+     *
+     * @param patterns The patterns to match against.
+     * @param isRegex whether the patterns are regular expressions or plain text.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future matches, one per pattern
+     * @see Spawn#expectAll(List, boolean, long)
+     */
+    public CompletableFuture<List<MatchResult>> expectAll(
+                                                           List<String> patterns,
+                                                           boolean isRegex,
+                                                           long timeOutSeconds ) {
+
+        return expectInOrder( toSteps( patterns, isRegex ), false, timeOutSeconds );
+    }
+
+    /**
+     * Wait for all of the given precompiled regular expressions to appear on
+     * standard out, in the given order.
+     *
+     * @param patterns The regular expressions to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future matches, one per pattern
+     */
+    public CompletableFuture<List<MatchResult>> expectAll(
+                                                           List<Pattern> patterns,
+                                                           long timeOutSeconds ) {
+
+        return expectInOrder( toSteps( patterns ), false, timeOutSeconds );
+    }
+
+    /**
+     * Wait for all of the given patterns to appear on standard error, in the
+     * given order.
+     *
+     * @param patterns The patterns to match against.
+     * @param isRegex whether the patterns are regular expressions or plain text.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future matches, one per pattern
+     */
+    public CompletableFuture<List<MatchResult>> expectErrAll(
+                                                              List<String> patterns,
+                                                              boolean isRegex,
+                                                              long timeOutSeconds ) {
+
+        return expectInOrder( toSteps( patterns, isRegex ), true, timeOutSeconds );
+    }
+
+    /**
+     * Wait for all of the given precompiled regular expressions to appear on
+     * standard error, in the given order.
+     *
+     * @param patterns The regular expressions to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the future matches, one per pattern
+     */
+    public CompletableFuture<List<MatchResult>> expectErrAll(
+                                                              List<Pattern> patterns,
+                                                              long timeOutSeconds ) {
+
+        return expectInOrder( toSteps( patterns ), true, timeOutSeconds );
+    }
+
+    /**
+     * Wait for the spawn to finish.
+     *
+     * @param timeOutSeconds The number of seconds to wait before giving up, or
+     * -1 to wait forever.
+     * @return a future completed when the spawn is closed
+     * @see Spawn#expectClose(long)
+     */
+    public CompletableFuture<Void> expectClose(
+                                                long timeOutSeconds ) {
+
+        CloseOperation operation = new CloseOperation( timeOutSeconds );
+        enqueue( operation );
+        return operation.future;
+    }
+
+    /**
+     * Wait the default timeout for the spawn to finish.
+     *
+     * @return a future completed when the spawn is closed
+     */
+    public CompletableFuture<Void> expectClose() {
+
+        return expectClose( spawn.getDefaultTimeOutSeconds() );
+    }
+
+    /**
+     * Write a string to the standard input of the spawn.
+     *
+     * @param string The string to send.
+     * @return a future completed once the string is written
+     * @see Spawn#send(String)
+     */
+    public CompletableFuture<Void> send(
+                                         String string ) {
+
+        SendOperation operation = new SendOperation( string );
+        enqueue( operation );
+        return operation.future;
+    }
+
+    private static MultiMatcher single(
+                                        BufferMatcher matcher ) {
+
+        return new SequentialMultiMatcher( Collections.singletonList( matcher ) );
+    }
+
+    private List<MultiMatcher> toSteps(
+                                        List<String> patterns,
+                                        boolean isRegex ) {
+
+        List<MultiMatcher> steps = new ArrayList<MultiMatcher>( patterns.size() );
+        for( String pattern : patterns ) {
+            steps.add( single( spawn.newMatcher( pattern, isRegex ) ) );
+        }
+        return steps;
+    }
+
+    private List<MultiMatcher> toSteps(
+                                        List<Pattern> patterns ) {
+
+        List<MultiMatcher> steps = new ArrayList<MultiMatcher>( patterns.size() );
+        for( Pattern pattern : patterns ) {
+            steps.add( single( spawn.newMatcher( pattern ) ) );
+        }
+        return steps;
+    }
+
+    private CompletableFuture<MatchResult> expect(
+                                                   MultiMatcher matcher,
+                                                   boolean stderr,
+                                                   long timeOutSeconds ) {
+
+        ExpectOperation operation = new ExpectOperation( matcher, stderr, timeOutSeconds );
+        return enqueueRead( operation );
+    }
+
+    private CompletableFuture<List<MatchResult>> expectInOrder(
+                                                                List<MultiMatcher> steps,
+                                                                boolean stderr,
+                                                                long timeOutSeconds ) {
+
+        AllOperation operation = new AllOperation( steps, stderr, timeOutSeconds );
+        return enqueueRead( operation );
+    }
+
+    private <T> CompletableFuture<T> enqueueRead(
+                                                  ReadOperation<T> operation ) {
+
+        if( operation.stderr && spawn.getOutput( true ) == null ) {
+            operation.future.completeExceptionally( new IOException( "The spawn has no stderr" ) );
+            return operation.future;
+        }
+        enqueue( operation );
+        return operation.future;
+    }
+
+    private void enqueue(
+                          final Operation<?> operation ) {
+
+        if( operation.timeOutSeconds < -1 ) {
+            throw new IllegalArgumentException( "Timeout must be >= -1, was " + operation.timeOutSeconds );
+        }
+
+        final AsyncLoop loop;
+        try {
+            loop = AsyncLoop.getInstance();
+        } catch( IOException e ) {
+            operation.future.completeExceptionally( e );
+            return;
+        }
+        this.loop = loop;
+
+        // whatever ends the operation, match, failure, timeout or
+        // cancellation, the next one can start
+        operation.future.whenComplete( new BiConsumer<Object, Throwable>() {
+            public void accept(
+                                Object result,
+                                Throwable failure ) {
+
+                loop.execute( new Runnable() {
+                    public void run() {
+
+                        finished( operation );
+                    }
+                } );
+            }
+        } );
+
+        synchronized( this ) {
+            queue.add( operation );
+        }
+        loop.execute( new Runnable() {
+            public void run() {
+
+                startNext();
+            }
+        } );
+    }
+
+    /**
+     * Start the next operation if none is running. Runs on the loop thread.
+     */
+    private void startNext() {
+
+        Operation<?> next;
+        synchronized( this ) {
+            if( current != null ) {
+                return;
+            }
+            do {
+                next = queue.poll();
+            } while( next != null && next.future.isDone() );
+            current = next;
+        }
+        if( next != null ) {
+            next.start();
+        }
+    }
+
+    /**
+     * Clean up after an operation. Runs on the loop thread.
+     */
+    private void finished(
+                           Operation<?> operation ) {
+
+        operation.stop();
+        synchronized( this ) {
+            if( current != operation ) {
+                return;
+            }
+            current = null;
+        }
+        startNext();
+    }
+
+    /**
+     * Output arrived on one of our outputs. Runs on the loop thread.
+     *
+     * @param output the output with data
+     */
+    void onReadable(
+                     SpawnOutput output ) {
+
+        Operation<?> operation;
+        synchronized( this ) {
+            operation = current;
+        }
+        if( operation instanceof ReadOperation
+            && ( ( ReadOperation<?> ) operation ).output() == output ) {
+            ( ( ReadOperation<?> ) operation ).onReadable();
+        } else {
+            // nobody is interested, stop waiting for this output
+            loop.setReadInterest( this, output == spawn.getOutput( true ), false );
+        }
+    }
+
+    /**
+     * A queued operation.
+     */
+    private abstract class Operation<T> {
+
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        final long                 timeOutSeconds;
+
+        /**
+         * Our entry in the timer wheel, if we have a timeout.
+         */
+        private TimerWheel.Timeout timeout;
+
+        Operation( long timeOutSeconds ) {
+
+            this.timeOutSeconds = timeOutSeconds;
+        }
+
+        /**
+         * Our turn has come. Runs on the loop thread.
+         */
+        void start() {
+
+            if( timeOutSeconds > 0 ) {
+                timeout = TimerWheel.getInstance().schedule( timeOutSeconds * 1000, new Runnable() {
+                    public void run() {
+
+                        future.completeExceptionally( new TimeoutException( timeoutMessage() ) );
+                    }
+                } );
+            }
+            run();
+        }
+
+        /**
+         * Stop whatever the operation was doing. Runs on the loop thread.
+         */
+        void stop() {
+
+            if( timeout != null ) {
+                timeout.cancel();
+            }
+        }
+
+        /**
+         * Do the work of the operation.
+         */
+        abstract void run();
+
+        /**
+         * @return the message of the timeout exception
+         */
+        abstract String timeoutMessage();
+    }
+
+    /**
+     * An operation matching the output as it arrives.
+     */
+    private abstract class ReadOperation<T> extends Operation<T> {
+
+        final boolean stderr;
+
+        ReadOperation( boolean stderr,
+                       long timeOutSeconds ) {
+
+            super( timeOutSeconds );
+            this.stderr = stderr;
+        }
+
+        SpawnOutput output() {
+
+            return spawn.getOutput( stderr );
+        }
+
+        @Override
+        void run() {
+
+            // the pattern may be in what was already read
+            if( !match() ) {
+                loop.setReadInterest( AsyncSpawn.this, stderr, true );
+            }
+        }
+
+        void onReadable() {
+
+            if( future.isDone() ) {
+                return;
+            }
+            try {
+                int nRead;
+                try {
+                    nRead = spawn.readIntoInternalBuffer( spawn.getOutput( stderr ) );
+                } finally {
+                    spawn.releaseReadBuffer();
+                }
+                if( nRead == -1 ) {
+                    future.completeExceptionally( new IOException( "End of stream reached, no match found" ) );
+                    return;
+                }
+                if( !match() ) {
+                    spawn.applyMatchMax();
+                }
+            } catch( IOException e ) {
+                future.completeExceptionally( e );
+            }
+        }
+
+        /**
+         * Look for what we expect in what was read, completing the future
+         * when found.
+         *
+         * @return true if the operation is complete
+         */
+        abstract boolean match();
+
+        @Override
+        void stop() {
+
+            super.stop();
+            loop.setReadInterest( AsyncSpawn.this, stderr, false );
+        }
+    }
+
+    private class ExpectOperation extends ReadOperation<MatchResult> {
+
+        private final MultiMatcher matcher;
+
+        ExpectOperation( MultiMatcher matcher,
+                         boolean stderr,
+                         long timeOutSeconds ) {
+
+            super( stderr, timeOutSeconds );
+            this.matcher = matcher;
+        }
+
+        @Override
+        boolean match() {
+
+            if( future.isDone() ) {
+                return true;
+            }
+            MatchResult result = spawn.matchInInternalBuffer( matcher );
+            if( result != null ) {
+                future.complete( result );
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        String timeoutMessage() {
+
+            StringBuilder msg = new StringBuilder( "Timeout trying to match" );
+            for( int i = 0; i < matcher.size(); i++ ) {
+                msg.append( " '" + matcher.getPattern( i ) + "'" );
+            }
+            return msg.toString();
+        }
+    }
+
+    /**
+     * Matches patterns one after the other, each in the output following the
+     * match of the previous one.
+     */
+    private class AllOperation extends ReadOperation<List<MatchResult>> {
+
+        private final List<MultiMatcher> steps;
+
+        private final List<MatchResult>  results;
+
+        AllOperation( List<MultiMatcher> steps,
+                      boolean stderr,
+                      long timeOutSeconds ) {
+
+            super( stderr, timeOutSeconds );
+            this.steps = steps;
+            this.results = new ArrayList<MatchResult>( steps.size() );
+        }
+
+        @Override
+        boolean match() {
+
+            if( future.isDone() ) {
+                return true;
+            }
+            while( results.size() < steps.size() ) {
+                MatchResult result = spawn.matchInInternalBuffer( steps.get( results.size() ) );
+                if( result == null ) {
+                    return false;
+                }
+                results.add( result );
+            }
+            future.complete( results );
+            return true;
+        }
+
+        @Override
+        String timeoutMessage() {
+
+            StringBuilder msg = new StringBuilder( "Timeout trying to match" );
+            for( int i = results.size(); i < steps.size(); i++ ) {
+                msg.append( " '" + steps.get( i ).getPattern( 0 ) + "'" );
+            }
+            return msg.toString();
+        }
+    }
+
+    private class CloseOperation extends Operation<Void> {
+
+        CloseOperation( long timeOutSeconds ) {
+
+            super( timeOutSeconds );
+        }
+
+        @Override
+        void run() {
+
+            CloseWatcher.watch( new CloseWatcher.CloseCheck() {
+                public boolean isClosed() {
+
+                    return future.isDone() || spawn.isClosed();
+                }
+            }, new Runnable() {
+                public void run() {
+
+                    if( !future.isDone() ) {
+                        spawn.freeResources();
+                        future.complete( null );
+                    }
+                }
+            } );
+        }
+
+        @Override
+        String timeoutMessage() {
+
+            return "Timeout waiting for spawn to finish";
+        }
+    }
+
+    private class SendOperation extends Operation<Void> {
+
+        private final String string;
+
+        SendOperation( String string ) {
+
+            super( -1 );
+            this.string = string;
+        }
+
+        @Override
+        void run() {
+
+            loop.executeBlocking( new Runnable() {
+                public void run() {
+
+                    try {
+                        spawn.send( string );
+                        future.complete( null );
+                    } catch( IOException e ) {
+                        future.completeExceptionally( e );
+                    }
+                }
+            } );
+        }
+
+        @Override
+        String timeoutMessage() {
+
+            return "Timeout sending '" + string + "'";
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.axway.ats.expectj;
+
+import java.util.regex.Pattern;
+
+/**
+ * Looks for one expected pattern in the text received from a {@link Spawn}.
+ * <p>
+ * A matcher is created for each expect call and can keep state between
+ * the calls to {@link #find(CharSequence)} made while the call is waiting
+ * for more data.
+ */
+abstract class BufferMatcher {
+
+    /**
+     * Create a matcher for a pattern given as a string.
+     *
+     * @param pattern the pattern to look for
+     * @param isRegex whether the pattern is a regular expression or a
+     * case-insensitive plain text
+     * @return a matcher for the pattern
+     */
+    static BufferMatcher forString(
+                                    String pattern,
+                                    boolean isRegex ) {
+
+        if( isRegex ) {
+            return new RegexMatcher( PatternCache.getPattern( pattern ) );
+        } else {
+            return new LiteralMatcher( pattern );
+        }
+    }
+
+    /**
+     * Create a matcher for an already compiled pattern.
+     *
+     * @param pattern the pattern to look for
+     * @return a matcher for the pattern
+     */
+    static BufferMatcher forPattern(
+                                     Pattern pattern ) {
+
+        return new RegexMatcher( pattern );
+    }
+
+    /**
+     * Look for the pattern in the given text.
+     * <p>
+     * The text is the unconsumed part of everything the spawn has written so
+     * far. Matchers may use the offset to skip the parts of the text they
+     * already looked at in previous calls.
+     *
+     * @param text the text received from the spawn and not consumed yet
+     * @param textOffset the position of the first character of the text in
+     * the whole output of the spawn
+     * @return true if the pattern was found, {@link #start()} and {@link #end()}
+     * then tell where, relative to the given text
+     */
+    abstract boolean find(
+                           CharSequence text,
+                           long textOffset );
+
+    /**
+     * Look for the pattern in the given text, for a match that ends at a
+     * given position at the latest.
+     * <p>
+     * This default searches the whole text and drops a match ending too late,
+     * which is only exact for patterns of a fixed length. Matchers should not
+     * be used for further searches after this one.
+     *
+     * @param text the text received from the spawn and not consumed yet
+     * @param textOffset the position of the first character of the text in
+     * the whole output of the spawn
+     * @param limit where the match must end at the latest, relative to the
+     * given text
+     * @return true if the pattern was found, see {@link #find(CharSequence, long)}
+     */
+    boolean find(
+                  CharSequence text,
+                  long textOffset,
+                  int limit ) {
+
+        return find( text, textOffset ) && end() <= limit;
+    }
+
+    /**
+     * @return where the last match starts
+     */
+    abstract int start();
+
+    /**
+     * @return where the last match ends, the text up to here is consumed by the match
+     */
+    abstract int end();
+
+    /**
+     * @return the start and end of the last match, followed by the start and
+     * end of each of its groups, relative to the searched text. Groups that
+     * did not take part in the match are at -1
+     */
+    int[] groups() {
+
+        return new int[]{ start(), end() };
+    }
+
+    /**
+     * @return the pattern we look for, for logging purposes
+     */
+    abstract String getPattern();
+
+    /**
+     * @return whether we look for a regular expression
+     */
+    abstract boolean isRegex();
+}
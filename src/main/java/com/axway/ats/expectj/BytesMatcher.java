@@ -0,0 +1,194 @@
+package com.axway.ats.expectj;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Looks for an exact sequence of bytes.
+ * <p>
+ * Only used on spawns reading their output as ISO-8859-1, where each
+ * character of the buffer is one byte of the output, 0 bytes included. The
+ * search is a Boyer-Moore-Horspool scan like in {@link LiteralMatcher},
+ * without any case folding.
+ */
+class BytesMatcher extends BufferMatcher {
+    /**
+     * The bytes we look for, one per character.
+     */
+    private final char[]        pattern;
+
+    /**
+     * How far to move the search window, indexed by the byte found at the end
+     * of the window.
+     */
+    private final int[]         shifts = new int[256];
+
+    /**
+     * Absolute stream offset of the first position where a match could
+     * still start.
+     */
+    private long                nextStart;
+
+    /**
+     * Where the last match starts.
+     */
+    private int                 start  = -1;
+
+    /**
+     * @param bytes the bytes to look for
+     */
+    BytesMatcher( byte[] bytes ) {
+
+        int length = bytes.length;
+        pattern = new char[length];
+        for( int i = 0; i < length; i++ ) {
+            pattern[i] = ( char ) ( bytes[i] & 0xFF );
+        }
+
+        Arrays.fill( shifts, length );
+        for( int i = 0; i < length - 1; i++ ) {
+            shifts[pattern[i]] = length - 1 - i;
+        }
+    }
+
+    @Override
+    boolean find(
+                  CharSequence text,
+                  long textOffset ) {
+
+        int length = pattern.length;
+        int textLength = text.length();
+        int last = length - 1;
+        int i = ( int ) Math.max( 0, nextStart - textOffset );
+        while( i <= textLength - length ) {
+            int j = last;
+            while( j >= 0 && text.charAt( i + j ) == pattern[j] ) {
+                j--;
+            }
+            if( j < 0 ) {
+                start = i;
+                nextStart = textOffset + i + Math.max( length, 1 );
+                return true;
+            }
+            i += shifts[text.charAt( i + last ) & 0xFF];
+        }
+
+        // nothing before i can be the start of a match, whatever comes next
+        nextStart = textOffset + i;
+        return false;
+    }
+
+    @Override
+    int start() {
+
+        return start;
+    }
+
+    @Override
+    int end() {
+
+        return start + pattern.length;
+    }
+
+    @Override
+    String getPattern() {
+
+        return toPrintable( pattern );
+    }
+
+    @Override
+    boolean isRegex() {
+
+        return false;
+    }
+
+    /**
+     * Turn a glob on bytes into a regular expression matching the bytes as
+     * ISO-8859-1 characters. <code>*</code> matches any number of bytes,
+     * <code>?</code> one byte and <code>[...]</code> one of a set of bytes.
+     * A backslash escapes the next character, <code>\xhh</code> is the byte
+     * with the hex value <code>hh</code>. The match is case sensitive.
+     *
+     * @param glob the glob
+     * @return the regular expression
+     * @throws IllegalArgumentException if the glob is not valid
+     */
+    static Pattern globToPattern(
+                                  String glob ) {
+
+        StringBuilder regex = new StringBuilder();
+        boolean inClass = false;
+        for( int i = 0; i < glob.length(); i++ ) {
+            char c = glob.charAt( i );
+            if( c == '\\' ) {
+                if( i + 1 == glob.length() ) {
+                    throw new IllegalArgumentException( "Glob ends with an escape: " + glob );
+                }
+                char next = glob.charAt( ++i );
+                if( next == 'x' ) {
+                    if( i + 2 >= glob.length() ) {
+                        throw new IllegalArgumentException( "Incomplete \\x escape in glob: " + glob );
+                    }
+                    int value = Integer.parseInt( glob.substring( i + 1, i + 3 ), 16 );
+                    i += 2;
+                    appendChar( regex, ( char ) value );
+                } else {
+                    appendChar( regex, next );
+                }
+            } else if( inClass ) {
+                if( c == ']' ) {
+                    inClass = false;
+                    regex.append( ']' );
+                } else if( c == '-' || c == '^' && regex.charAt( regex.length() - 1 ) == '[' ) {
+                    regex.append( c );
+                } else {
+                    appendChar( regex, c );
+                }
+            } else if( c == '*' ) {
+                regex.append( ".*?" );
+            } else if( c == '?' ) {
+                regex.append( '.' );
+            } else if( c == '[' ) {
+                inClass = true;
+                regex.append( '[' );
+            } else {
+                appendChar( regex, c );
+            }
+        }
+        if( inClass ) {
+            throw new IllegalArgumentException( "Unclosed [ in glob: " + glob );
+        }
+        return Pattern.compile( regex.toString(), Pattern.DOTALL );
+    }
+
+    /**
+     * Add a character matching itself only.
+     */
+    private static void appendChar(
+                                    StringBuilder regex,
+                                    char c ) {
+
+        if( c > 0xFF ) {
+            throw new IllegalArgumentException( "Not a byte: '" + c + "'" );
+        }
+        regex.append( String.format( "\\x%02x", ( int ) c ) );
+    }
+
+    /**
+     * @param bytes bytes, one per character
+     * @return the bytes with the non-printable ones as <code>\xhh</code>
+     */
+    static String toPrintable(
+                               char[] bytes ) {
+
+        StringBuilder text = new StringBuilder( bytes.length );
+        for( char c : bytes ) {
+            if( c >= 0x20 && c < 0x7F && c != '\\' ) {
+                text.append( c );
+            } else {
+                text.append( String.format( "\\x%02x", ( int ) c ) );
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,158 @@
+package com.axway.ats.expectj;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Notices when things close that can't tell us themselves, for all spawns
+ * with a single thread.
+ * <p>
+ * Used for processes when the JVM has no <code>Process.onExit()</code>, and
+ * for spawns whose output has ended but that aren't closed yet. An entry is
+ * checked a millisecond after it is added, then less and less often, up to
+ * every 100 ms, so something closing right away is
+ * noticed at once and something that stays open long costs next to nothing.
+ * The thread parks until the next check is due, and for good when it has no
+ * entries.
+ */
+final class CloseWatcher {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger                  LOG             = Logger.getLogger( CloseWatcher.class );
+
+    /**
+     * The time between the first two checks of an entry.
+     */
+    private static final long                    MIN_POLL_NANOS  = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    /**
+     * The longest time between two checks of an entry.
+     */
+    private static final long                    MAX_POLL_NANOS  = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+    /**
+     * Entries added but not picked up by the thread yet.
+     */
+    private static final Queue<Entry>            ADDED           = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * The watching thread, started on first use.
+     */
+    private static Thread                        thread;
+
+    private CloseWatcher() {
+
+        // Only static methods here
+    }
+
+    /**
+     * Something that can be asked whether it is closed.
+     */
+    interface CloseCheck {
+        /**
+         * @return true once closed, must not block
+         */
+        boolean isClosed();
+    }
+
+    /**
+     * Call a listener once something is closed.
+     *
+     * @param check what to watch
+     * @param listener called once, from the watching thread, when it is closed
+     */
+    static void watch(
+                       CloseCheck check,
+                       Runnable listener ) {
+
+        ADDED.add( new Entry( check, listener ) );
+        Thread watcher;
+        synchronized( CloseWatcher.class ) {
+            if( thread == null ) {
+                thread = SpawnThreads.newThread( new Watcher(), "ExpectJ Close Watcher", true );
+                thread.start();
+            }
+            watcher = thread;
+        }
+        LockSupport.unpark( watcher );
+    }
+
+    private static class Entry {
+
+        private final CloseCheck check;
+
+        private final Runnable   listener;
+
+        /**
+         * How long to wait after the next check if it is still open.
+         */
+        private long             pollNanos = MIN_POLL_NANOS;
+
+        /**
+         * When to check next, in {@link System#nanoTime()} time.
+         */
+        private long             nextCheckNanos;
+
+        Entry( CloseCheck check,
+               Runnable listener ) {
+
+            this.check = check;
+            this.listener = listener;
+        }
+    }
+
+    private static class Watcher implements Runnable {
+
+        public void run() {
+
+            List<Entry> entries = new ArrayList<Entry>();
+            while( true ) {
+                long now = System.nanoTime();
+                Entry entry;
+                while( ( entry = ADDED.poll() ) != null ) {
+                    entry.nextCheckNanos = now + MIN_POLL_NANOS;
+                    entries.add( entry );
+                }
+
+                long nextCheckNanos = Long.MAX_VALUE;
+                Iterator<Entry> it = entries.iterator();
+                while( it.hasNext() ) {
+                    entry = it.next();
+                    if( entry.nextCheckNanos - now > 0 ) {
+                        nextCheckNanos = Math.min( nextCheckNanos, entry.nextCheckNanos - now );
+                        continue;
+                    }
+                    try {
+                        if( entry.check.isClosed() ) {
+                            it.remove();
+                            entry.listener.run();
+                            continue;
+                        }
+                    } catch( RuntimeException e ) {
+                        it.remove();
+                        LOG.error( "Failed checking whether a spawn is closed", e );
+                        continue;
+                    }
+                    entry.nextCheckNanos = now + entry.pollNanos;
+                    nextCheckNanos = Math.min( nextCheckNanos, entry.pollNanos );
+                    entry.pollNanos = Math.min( entry.pollNanos * 2, MAX_POLL_NANOS );
+                }
+
+                if( entries.isEmpty() ) {
+                    LockSupport.park( this );
+                } else {
+                    // woken up early when an entry is added
+                    LockSupport.parkNanos( this, nextCheckNanos );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.axway.ats.expectj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Looks for several regular expressions with a single scan, by matching one
+ * alternation of all of them.
+ * <p>
+ * Each pattern becomes a capturing group of the alternation, so a match tells
+ * which pattern was found. The alternation finds the leftmost match, while
+ * patterns listed first must win wherever they are in the text. So when the
+ * alternation finds pattern <i>k</i>, the patterns listed before it are looked
+ * for one by one. That only happens once per expect call, the scans made while
+ * waiting for data are single ones.
+ * <p>
+ * Not all patterns can be combined, see {@link #canCombine(List)}.
+ */
+class CombinedRegexMatcher extends MultiMatcher {
+    /**
+     * Finds numbered back references, which would point to the wrong group
+     * once the pattern is part of the alternation.
+     */
+    private static final Pattern   BACK_REFERENCE = Pattern.compile( "(?<!\\\\)(?:\\\\\\\\)*\\\\[1-9]" );
+
+    /**
+     * Flags that change how the pattern text is parsed, so it can't be
+     * wrapped in a group.
+     */
+    private static final int       PARSING_FLAGS  = Pattern.LITERAL | Pattern.COMMENTS | Pattern.CANON_EQ;
+
+    /**
+     * The patterns we look for.
+     */
+    private final List<Pattern>    patterns;
+
+    /**
+     * The group wrapping each pattern in the alternation.
+     */
+    private final int[]            groups;
+
+    /**
+     * The last group of each pattern in the alternation.
+     */
+    private final int[]            lastGroups;
+
+    /**
+     * Looks for the alternation.
+     */
+    private final RegexMatcher     combined;
+
+    /**
+     * Matchers for the single patterns, created when needed.
+     */
+    private final RegexMatcher[]   singles;
+
+    /**
+     * The max lookback for all of our matchers.
+     */
+    private final int              maxLookback;
+
+    /**
+     * Index of the found pattern.
+     */
+    private int                    found;
+
+    /**
+     * The single pattern matcher that found the pattern, or null when the
+     * alternation did.
+     */
+    private RegexMatcher           foundSingle;
+
+    /**
+     * Where the last match starts.
+     */
+    private int                    start;
+
+    /**
+     * Where the last match ends.
+     */
+    private int                    end;
+
+    /**
+     * @param patterns the regular expressions to look for, they must pass
+     * {@link #canCombine(List)}
+     * @param maxLookback the max lookback, see {@link RegexMatcher#setMaxLookback(int)}
+     * @throws PatternSyntaxException if the patterns can't be combined after all, for
+     * example when two of them use the same group name
+     */
+    CombinedRegexMatcher( List<Pattern> patterns,
+                          int maxLookback ) {
+
+        this.patterns = new ArrayList<Pattern>( patterns );
+        this.maxLookback = maxLookback;
+        groups = new int[patterns.size()];
+        lastGroups = new int[patterns.size()];
+        singles = new RegexMatcher[patterns.size()];
+
+        int flags = patterns.get( 0 ).flags();
+        StringBuilder alternation = new StringBuilder();
+        int group = 1;
+        for( int i = 0; i < patterns.size(); i++ ) {
+            Pattern pattern = patterns.get( i );
+            if( i > 0 ) {
+                alternation.append( '|' );
+            }
+            alternation.append( '(' ).append( pattern.pattern() ).append( ')' );
+            groups[i] = group;
+            int groupCount = pattern.matcher( "" ).groupCount();
+            lastGroups[i] = group + groupCount;
+            group += groupCount + 1;
+        }
+
+        Pattern pattern;
+        if( flags == PatternCache.FLAGS ) {
+            pattern = PatternCache.getPattern( alternation.toString() );
+        } else {
+            pattern = Pattern.compile( alternation.toString(), flags );
+        }
+        combined = new RegexMatcher( pattern );
+        combined.setMaxLookback( maxLookback );
+    }
+
+    /**
+     * Check whether the given regular expressions can be matched as one
+     * alternation. That takes the same flags for all of them, and no numbered
+     * back references or quoting. The alternation may still fail to compile,
+     * for example when two patterns use the same group name.
+     *
+     * @param patterns the regular expressions to look for
+     * @return true if we can handle them
+     */
+    static boolean canCombine(
+                               List<Pattern> patterns ) {
+
+        if( patterns.size() < 2 ) {
+            return false;
+        }
+        int flags = patterns.get( 0 ).flags();
+        if( ( flags & PARSING_FLAGS ) != 0 ) {
+            return false;
+        }
+        for( Pattern pattern : patterns ) {
+            String regex = pattern.pattern();
+            if( pattern.flags() != flags || regex.contains( "\\Q" )
+                || BACK_REFERENCE.matcher( regex ).find() ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    int find(
+              CharSequence text,
+              long textOffset ) {
+
+        if( !combined.find( text, textOffset ) ) {
+            return -1;
+        }
+
+        Matcher matcher = combined.getMatcher();
+        found = 0;
+        foundSingle = null;
+        while( matcher.start( groups[found] ) == -1 ) {
+            found++;
+        }
+        start = matcher.start( groups[found] );
+        end = matcher.end( lastGroups[found] );
+        if( end == -1 ) {
+            end = matcher.end( groups[found] );
+        }
+
+        // a pattern listed earlier wins even if it is further in the text
+        for( int i = 0; i < found; i++ ) {
+            if( singles[i] == null ) {
+                singles[i] = new RegexMatcher( patterns.get( i ) );
+                singles[i].setMaxLookback( maxLookback );
+            }
+            if( singles[i].find( text, textOffset ) ) {
+                found = i;
+                foundSingle = singles[i];
+                start = singles[i].start();
+                end = singles[i].end();
+                break;
+            }
+        }
+        return found;
+    }
+
+    @Override
+    int start() {
+
+        return start;
+    }
+
+    @Override
+    int end() {
+
+        return end;
+    }
+
+    @Override
+    int[] groups() {
+
+        if( foundSingle != null ) {
+            return foundSingle.groups();
+        }
+        return RegexMatcher.groups( combined.getMatcher(), groups[found], lastGroups[found] );
+    }
+
+    @Override
+    int size() {
+
+        return patterns.size();
+    }
+
+    @Override
+    String getPattern(
+                       int index ) {
+
+        return patterns.get( index ).pattern();
+    }
+}
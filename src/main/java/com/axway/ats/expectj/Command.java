@@ -0,0 +1,103 @@
+package com.axway.ats.expectj;
+
+import java.util.regex.Pattern;
+
+/**
+ * A command of a batch sent with {@link Spawn#sendPipelined(java.util.List, long)}:
+ * the text to send, the pattern telling its output is complete and
+ * optionally a pattern telling it failed.
+ */
+public final class Command {
+    /**
+     * What to send, line feeds included.
+     */
+    private final String  text;
+
+    /**
+     * Ends the output of the command.
+     */
+    private final Pattern endPattern;
+
+    /**
+     * Tells the command failed, null if it can't.
+     */
+    private final Pattern errorPattern;
+
+    /**
+     * @param text what to send. Don't forget to terminate it with \n if you
+     * want it linefed.
+     * @param endPattern ends the output of the command
+     * @param isRegex whether the pattern is a regular expression or a
+     * case-insensitive plain text
+     */
+    public Command( String text,
+                    String endPattern,
+                    boolean isRegex ) {
+
+        this( text, isRegex
+                            ? PatternCache.getPattern( endPattern )
+                            : Pattern.compile( Pattern.quote( endPattern ),
+                                               Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE ),
+              null );
+    }
+
+    /**
+     * @param text what to send. Don't forget to terminate it with \n if you
+     * want it linefed.
+     * @param endPattern ends the output of the command
+     */
+    public Command( String text,
+                    Pattern endPattern ) {
+
+        this( text, endPattern, null );
+    }
+
+    /**
+     * @param text what to send. Don't forget to terminate it with \n if you
+     * want it linefed.
+     * @param endPattern ends the output of the command
+     * @param errorPattern tells the command failed when found in its output
+     * before the end pattern, or null
+     */
+    public Command( String text,
+                    Pattern endPattern,
+                    Pattern errorPattern ) {
+
+        if( text == null || endPattern == null ) {
+            throw new NullPointerException( "A command needs a text and an end pattern" );
+        }
+        this.text = text;
+        this.endPattern = endPattern;
+        this.errorPattern = errorPattern;
+    }
+
+    /**
+     * @return what to send
+     */
+    public String getText() {
+
+        return text;
+    }
+
+    /**
+     * @return the pattern ending the output of the command
+     */
+    public Pattern getEndPattern() {
+
+        return endPattern;
+    }
+
+    /**
+     * @return the pattern telling the command failed, or null
+     */
+    public Pattern getErrorPattern() {
+
+        return errorPattern;
+    }
+
+    @Override
+    public String toString() {
+
+        return text.trim();
+    }
+}
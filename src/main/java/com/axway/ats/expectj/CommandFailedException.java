@@ -0,0 +1,85 @@
+package com.axway.ats.expectj;
+
+import java.util.List;
+
+/**
+ * A command of a pipelined batch printed its error pattern.
+ *
+ * @see Spawn#sendPipelined(List, long)
+ */
+public class CommandFailedException extends ExpectJException {
+
+    private static final long       serialVersionUID = 1L;
+
+    /**
+     * Index of the command that failed in the batch.
+     */
+    private final int               commandIndex;
+
+    /**
+     * The command that failed.
+     */
+    private final Command           command;
+
+    /**
+     * The match of the error pattern.
+     */
+    private final MatchResult       match;
+
+    /**
+     * The results of the commands before the one that failed.
+     */
+    private final List<MatchResult> results;
+
+    /**
+     * @param commandIndex index of the command that failed in the batch
+     * @param command the command that failed
+     * @param match the match of the error pattern
+     * @param results the results of the commands before it
+     */
+    CommandFailedException( int commandIndex,
+                            Command command,
+                            MatchResult match,
+                            List<MatchResult> results ) {
+
+        super( "Command [" + commandIndex + "] '" + command + "' failed, matched '"
+               + match.getMatchedText() + "'" );
+        this.commandIndex = commandIndex;
+        this.command = command;
+        this.match = match;
+        this.results = results;
+    }
+
+    /**
+     * @return the index of the command that failed in the batch
+     */
+    public int getCommandIndex() {
+
+        return commandIndex;
+    }
+
+    /**
+     * @return the command that failed
+     */
+    public Command getCommand() {
+
+        return command;
+    }
+
+    /**
+     * @return the match of the error pattern, its text before is the output
+     * of the command up to the error
+     */
+    public MatchResult getMatch() {
+
+        return match;
+    }
+
+    /**
+     * @return the results of the commands before the one that failed
+     */
+    public List<MatchResult> getResults() {
+
+        return results;
+    }
+}
@@ -0,0 +1,75 @@
+package com.axway.ats.expectj;
+
+/**
+ * The outcome of a command run by a {@link PersistentShell}.
+ */
+public final class CommandResult {
+    /**
+     * The command as sent.
+     */
+    private final String      command;
+
+    /**
+     * The match of the end marker, the output of the command is the text
+     * before it.
+     */
+    private final MatchResult end;
+
+    /**
+     * The exit status of the command.
+     */
+    private final int         exitCode;
+
+    /**
+     * @param command the command as sent
+     * @param end the match of the end marker
+     * @param exitCode the exit status of the command
+     */
+    CommandResult( String command,
+                   MatchResult end,
+                   int exitCode ) {
+
+        this.command = command;
+        this.end = end;
+        this.exitCode = exitCode;
+    }
+
+    /**
+     * @return the command as sent
+     */
+    public String getCommand() {
+
+        return command;
+    }
+
+    /**
+     * @return what the command printed on standard out, exactly
+     */
+    public String getOutput() {
+
+        return end.getTextBefore();
+    }
+
+    /**
+     * @return the exit status of the command
+     */
+    public int getExitCode() {
+
+        return exitCode;
+    }
+
+    /**
+     * @return the match of the marker ending the output, its text before is
+     * the output and its offsets place the output in the shell's stream
+     */
+    public MatchResult getEndMatch() {
+
+        return end;
+    }
+
+    @Override
+    public String toString() {
+
+        return "'" + command + "' exited with " + exitCode;
+    }
+}
@@ -0,0 +1,285 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands a spawn's output from the reading thread to the {@link Spawn} in
+ * memory.
+ * <p>
+ * The writer appends to a heap buffer and signals a condition, the
+ * {@link Spawn} takes the data from there. Compared to a {@link PipeOutput}
+ * there is no system call and no selector on the way, and the buffer holds
+ * up to {@link #MAX_PENDING} characters instead of the size of a pipe, so bulk
+ * output wakes the reader up much less often.
+ * <p>
+ * Asynchronous readers don't wait on the condition, they register a
+ * listener called when data arrives.
+ */
+class DirectOutput extends SpawnOutput {
+    /**
+     * The most characters kept for the reader, 1 MB, writers wait beyond that.
+     */
+    static final int                MAX_PENDING    = 512 * 1024;
+
+    /**
+     * The initial size of the buffer, it grows up to {@link #MAX_PENDING}.
+     */
+    private static final int        INITIAL_SIZE   = 8 * 1024;
+
+    /**
+     * Guards all our state.
+     */
+    private final ReentrantLock     lock           = new ReentrantLock();
+
+    /**
+     * Signalled when there is data to read or the stream ended.
+     */
+    private final Condition         readable       = lock.newCondition();
+
+    /**
+     * Signalled when the reader made room.
+     */
+    private final Condition         writable       = lock.newCondition();
+
+    /**
+     * The data not read yet, in write mode.
+     */
+    private CharBuffer              pending        = CharBuffer.allocate( INITIAL_SIZE );
+
+    /**
+     * The spawn's stream ended.
+     */
+    private boolean                 sinkClosed;
+
+    /**
+     * Both sides are done.
+     */
+    private boolean                 closed;
+
+    /**
+     * Set by {@link #wakeup()}, cleared by {@link #await(long)}.
+     */
+    private boolean                 woken;
+
+    /**
+     * Called when there is something to read, see {@link #setListener(Runnable)}.
+     */
+    private Runnable                listener;
+
+    /**
+     * The listener was called and the reader did not read since.
+     */
+    private boolean                 notified;
+
+    @Override
+    int write(
+               CharBuffer data ) throws IOException {
+
+        Runnable toNotify;
+        int count;
+        lock.lock();
+        try {
+            if( closed || sinkClosed ) {
+                throw new IOException( "The spawn output is closed" );
+            }
+            count = Math.min( data.remaining(), MAX_PENDING - pending.position() );
+            if( count == 0 ) {
+                return 0;
+            }
+            if( pending.remaining() < count ) {
+                int size = Math.min( MAX_PENDING,
+                                     Math.max( pending.capacity() * 2, pending.position() + count ) );
+                CharBuffer bigger = CharBuffer.allocate( size );
+                pending.flip();
+                bigger.put( pending );
+                pending = bigger;
+            }
+            int limit = data.limit();
+            data.limit( data.position() + count );
+            pending.put( data );
+            data.limit( limit );
+
+            readable.signalAll();
+            toNotify = toNotify();
+        } finally {
+            lock.unlock();
+        }
+        callListener( toNotify );
+        return count;
+    }
+
+    @Override
+    void writeFully(
+                     CharBuffer data ) throws IOException {
+
+        while( true ) {
+            write( data );
+            if( !data.hasRemaining() ) {
+                return;
+            }
+            lock.lock();
+            try {
+                while( !closed && pending.position() == MAX_PENDING ) {
+                    writable.await();
+                }
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException( "Interrupted while waiting for the spawn output to be read" );
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    void closeSink() {
+
+        Runnable toNotify;
+        lock.lock();
+        try {
+            sinkClosed = true;
+            readable.signalAll();
+            toNotify = toNotify();
+        } finally {
+            lock.unlock();
+        }
+        callListener( toNotify );
+    }
+
+    @Override
+    int read(
+              CharBuffer buffer ) throws IOException {
+
+        Runnable toNotify = null;
+        lock.lock();
+        try {
+            if( closed ) {
+                throw new IOException( "The spawn output is closed" );
+            }
+            notified = false;
+            if( pending.position() == 0 ) {
+                return sinkClosed
+                                  ? -1
+                                  : 0;
+            }
+            pending.flip();
+            int count = Math.min( pending.remaining(), buffer.remaining() );
+            int limit = pending.limit();
+            pending.limit( count );
+            buffer.put( pending );
+            pending.limit( limit );
+            pending.compact();
+
+            writable.signalAll();
+            // the listener must hear about what is left, or about the end
+            toNotify = toNotify();
+            return count;
+        } finally {
+            lock.unlock();
+            callListener( toNotify );
+        }
+    }
+
+    @Override
+    boolean await(
+                   long timeoutMillis ) {
+
+        lock.lock();
+        try {
+            long nanos = TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            while( pending.position() == 0 && !sinkClosed && !closed && !woken ) {
+                if( timeoutMillis == 0 ) {
+                    readable.await();
+                } else {
+                    if( nanos <= 0 ) {
+                        break;
+                    }
+                    nanos = readable.awaitNanos( nanos );
+                }
+            }
+            woken = false;
+            return pending.position() > 0 || sinkClosed;
+        } catch( InterruptedException e ) {
+            // like a selector, return with the interrupt status set
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void wakeup() {
+
+        lock.lock();
+        try {
+            woken = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void close() {
+
+        lock.lock();
+        try {
+            closed = true;
+            pending = CharBuffer.allocate( 0 );
+            readable.signalAll();
+            writable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Set who to call, from the writing thread, when there is something to
+     * read. It is called again after each read that leaves data or the end
+     * of the stream behind, so it is enough to read once per call.
+     *
+     * @param listener the listener, must not block, or null for none
+     */
+    void setListener(
+                      Runnable listener ) {
+
+        Runnable toNotify;
+        lock.lock();
+        try {
+            this.listener = listener;
+            notified = false;
+            toNotify = toNotify();
+        } finally {
+            lock.unlock();
+        }
+        callListener( toNotify );
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @return the listener to call once the lock is released, or null
+     */
+    private Runnable toNotify() {
+
+        if( listener == null || notified || closed || ( pending.position() == 0 && !sinkClosed ) ) {
+            return null;
+        }
+        notified = true;
+        return listener;
+    }
+
+    private void callListener(
+                               Runnable toNotify ) {
+
+        if( toNotify != null ) {
+            toNotify.run();
+        }
+    }
+}
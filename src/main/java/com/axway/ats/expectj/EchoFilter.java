@@ -0,0 +1,122 @@
+package com.axway.ats.expectj;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Takes the echo of what is sent to a spawn out of its output, so a large
+ * input fed to a spawn that echoes it, like a terminal does, doesn't end up
+ * in the match buffer.
+ * <p>
+ * What was sent is decoded like the spawn's output and kept until its echo
+ * arrives. Output is dropped as long as it is the expected echo, a carriage
+ * return added before a line feed included. At the first difference the
+ * filter gives up and lets everything through, the spawn is not echoing or
+ * printing something else. It also gives up if far more was sent than
+ * echoed.
+ * <p>
+ * Thread safe, what is sent and what is received are usually told by
+ * different threads.
+ */
+class EchoFilter {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger LOG         = Logger.getLogger( EchoFilter.class );
+
+    /**
+     * How much echo may be missing before we decide there is none, in
+     * characters.
+     */
+    private static final int    MAX_PENDING = 1024 * 1024;
+
+    /**
+     * Decodes what is sent.
+     */
+    private final StreamDecoder decoder;
+
+    /**
+     * What was sent and not echoed yet, in read mode.
+     */
+    private CharBuffer          expected    = CharBuffer.allocate( 0 );
+
+    /**
+     * Whether the output is still the echo.
+     */
+    private boolean             active      = true;
+
+    /**
+     * @param charset the encoding of the spawn's input and output
+     */
+    EchoFilter( Charset charset ) {
+
+        decoder = new StreamDecoder( charset );
+    }
+
+    /**
+     * Expect the echo of bytes about to be sent.
+     *
+     * @param bytes the bytes, from the position to the limit
+     */
+    synchronized void sent(
+                            ByteBuffer bytes ) {
+
+        if( !active ) {
+            return;
+        }
+        CharBuffer chars = decoder.decode( bytes.array(), bytes.arrayOffset() + bytes.position(),
+                                           bytes.remaining() );
+        if( expected.remaining() + chars.remaining() > MAX_PENDING ) {
+            LOG.debug( "No echo of the data sent, not stripping it" );
+            active = false;
+            expected = CharBuffer.allocate( 0 );
+            return;
+        }
+        if( expected.capacity() - expected.remaining() < chars.remaining() ) {
+            CharBuffer larger = CharBuffer.allocate( Math.max( expected.remaining() + chars.remaining(),
+                                                               expected.capacity() * 2 ) );
+            larger.put( expected );
+            expected = larger;
+        } else {
+            expected.compact();
+        }
+        expected.put( chars );
+        expected.flip();
+    }
+
+    /**
+     * Skip the echo at the start of some output.
+     *
+     * @param output output of the spawn, its position is moved past the echo
+     */
+    synchronized void strip(
+                             CharBuffer output ) {
+
+        while( active && output.hasRemaining() && expected.hasRemaining() ) {
+            char received = output.get( output.position() );
+            char echoed = expected.get( expected.position() );
+            if( received == echoed ) {
+                output.position( output.position() + 1 );
+                expected.position( expected.position() + 1 );
+            } else if( received == '\r' && echoed == '\n' ) {
+                // a terminal turns line feeds into CR LF
+                output.position( output.position() + 1 );
+            } else {
+                LOG.debug( "The output differs from the data sent, not stripping it anymore" );
+                active = false;
+                expected = CharBuffer.allocate( 0 );
+            }
+        }
+    }
+
+    /**
+     * @return true while some echo is still expected
+     */
+    synchronized boolean isPending() {
+
+        return active && expected.hasRemaining();
+    }
+}
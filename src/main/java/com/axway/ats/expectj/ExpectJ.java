@@ -2,7 +2,11 @@
 
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
 
 import com.axway.ats.expectj.utils.AtsUtils;
 import com.jcraft.jsch.Channel;
@@ -15,7 +19,19 @@
  */
 public class ExpectJ {
     /** Default timeout, -1 indicating wait for indefinite time */
-    private long m_lDefaultTimeOutSeconds = -1;
+    private long           m_lDefaultTimeOutSeconds = -1;
+
+    /** Whether new spawns are read by the shared {@link StreamPump} */
+    private boolean        m_bUseStreamPump         = false;
+
+    /** Whether new spawns hand their output over in memory rather than through pipes */
+    private boolean        m_bUseDirectDelivery     = true;
+
+    /** The encoding of the input and output of new spawns */
+    private Charset        m_charset                = Charset.defaultCharset();
+
+    /** Where SSH spawns get their sessions from, null to open one per spawn */
+    private SshSessionPool m_sshSessionPool         = null;
 
     /**
      * Create a new ExpectJ with specified timeout setting.
@@ -36,6 +52,96 @@ public ExpectJ() {
         // This constructor intentionally left blank
     }
 
+    /**
+     * Choose how the output of the spawns created from now on is read. By
+     * default each spawn gets a thread per output stream. With the stream
+     * pump a few shared threads poll the output of all spawns. That saves
+     * threads when running many spawns at once, at the cost of up to 10 ms
+     * of latency per read and of some throughput.
+     *
+     * @param useStreamPump true to use the shared {@link StreamPump}
+     * @see StreamPump#setThreadCount(int)
+     */
+    public void setUseStreamPump( boolean useStreamPump ) {
+
+        m_bUseStreamPump = useStreamPump;
+    }
+
+    /**
+     * @return true if new spawns are read by the shared {@link StreamPump}
+     */
+    public boolean isUsingStreamPump() {
+
+        return m_bUseStreamPump;
+    }
+
+    /**
+     * Choose how the output of the spawns created from now on gets from the
+     * threads reading it to the {@link Spawn}. By default it is handed over
+     * in memory. Turning this off sends it through a pipe instead, as it was
+     * done before, which is kept as a fallback.
+     *
+     * @param useDirectDelivery true to hand the output over in memory
+     */
+    public void setUseDirectDelivery( boolean useDirectDelivery ) {
+
+        m_bUseDirectDelivery = useDirectDelivery;
+    }
+
+    /**
+     * @return true if new spawns hand their output over in memory
+     */
+    public boolean isUsingDirectDelivery() {
+
+        return m_bUseDirectDelivery;
+    }
+
+    /**
+     * Set the encoding of the input and output of the spawns created from now
+     * on. Their output is decoded once, as it is read, for both the
+     * transcripts and the expect commands. The default is the platform's
+     * encoding.
+     *
+     * @param charset the encoding
+     */
+    public void setCharset( Charset charset ) {
+
+        if( charset == null ) {
+            throw new NullPointerException( "Charset must not be null" );
+        }
+        m_charset = charset;
+    }
+
+    /**
+     * @return the encoding of the input and output of new spawns
+     */
+    public Charset getCharset() {
+
+        return m_charset;
+    }
+
+    /**
+     * Make the SSH spawns created from now on by
+     * {@link #spawn(String, int, String, String)} open their channel over a
+     * session of the pool, instead of connecting and authenticating each
+     * time.
+     *
+     * @param pool the pool, or null for a session per spawn
+     */
+    public void setSshSessionPool( SshSessionPool pool ) {
+
+        m_sshSessionPool = pool;
+    }
+
+    /**
+     * @return where new SSH spawns get their sessions from, null if they
+     * open their own
+     */
+    public SshSessionPool getSshSessionPool() {
+
+        return m_sshSessionPool;
+    }
+
     /**
      * This method launches a {@link Spawnable}. Further expect commands can be
      * invoked on the returned {@link Spawn} object.
@@ -46,7 +152,8 @@ public ExpectJ() {
      */
     public Spawn spawn( Spawnable spawnable ) throws IOException {
 
-        return new Spawn( spawnable, m_lDefaultTimeOutSeconds );
+        return new Spawn( spawnable, m_lDefaultTimeOutSeconds, m_bUseStreamPump, m_bUseDirectDelivery,
+                          m_charset );
     }
 
     /**
@@ -143,10 +250,71 @@ public Spawn spawn( Channel channel ) throws IOException {
      * @see #spawn(Channel)
      *
      * @see SshSpawn#SshSpawn(String, int, String, String)
+     *
+     * @see #setSshSessionPool(SshSessionPool)
      */
     public Spawn spawn( String remoteHostName, int remotePort, String userName,
                         String password ) throws IOException {
 
+        if( m_sshSessionPool != null ) {
+            return spawn( new SshSpawn( m_sshSessionPool, remoteHostName, remotePort, userName, password ) );
+        }
         return spawn( new SshSpawn( remoteHostName, remotePort, userName, password ) );
     }
+
+    /**
+     * This method creates a spawn running a single command on a remote host,
+     * in an SSH exec channel. Its stderr can be expected from, and its exit
+     * status is the one of the remote command.
+     *
+     * @param remoteHostName The remote host to connect to.
+     *
+     * @param remotePort The remote port to connect to.
+     *
+     * @param userName The user name with which to authenticate
+     *
+     * @param password The password with which to authenticate
+     *
+     * @param command The command to run
+     *
+     * @return A spawn controlling the command.
+     *
+     * @throws IOException If opening the SSH channel fails.
+     *
+     * @see SshSpawn#SshSpawn(String, int, String, String, String)
+     *
+     * @see #setSshSessionPool(SshSessionPool)
+     */
+    public Spawn spawn( String remoteHostName, int remotePort, String userName, String password,
+                        String command ) throws IOException {
+
+        if( m_sshSessionPool != null ) {
+            return spawn( new SshSpawn( m_sshSessionPool, remoteHostName, remotePort, userName, password,
+                                        command ) );
+        }
+        return spawn( new SshSpawn( remoteHostName, remotePort, userName, password, command ) );
+    }
+
+    /**
+     * Wait on several spawns at once for one of them to match one of its
+     * patterns, the way Tcl expect waits on a list of spawn ids.
+     * <p>
+     * The output of all the spawns is watched from the calling thread, no
+     * thread is needed per spawn. Only stdout is looked at. While waiting
+     * the spawns must not be used otherwise, by other threads or by
+     * {@link AsyncSpawn asynchronous expects}. The spawns that did not match
+     * keep what they read, their next expect starts from there.
+     *
+     * @param patterns the regular expressions to look for, by spawn
+     * @param timeoutSeconds the timeout in seconds, -1 to wait forever
+     * @return the spawn that matched first, and the match
+     * @throws IOException on IO trouble, or when all of the spawns ended
+     * without a match
+     * @throws TimeoutException on timeout
+     */
+    public static SpawnMatch expectAny( Map<Spawn, List<Pattern>> patterns,
+                                        long timeoutSeconds ) throws IOException, TimeoutException {
+
+        return SpawnSelector.expectAny( patterns, timeoutSeconds );
+    }
 }
@@ -0,0 +1,135 @@
+package com.axway.ats.expectj;
+
+import java.util.Arrays;
+
+/**
+ * Looks for a case-insensitive plain text.
+ * <p>
+ * The search is a Boyer-Moore-Horspool scan on case folded characters, done
+ * directly on the buffer without copying it. The matcher remembers where its
+ * last unsuccessful scan stopped, so when more data arrives only the new
+ * characters, plus the last <code>pattern length - 1</code> old ones, are
+ * looked at.
+ */
+class LiteralMatcher extends BufferMatcher {
+    /**
+     * Case folded ASCII characters, so the common case needs no method calls.
+     */
+    private static final char[] ASCII_FOLD = new char[128];
+    static {
+        for( char c = 0; c < ASCII_FOLD.length; c++ ) {
+            ASCII_FOLD[c] = Character.toLowerCase( c );
+        }
+    }
+
+    /**
+     * The text we look for.
+     */
+    private final String        pattern;
+
+    /**
+     * The text we look for, case folded.
+     */
+    private final char[]        foldedPattern;
+
+    /**
+     * How far to move the search window, indexed by the low byte of the case
+     * folded character found at the end of the window.
+     */
+    private final int[]         shifts     = new int[256];
+
+    /**
+     * Absolute stream offset of the first position where a match could
+     * still start.
+     */
+    private long                nextStart;
+
+    /**
+     * Where the last match starts.
+     */
+    private int                 start      = -1;
+
+    /**
+     * @param pattern the text to look for
+     */
+    LiteralMatcher( String pattern ) {
+
+        this.pattern = pattern;
+        int length = pattern.length();
+        foldedPattern = new char[length];
+        for( int i = 0; i < length; i++ ) {
+            foldedPattern[i] = fold( pattern.charAt( i ) );
+        }
+
+        // Characters sharing a low byte share a slot, the smallest shift wins
+        // which keeps the search correct.
+        Arrays.fill( shifts, length );
+        for( int i = 0; i < length - 1; i++ ) {
+            shifts[foldedPattern[i] & 0xFF] = length - 1 - i;
+        }
+    }
+
+    /**
+     * @param c a character
+     * @return the character to compare when ignoring case
+     */
+    static char fold(
+                      char c ) {
+
+        if( c < ASCII_FOLD.length ) {
+            return ASCII_FOLD[c];
+        }
+        return Character.toLowerCase( Character.toUpperCase( c ) );
+    }
+
+    @Override
+    boolean find(
+                  CharSequence text,
+                  long textOffset ) {
+
+        int length = foldedPattern.length;
+        int textLength = text.length();
+        int last = length - 1;
+        int i = ( int ) Math.max( 0, nextStart - textOffset );
+        while( i <= textLength - length ) {
+            int j = last;
+            while( j >= 0 && fold( text.charAt( i + j ) ) == foldedPattern[j] ) {
+                j--;
+            }
+            if( j < 0 ) {
+                start = i;
+                nextStart = textOffset + i + Math.max( length, 1 );
+                return true;
+            }
+            i += shifts[fold( text.charAt( i + last ) ) & 0xFF];
+        }
+
+        // nothing before i can be the start of a match, whatever comes next
+        nextStart = textOffset + i;
+        return false;
+    }
+
+    @Override
+    int start() {
+
+        return start;
+    }
+
+    @Override
+    int end() {
+
+        return start + pattern.length();
+    }
+
+    @Override
+    String getPattern() {
+
+        return pattern;
+    }
+
+    @Override
+    boolean isRegex() {
+
+        return false;
+    }
+}
@@ -0,0 +1,373 @@
+package com.axway.ats.expectj;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * The text received from a spawn and not consumed by a match yet.
+ * <p>
+ * The text is kept in fixed size chunks. Consuming text only moves the head
+ * offset, and chunks are released once they are completely behind it, so
+ * nothing is ever shifted or copied. The buffer is itself the
+ * {@link CharSequence} that matchers search.
+ * <p>
+ * Positions are given two ways: as indexes relative to the head, like any
+ * {@link CharSequence}, and as absolute offsets counting every character the
+ * spawn has written since it started.
+ * <p>
+ * Views of the text share its chunks instead of copying them. Chunks are
+ * never written again once their text is appended, and the ones a view may
+ * still use are not reused, so a view stays valid after its text is
+ * consumed.
+ * <p>
+ * Not thread safe.
+ */
+class MatchBuffer implements CharSequence {
+    /**
+     * Chunks are 2^CHUNK_BITS characters long.
+     */
+    private static final int CHUNK_BITS = 12;
+
+    /**
+     * The number of characters in a chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * Finds the position of a character in its chunk.
+     */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * The live chunks are the ones from {@link #firstChunk} up to
+     * {@link #lastChunk}, excluded.
+     */
+    private char[][]         chunks     = new char[4][];
+
+    /**
+     * Index in {@link #chunks} of the chunk holding the head.
+     */
+    private int              firstChunk;
+
+    /**
+     * Index in {@link #chunks} after the last live chunk.
+     */
+    private int              lastChunk;
+
+    /**
+     * Absolute offset of the first character of the chunk at {@link #firstChunk}.
+     */
+    private long             firstChunkOffset;
+
+    /**
+     * Absolute offset of the first unconsumed character.
+     */
+    private long             head;
+
+    /**
+     * Absolute offset after the last character.
+     */
+    private long             tail;
+
+    /**
+     * A released chunk, kept for the next append.
+     */
+    private char[]           spareChunk;
+
+    /**
+     * Absolute offset after the end of the last view. Chunks holding text
+     * before it may be used by views and are not reused.
+     */
+    private long             viewEnd;
+
+    /**
+     * @return the absolute offset of the first unconsumed character
+     */
+    long getHead() {
+
+        return head;
+    }
+
+    /**
+     * @return the absolute offset after the last character received
+     */
+    long getTail() {
+
+        return tail;
+    }
+
+    /**
+     * Add a character at the end.
+     *
+     * @param c the character
+     */
+    void append(
+                 char c ) {
+
+        int offset = ( int ) ( tail & CHUNK_MASK );
+        if( offset == 0 ) {
+            addChunk();
+        }
+        chunks[lastChunk - 1][offset] = c;
+        tail++;
+    }
+
+    /**
+     * Add characters at the end.
+     *
+     * @param chars holds the characters
+     * @param start where the characters start in the array
+     * @param length how many characters to add
+     */
+    void append(
+                 char[] chars,
+                 int start,
+                 int length ) {
+
+        int done = 0;
+        while( done < length ) {
+            int offset = ( int ) ( tail & CHUNK_MASK );
+            if( offset == 0 ) {
+                addChunk();
+            }
+            int count = Math.min( length - done, CHUNK_SIZE - offset );
+            System.arraycopy( chars, start + done, chunks[lastChunk - 1], offset, count );
+            done += count;
+            tail += count;
+        }
+    }
+
+    /**
+     * Add characters at the end.
+     *
+     * @param chars the characters, read up to their limit
+     */
+    void append(
+                 CharBuffer chars ) {
+
+        while( chars.hasRemaining() ) {
+            int offset = ( int ) ( tail & CHUNK_MASK );
+            if( offset == 0 ) {
+                addChunk();
+            }
+            int count = Math.min( chars.remaining(), CHUNK_SIZE - offset );
+            chars.get( chunks[lastChunk - 1], offset, count );
+            tail += count;
+        }
+    }
+
+    /**
+     * Consume text from the head. The consumed text can't be accessed anymore.
+     *
+     * @param count how many characters to consume
+     */
+    void consume(
+                  int count ) {
+
+        if( count < 0 || count > length() ) {
+            throw new IndexOutOfBoundsException( "Can't consume " + count + " chars out of " + length() );
+        }
+        head += count;
+
+        // release the chunks we are done with
+        while( firstChunk < lastChunk && firstChunkOffset + CHUNK_SIZE <= head ) {
+            if( firstChunkOffset >= viewEnd ) {
+                spareChunk = chunks[firstChunk];
+            }
+            chunks[firstChunk++] = null;
+            firstChunkOffset += CHUNK_SIZE;
+        }
+    }
+
+    /**
+     * Copy part of the text into a string.
+     *
+     * @param from absolute offset of the first character, must not be before the head
+     * @param to absolute offset after the last character
+     * @return the text
+     */
+    String substring(
+                      long from,
+                      long to ) {
+
+        if( from < head || to > tail || from > to ) {
+            throw new IndexOutOfBoundsException( "Range " + from + "-" + to + " is not in " + head + "-"
+                                                 + tail );
+        }
+        char[] chars = new char[( int ) ( to - from )];
+        int done = 0;
+        long position = from;
+        while( position < to ) {
+            char[] chunk = chunks[firstChunk + ( int ) ( ( position - firstChunkOffset ) >>> CHUNK_BITS )];
+            int offset = ( int ) ( position & CHUNK_MASK );
+            int count = ( int ) Math.min( to - position, CHUNK_SIZE - offset );
+            System.arraycopy( chunk, offset, chars, done, count );
+            done += count;
+            position += count;
+        }
+        return new String( chars );
+    }
+
+    /**
+     * Get part of the text without copying it. The view stays valid when the
+     * text is consumed.
+     *
+     * @param from absolute offset of the first character, must not be before the head
+     * @param to absolute offset after the last character
+     * @return the text
+     */
+    CharSequence view(
+                       long from,
+                       long to ) {
+
+        if( from < head || to > tail || from > to ) {
+            throw new IndexOutOfBoundsException( "Range " + from + "-" + to + " is not in " + head + "-"
+                                                 + tail );
+        }
+        if( from == to ) {
+            return "";
+        }
+        int first = firstChunk + ( int ) ( ( from - firstChunkOffset ) >>> CHUNK_BITS );
+        int last = firstChunk + ( int ) ( ( to - 1 - firstChunkOffset ) >>> CHUNK_BITS );
+        viewEnd = Math.max( viewEnd, to );
+        return new View( Arrays.copyOfRange( chunks, first, last + 1 ),
+                         ( int ) ( from & CHUNK_MASK ),
+                         ( int ) ( to - from ) );
+    }
+
+    /**
+     * @return the number of unconsumed characters
+     */
+    public int length() {
+
+        return ( int ) ( tail - head );
+    }
+
+    /**
+     * @param index position relative to the head
+     * @return the character at that position
+     */
+    public char charAt(
+                        int index ) {
+
+        if( index < 0 || index >= tail - head ) {
+            throw new IndexOutOfBoundsException( "Index " + index + ", length " + length() );
+        }
+        long position = head + index;
+        return chunks[firstChunk + ( int ) ( ( position - firstChunkOffset ) >>> CHUNK_BITS )][( int ) ( position & CHUNK_MASK )];
+    }
+
+    /**
+     * @param start start position relative to the head
+     * @param end end position relative to the head
+     * @return a copy of the text between the two positions
+     */
+    public CharSequence subSequence(
+                                     int start,
+                                     int end ) {
+
+        return substring( head + start, head + end );
+    }
+
+    /**
+     * @return a copy of the unconsumed text
+     */
+    @Override
+    public String toString() {
+
+        return substring( head, tail );
+    }
+
+    private void addChunk() {
+
+        if( lastChunk == chunks.length ) {
+            // no room at the end, move the live chunks to the front of the
+            // array, or to a bigger one if more than half of it is in use
+            int liveChunks = lastChunk - firstChunk;
+            if( liveChunks * 2 > chunks.length ) {
+                char[][] newChunks = new char[chunks.length * 2][];
+                System.arraycopy( chunks, firstChunk, newChunks, 0, liveChunks );
+                chunks = newChunks;
+            } else {
+                System.arraycopy( chunks, firstChunk, chunks, 0, liveChunks );
+                Arrays.fill( chunks, liveChunks, chunks.length, null );
+            }
+            firstChunk = 0;
+            lastChunk = liveChunks;
+        }
+
+        if( spareChunk != null ) {
+            chunks[lastChunk++] = spareChunk;
+            spareChunk = null;
+        } else {
+            chunks[lastChunk++] = new char[CHUNK_SIZE];
+        }
+        if( firstChunk == lastChunk - 1 ) {
+            firstChunkOffset = tail & ~( long ) CHUNK_MASK;
+        }
+    }
+
+    /**
+     * Text held in chunks that are not written anymore.
+     */
+    private static class View implements CharSequence {
+
+        private final char[][] chunks;
+
+        /**
+         * Where the text starts in the first chunk.
+         */
+        private final int      offset;
+
+        private final int      length;
+
+        View( char[][] chunks,
+              int offset,
+              int length ) {
+
+            this.chunks = chunks;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int length() {
+
+            return length;
+        }
+
+        public char charAt(
+                            int index ) {
+
+            if( index < 0 || index >= length ) {
+                throw new IndexOutOfBoundsException( "Index " + index + ", length " + length );
+            }
+            int position = offset + index;
+            return chunks[position >>> CHUNK_BITS][position & CHUNK_MASK];
+        }
+
+        public CharSequence subSequence(
+                                         int start,
+                                         int end ) {
+
+            if( start < 0 || end > length || start > end ) {
+                throw new IndexOutOfBoundsException( "Range " + start + "-" + end + ", length " + length );
+            }
+            return new View( chunks, offset + start, end - start );
+        }
+
+        @Override
+        public String toString() {
+
+            char[] chars = new char[length];
+            int done = 0;
+            int position = offset;
+            while( done < length ) {
+                int count = Math.min( length - done, CHUNK_SIZE - ( position & CHUNK_MASK ) );
+                System.arraycopy( chunks[position >>> CHUNK_BITS], position & CHUNK_MASK, chars, done, count );
+                done += count;
+                position += count;
+            }
+            return new String( chars );
+        }
+    }
+}
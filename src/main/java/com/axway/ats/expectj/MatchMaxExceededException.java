@@ -0,0 +1,54 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+
+/**
+ * A {@link Spawn} set to fail when its match window is full received more
+ * unmatched text than allowed.
+ *
+ * @see Spawn#setMatchMax(int)
+ * @see Spawn#setFailOnMatchMax(boolean)
+ */
+public class MatchMaxExceededException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The limit that was exceeded.
+     */
+    private final int         matchMax;
+
+    /**
+     * How much unmatched text there was.
+     */
+    private final long        unmatchedLength;
+
+    /**
+     * @param matchMax the limit that was exceeded
+     * @param unmatchedLength how much unmatched text there was
+     */
+    MatchMaxExceededException( int matchMax,
+                               long unmatchedLength ) {
+
+        super( unmatchedLength + " characters arrived without a match, more than the match max of "
+               + matchMax );
+        this.matchMax = matchMax;
+        this.unmatchedLength = unmatchedLength;
+    }
+
+    /**
+     * @return the limit that was exceeded
+     */
+    public int getMatchMax() {
+
+        return matchMax;
+    }
+
+    /**
+     * @return how much unmatched text there was, in characters
+     */
+    public long getUnmatchedLength() {
+
+        return unmatchedLength;
+    }
+}
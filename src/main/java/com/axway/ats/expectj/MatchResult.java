@@ -0,0 +1,207 @@
+package com.axway.ats.expectj;
+
+/**
+ * The outcome of a successful expect operation.
+ * <p>
+ * The result keeps a view of the spawn's buffer, from the end of the previous
+ * match to the end of this one, and the positions of the match and its groups
+ * in it. Strings are only created when asked for, so getting the value of a
+ * group does not copy the whole output, and the result stays valid after
+ * later expects consume the text.
+ */
+public class MatchResult {
+    /**
+     * Index of the pattern that matched, 0 for single pattern operations.
+     */
+    private final int          patternIndex;
+
+    /**
+     * The pattern that matched.
+     */
+    private final String       pattern;
+
+    /**
+     * The unconsumed text when the match was found, up to the end of the match.
+     */
+    private final CharSequence text;
+
+    /**
+     * Absolute stream offset of the first character of {@link #text}.
+     */
+    private final long         textOffset;
+
+    /**
+     * Start and end of the match, then of each group, relative to
+     * {@link #text}, -1 for groups that did not take part in the match.
+     */
+    private final int[]        groups;
+
+    /**
+     * @param patternIndex index of the pattern that matched
+     * @param pattern the pattern that matched
+     * @param text the unconsumed text when the match was found, at least up
+     * to the end of the match and of its groups
+     * @param textOffset absolute stream offset of the first character of the text
+     * @param groups start and end of the match, then of each group, relative to the text
+     */
+    MatchResult( int patternIndex,
+                 String pattern,
+                 CharSequence text,
+                 long textOffset,
+                 int[] groups ) {
+
+        this.patternIndex = patternIndex;
+        this.pattern = pattern;
+        this.text = text;
+        this.textOffset = textOffset;
+        this.groups = groups;
+    }
+
+    /**
+     * @return the index of the pattern that matched in the list of expected
+     * patterns, 0 when only one pattern was expected
+     */
+    public int getPatternIndex() {
+
+        return patternIndex;
+    }
+
+    /**
+     * @return the pattern that matched
+     */
+    public String getPattern() {
+
+        return pattern;
+    }
+
+    /**
+     * @return the text that matched the pattern
+     */
+    public String getMatchedText() {
+
+        return group( 0 );
+    }
+
+    /**
+     * @return the text received between the end of the previous match and the
+     * start of this one
+     */
+    public String getTextBefore() {
+
+        return text.subSequence( 0, groups[0] ).toString();
+    }
+
+    /**
+     * @return the number of capturing groups of the pattern, 0 for plain text
+     * patterns
+     */
+    public int groupCount() {
+
+        return groups.length / 2 - 1;
+    }
+
+    /**
+     * @param group the index of a capturing group, 0 for the whole match
+     * @return the text captured by the group, or null if the group did not
+     * take part in the match
+     * @throws IndexOutOfBoundsException if there is no such group
+     */
+    public String group(
+                         int group ) {
+
+        checkGroup( group );
+        int start = groups[group * 2];
+        if( start == -1 ) {
+            return null;
+        }
+        return text.subSequence( start, groups[group * 2 + 1] ).toString();
+    }
+
+    /**
+     * Get the bytes of a group, for matches made by the byte pattern expects
+     * on spawns reading their output as ISO-8859-1.
+     *
+     * @param group the group, 0 for the whole match
+     * @return the bytes of the group, or null if it did not take part in the match
+     * @see Spawn#expectBytes(byte[], long)
+     */
+    public byte[] groupBytes(
+                              int group ) {
+
+        checkGroup( group );
+        int start = groups[group * 2];
+        if( start == -1 ) {
+            return null;
+        }
+        byte[] bytes = new byte[groups[group * 2 + 1] - start];
+        for( int i = 0; i < bytes.length; i++ ) {
+            bytes[i] = ( byte ) text.charAt( start + i );
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the absolute offset of the start of the match in everything the
+     * stream delivered since the spawn started
+     */
+    public long getStartOffset() {
+
+        return getStartOffset( 0 );
+    }
+
+    /**
+     * @return the absolute offset after the end of the match
+     */
+    public long getEndOffset() {
+
+        return getEndOffset( 0 );
+    }
+
+    /**
+     * @param group the index of a capturing group, 0 for the whole match
+     * @return the absolute offset of the start of the group, or -1 if the group
+     * did not take part in the match
+     * @throws IndexOutOfBoundsException if there is no such group
+     */
+    public long getStartOffset(
+                                int group ) {
+
+        checkGroup( group );
+        return toOffset( groups[group * 2] );
+    }
+
+    /**
+     * @param group the index of a capturing group, 0 for the whole match
+     * @return the absolute offset after the end of the group, or -1 if the
+     * group did not take part in the match
+     * @throws IndexOutOfBoundsException if there is no such group
+     */
+    public long getEndOffset(
+                              int group ) {
+
+        checkGroup( group );
+        return toOffset( groups[group * 2 + 1] );
+    }
+
+    private long toOffset(
+                           int position ) {
+
+        return position == -1
+                              ? -1
+                              : textOffset + position;
+    }
+
+    private void checkGroup(
+                             int group ) {
+
+        if( group < 0 || group > groupCount() ) {
+            throw new IndexOutOfBoundsException( "No group " + group + ", the pattern has " + groupCount() );
+        }
+    }
+
+    @Override
+    public String toString() {
+
+        return "[" + patternIndex + "] '" + pattern + "' matched '" + getMatchedText() + "'";
+    }
+}
@@ -0,0 +1,57 @@
+package com.axway.ats.expectj;
+
+/**
+ * Looks for any of several expected patterns in the text received from a
+ * {@link Spawn}.
+ * <p>
+ * When more than one pattern can be found in the text, the one coming first
+ * in the pattern list wins, no matter where in the text it is.
+ */
+abstract class MultiMatcher {
+
+    /**
+     * Look for the patterns in the given text.
+     *
+     * @param text the text received from the spawn and not consumed yet
+     * @param textOffset the position of the first character of the text in
+     * the whole output of the spawn
+     * @return the index of the found pattern, or -1 if none was found. When found,
+     * {@link #start()} and {@link #end()} tell where, relative to the given text
+     * @see BufferMatcher#find(CharSequence, long)
+     */
+    abstract int find(
+                       CharSequence text,
+                       long textOffset );
+
+    /**
+     * @return where the last match starts
+     */
+    abstract int start();
+
+    /**
+     * @return where the last match ends, the text up to here is consumed by the match
+     */
+    abstract int end();
+
+    /**
+     * @return the start and end of the last match, followed by the start and
+     * end of each of its groups, relative to the searched text. Groups that
+     * did not take part in the match are at -1
+     */
+    int[] groups() {
+
+        return new int[]{ start(), end() };
+    }
+
+    /**
+     * @return the number of patterns we look for
+     */
+    abstract int size();
+
+    /**
+     * @param index the index of a pattern
+     * @return the pattern, for logging purposes
+     */
+    abstract String getPattern(
+                                int index );
+}
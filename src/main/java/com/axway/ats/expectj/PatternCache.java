@@ -0,0 +1,173 @@
+package com.axway.ats.expectj;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A bounded, least recently used cache of the compiled regular expressions
+ * used by {@link Spawn}'s expect methods. The cache is shared by all spawns.
+ * <p>
+ * Regular expressions given as strings are compiled with
+ * {@link Pattern#DOTALL} and {@link Pattern#CASE_INSENSITIVE}, so the same
+ * string always maps to the same compiled pattern.
+ */
+public final class PatternCache {
+    /**
+     * The default number of patterns kept in the cache.
+     */
+    public static final int                   DEFAULT_MAX_SIZE = 512;
+
+    /**
+     * Flags used when compiling the regular expressions.
+     */
+    static final int                          FLAGS            = Pattern.DOTALL | Pattern.CASE_INSENSITIVE;
+
+    /**
+     * The compiled patterns, in access order.
+     */
+    private static final Map<String, Pattern> CACHE            = new LruMap();
+
+    /**
+     * Max number of patterns in the cache.
+     */
+    private static int                        maxSize          = DEFAULT_MAX_SIZE;
+
+    /**
+     * Number of lookups served from the cache.
+     */
+    private static long                       hits;
+
+    /**
+     * Number of lookups that had to compile the pattern.
+     */
+    private static long                       misses;
+
+    private PatternCache() {
+
+        // Only static methods here
+    }
+
+    /**
+     * A map that drops its least recently accessed entry when growing over
+     * {@link PatternCache#maxSize}.
+     */
+    private static class LruMap extends LinkedHashMap<String, Pattern> {
+
+        private static final long serialVersionUID = 1L;
+
+        LruMap() {
+
+            super( 16, 0.75f, true );
+        }
+
+        @Override
+        protected boolean removeEldestEntry(
+                                             Map.Entry<String, Pattern> eldest ) {
+
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Get the compiled version of a regular expression, compiling it only if it
+     * is not already cached.
+     *
+     * @param regex the regular expression
+     * @return the compiled pattern
+     */
+    static Pattern getPattern(
+                               String regex ) {
+
+        synchronized( CACHE ) {
+            Pattern pattern = CACHE.get( regex );
+            if( pattern != null ) {
+                hits++;
+                return pattern;
+            }
+            misses++;
+        }
+
+        // compile outside of the lock, two threads compiling the same pattern
+        // at the same time is harmless
+        Pattern pattern = Pattern.compile( regex, FLAGS );
+        synchronized( CACHE ) {
+            if( maxSize > 0 ) {
+                CACHE.put( regex, pattern );
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Set the max number of compiled patterns to keep. The least recently used
+     * patterns are evicted when the cache is full.
+     *
+     * @param size the new max size, 0 disables caching
+     */
+    public static void setMaxSize(
+                                   int size ) {
+
+        if( size < 0 ) {
+            throw new IllegalArgumentException( "Cache size must be >= 0, was " + size );
+        }
+        synchronized( CACHE ) {
+            maxSize = size;
+            while( CACHE.size() > maxSize ) {
+                CACHE.remove( CACHE.keySet().iterator().next() );
+            }
+        }
+    }
+
+    /**
+     * @return the max number of compiled patterns kept in the cache
+     */
+    public static int getMaxSize() {
+
+        synchronized( CACHE ) {
+            return maxSize;
+        }
+    }
+
+    /**
+     * @return the number of compiled patterns currently in the cache
+     */
+    public static int getSize() {
+
+        synchronized( CACHE ) {
+            return CACHE.size();
+        }
+    }
+
+    /**
+     * @return how many times a pattern was found in the cache
+     */
+    public static long getHitCount() {
+
+        synchronized( CACHE ) {
+            return hits;
+        }
+    }
+
+    /**
+     * @return how many times a pattern had to be compiled
+     */
+    public static long getMissCount() {
+
+        synchronized( CACHE ) {
+            return misses;
+        }
+    }
+
+    /**
+     * Drop all cached patterns and reset the statistics.
+     */
+    public static void clear() {
+
+        synchronized( CACHE ) {
+            CACHE.clear();
+            hits = 0;
+            misses = 0;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Runs many commands, one after the other, over one long-lived shell,
+ * instead of starting a process or an SSH session per command.
+ * <p>
+ * Each command is sent between two <code>printf</code>s writing unique
+ * marker lines, the second one with the exit status of the command. The
+ * output of the command is what comes between the markers. The markers are
+ * written in two halves, so an echo of the command line by a terminal never
+ * looks like a marker, and a command that timed out can't be mistaken for
+ * the next one.
+ * <p>
+ * The shell must understand <code>printf</code> and <code>$?</code>, like
+ * any POSIX shell. Commands must not read standard input, since the next
+ * lines sent are for the shell, redirect it from <code>/dev/null</code>
+ * when in doubt. Only standard out is collected, add
+ * <code>2&gt;&amp;1</code> to a command to get its errors as well.
+ * <p>
+ * Not thread safe, the commands of a shell run one at a time.
+ */
+public class PersistentShell {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger LOG      = Logger.getLogger( PersistentShell.class );
+
+    /**
+     * Tells the markers of this shell from the ones of other shells, and
+     * from text that happens to look like a marker.
+     */
+    private final String        prefix;
+
+    /**
+     * Numbers the commands, so each has its own markers.
+     */
+    private long                sequence;
+
+    /**
+     * The shell the commands are sent to.
+     */
+    private final Spawn         shell;
+
+    /**
+     * Take over a shell. It should have no command running, and is told not
+     * to echo its input nor to print prompts, if it is interactive.
+     *
+     * @param shell a spawned shell
+     * @throws IOException on IO trouble talking to the shell
+     * @throws TimeoutException if the shell doesn't answer within the
+     * spawn's default timeout
+     */
+    public PersistentShell( Spawn shell ) throws IOException, TimeoutException {
+
+        this.shell = shell;
+        this.prefix = "__EJ" + Long.toHexString( new SecureRandom().nextLong() & Long.MAX_VALUE );
+        // prompts and echo would end up in the output of the commands
+        shell.send( "stty -echo 2>/dev/null; PS1=''; PS2=''; PROMPT_COMMAND=''\n" );
+        run( "true" );
+    }
+
+    /**
+     * @return the shell the commands are sent to
+     */
+    public Spawn getSpawn() {
+
+        return shell;
+    }
+
+    /**
+     * Run a command, waiting for it the spawn's default timeout.
+     *
+     * @param command the command, a single line or several
+     * @return the output and exit status of the command
+     * @throws IOException on IO trouble talking to the shell
+     * @throws TimeoutException if the command doesn't finish in time
+     */
+    public CommandResult run(
+                              String command ) throws IOException, TimeoutException {
+
+        return run( command, shell.getDefaultTimeOutSeconds() );
+    }
+
+    /**
+     * Run a command.
+     * <p>
+     * After a timeout the shell can still be used, the output of the late
+     * command is skipped by the next one.
+     *
+     * @param command the command, a single line or several
+     * @param timeOutSeconds how long to wait for the command to finish, in
+     * seconds, -1 to wait forever
+     * @return the output and exit status of the command
+     * @throws IOException on IO trouble talking to the shell
+     * @throws TimeoutException if the command doesn't finish in time
+     */
+    public CommandResult run(
+                              String command,
+                              long timeOutSeconds ) throws IOException, TimeoutException {
+
+        long id = ++sequence;
+        String marker = prefix + "_" + id;
+        Pattern begin = Pattern.compile( Pattern.quote( marker + "_BEGIN" ) + "\r?\n" );
+        Pattern end = Pattern.compile( "\r?\n" + Pattern.quote( marker + "_END" ) + " (\\d+)\r?\n" );
+
+        LOG.debug( "Running '" + command + "'" );
+        // the end marker starts on a new line of its own, even if the output
+        // doesn't end with one, and that new line is not part of the output
+        shell.send( "printf '%s%s\\n' '" + prefix + "' '_" + id + "_BEGIN'\n" + command
+                    + "\nprintf '\\n%s%s %d\\n' '" + prefix + "' '_" + id + "_END' $?\n" );
+
+        long deadline = timeOutSeconds > 0
+                                           ? System.currentTimeMillis() + timeOutSeconds * 1000
+                                           : -1;
+        shell.expect( begin, timeOutSeconds );
+        MatchResult endMatch = shell.expect( end, secondsLeft( deadline, timeOutSeconds ) );
+        return new CommandResult( command, endMatch, Integer.parseInt( endMatch.group( 1 ) ) );
+    }
+
+    /**
+     * @return the timeout left until the deadline, at least a second
+     */
+    private static long secondsLeft(
+                                     long deadline,
+                                     long timeOutSeconds ) {
+
+        if( deadline == -1 ) {
+            return timeOutSeconds;
+        }
+        return Math.max( 1, ( deadline - System.currentTimeMillis() + 999 ) / 1000 );
+    }
+}
@@ -0,0 +1,212 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Carries a spawn's output through a {@link Pipe}, waiting for data with a
+ * {@link Selector}. This is the original design, kept as a fallback of the
+ * {@link DirectOutput}.
+ * <p>
+ * The characters go through the pipe as UTF-16, two bytes each. A write
+ * can end in the middle of a character, the rest of it is written first by
+ * the next write.
+ */
+class PipeOutput extends SpawnOutput {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger LOG          = Logger.getLogger( PipeOutput.class );
+
+    /**
+     * Size of the byte buffers on each side of the pipe.
+     */
+    private static final int    BUFFER_SIZE  = 8 * 1024;
+
+    /**
+     * The pipe the data goes through.
+     */
+    private final Pipe          pipe;
+
+    /**
+     * Tells when the source of the pipe has data.
+     */
+    private final Selector      selector;
+
+    /**
+     * Whether the sink of the pipe is in blocking mode. Only used by the writer.
+     */
+    private boolean             blockingSink = true;
+
+    /**
+     * The encoded characters being written. Only used by the writer.
+     */
+    private final ByteBuffer    outBytes     = ByteBuffer.allocate( BUFFER_SIZE );
+
+    /**
+     * The first byte of the next character was written already. Only used by
+     * the writer.
+     */
+    private boolean             halfWritten;
+
+    /**
+     * Bytes read but not decoded yet, in write mode. Only used by the reader.
+     */
+    private final ByteBuffer    inBytes      = ByteBuffer.allocate( BUFFER_SIZE );
+
+    /**
+     * @throws IOException if the pipe or the selector can't be opened
+     */
+    PipeOutput() throws IOException {
+
+        pipe = Pipe.open();
+        pipe.source().configureBlocking( false );
+        selector = Selector.open();
+        pipe.source().register( selector, SelectionKey.OP_READ );
+    }
+
+    /**
+     * @return the source of the pipe, in non-blocking mode, for callers that
+     * select on it with their own selector
+     */
+    Pipe.SourceChannel getChannel() {
+
+        return pipe.source();
+    }
+
+    @Override
+    int write(
+               CharBuffer data ) throws IOException {
+
+        if( blockingSink ) {
+            pipe.sink().configureBlocking( false );
+            blockingSink = false;
+        }
+        int count = 0;
+        while( data.hasRemaining() ) {
+            int chunk = Math.min( data.remaining(), BUFFER_SIZE / 2 );
+            int written = writeChunk( data );
+            count += written;
+            if( written < chunk ) {
+                // the pipe is full
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    void writeFully(
+                     CharBuffer data ) throws IOException {
+
+        if( !blockingSink ) {
+            pipe.sink().configureBlocking( true );
+            blockingSink = true;
+        }
+        while( data.hasRemaining() ) {
+            writeChunk( data );
+        }
+    }
+
+    /**
+     * Write the next characters, as many as fit in {@link #outBytes}.
+     *
+     * @param data the characters, advanced past the ones written completely
+     * @return the number of characters written completely
+     * @throws IOException on trouble writing to the pipe
+     */
+    private int writeChunk(
+                            CharBuffer data ) throws IOException {
+
+        outBytes.clear();
+        int count = Math.min( data.remaining(), BUFFER_SIZE / 2 );
+        for( int i = 0; i < count; i++ ) {
+            outBytes.putChar( data.get( data.position() + i ) );
+        }
+        outBytes.flip();
+
+        int written = 0;
+        if( halfWritten ) {
+            outBytes.position( 1 );
+            written = 1;
+        }
+        do {
+            written += pipe.sink().write( outBytes );
+        } while( blockingSink && outBytes.hasRemaining() );
+
+        halfWritten = written % 2 == 1;
+        data.position( data.position() + written / 2 );
+        return written / 2;
+    }
+
+    @Override
+    void closeSink() throws IOException {
+
+        pipe.sink().close();
+    }
+
+    @Override
+    int read(
+              CharBuffer buffer ) throws IOException {
+
+        if( !buffer.hasRemaining() ) {
+            return 0;
+        }
+        inBytes.limit( ( int ) Math.min( inBytes.capacity(), inBytes.position() + 2L * buffer.remaining() ) );
+        if( pipe.source().read( inBytes ) == -1 ) {
+            return -1;
+        }
+        inBytes.flip();
+        int count = 0;
+        while( inBytes.remaining() >= 2 ) {
+            buffer.put( inBytes.getChar() );
+            count++;
+        }
+        inBytes.compact();
+        return count;
+    }
+
+    @Override
+    boolean await(
+                   long timeoutMillis ) throws IOException {
+
+        selector.select( timeoutMillis );
+        boolean ready = !selector.selectedKeys().isEmpty();
+        selector.selectedKeys().clear();
+        return ready;
+    }
+
+    @Override
+    void wakeup() {
+
+        selector.wakeup();
+    }
+
+    @Override
+    void close() {
+
+        try {
+            pipe.sink().close();
+        } catch( IOException e ) {
+            LOG.warn( "Closing pipe sink failed", e );
+        }
+        try {
+            pipe.source().close();
+        } catch( IOException e ) {
+            LOG.warn( "Closing pipe source failed", e );
+        }
+        try {
+            selector.close();
+        } catch( IOException e ) {
+            // Cleaning up is a best effort operation, failures are
+            // logged but otherwise accepted.
+            LOG.warn( "Failed cleaning up after spawn done", e );
+        }
+    }
+}
@@ -3,6 +3,9 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 import org.apache.log4j.Logger;
 
@@ -18,6 +21,20 @@ public class ProcessSpawn extends AbstractSpawnable implements Spawnable {
      */
     private final static Logger LOG           = Logger.getLogger( ProcessSpawn.class );
 
+    /**
+     * <code>Process.onExit()</code>, or null before Java 9.
+     */
+    private static final Method ON_EXIT;
+    static {
+        Method onExit = null;
+        try {
+            onExit = Process.class.getMethod( "onExit" );
+        } catch( NoSuchMethodException e ) {
+            // Before Java 9, exits are noticed by the CloseWatcher
+        }
+        ON_EXIT = onExit;
+    }
+
     /**
      * The spawned process.
      */
@@ -87,6 +104,10 @@ public InputStream getStderr() {
      */
     public boolean isClosed() {
 
+        if( !processThread.isClosed && processThread.process != null && !processThread.process.isAlive() ) {
+            // asked before the exit was reported, report it now
+            processThread.exited();
+        }
         return processThread.isClosed;
     }
 
@@ -110,21 +131,26 @@ public Object getSystemObject() {
         return processThread.process;
     }
 
+    @Override
+    public String toString() {
+
+        return "process '" + processThread.executor + "'";
+    }
+
     /**
-     * This class is responsible for executing the process in a separate
-     * thread.
+     * This class is responsible for executing the process and noticing when
+     * it exits.
+     * <p>
+     * There is no thread per process: the exit is reported by
+     * <code>Process.onExit()</code> on Java 9 and later, and by the shared
+     * {@link CloseWatcher} before that.
      */
-    class ProcessThread implements Runnable {
+    class ProcessThread {
         /**
          * Process object for execution of the commandLine
          */
         private Process          process  = null;
 
-        /**
-         * Thread object to run this file
-         */
-        private Thread           thread   = null;
-
         /**
          * true if the process is done executing
          */
@@ -153,47 +179,75 @@ public ProcessThread( Executor executor ) {
         }
 
         /**
-         * This method spawns the thread and runs the process within the
-         * thread
+         * This method runs the process and starts watching for its exit
          * @throws IOException if process spawning fails
          */
         public void start() throws IOException {
 
             LOG.debug( "Starting process '" + executor + "'" );
-            thread = new Thread( this, "ExpectJ: " + executor );
             process = executor.execute();
-            thread.start();
+            if( ON_EXIT != null ) {
+                try {
+                    CompletableFuture<?> onExit = ( CompletableFuture<?> ) ON_EXIT.invoke( process );
+                    onExit.whenComplete( new BiConsumer<Object, Throwable>() {
+                        public void accept(
+                                            Object result,
+                                            Throwable failure ) {
+
+                            exited();
+                        }
+                    } );
+                    return;
+                } catch( Exception e ) {
+                    LOG.debug( "Process.onExit() failed, polling for the exit instead", e );
+                }
+            }
+            CloseWatcher.watch( new CloseWatcher.CloseCheck() {
+                public boolean isClosed() {
+
+                    return !process.isAlive();
+                }
+            }, new Runnable() {
+                public void run() {
+
+                    exited();
+                }
+            } );
         }
 
         /**
-         * Wait for the process to finish
+         * Record that the process finished, only the first call counts.
          */
-        public void run() {
-
-            try {
-                process.waitFor();
-                exitValue = process.exitValue();
+        private void exited() {
+
+            synchronized( this ) {
+                if( isClosed ) {
+                    return;
+                }
+                try {
+                    exitValue = process.exitValue();
+                } catch( IllegalThreadStateException e ) {
+                    LOG.error( "Failed waiting for process termination", e );
+                    return;
+                }
                 isClosed = true;
-                onClose();
-            } catch( Exception e ) {
-                LOG.error( "Failed waiting for process termination", e );
             }
+            onClose();
         }
 
         /**
-         * This method interrupts and stops the thread.
+         * This method kills the process and waits for it to finish.
          */
         public void stop() {
 
             LOG.debug( "Process '" + executor + "' killed" );
             process.destroy();
             try {
-                thread.join();
+                process.waitFor();
+                exited();
             } catch( InterruptedException e ) {
                 // Process should have died when calling process.destroy().
-                // After that, process.waitFor() should return, causing the
-                // run() method above to terminate.
-                LOG.error( "Interrupted waiting for process supervisor thread to finish", e );
+                LOG.error( "Interrupted waiting for process to finish", e );
             }
         }
     }
@@ -0,0 +1,232 @@
+package com.axway.ats.expectj;
+
+import java.nio.CharBuffer;
+
+/**
+ * A pool of heap char buffers shared by the read path of all {@link Spawn}s.
+ * Spawns read their output as decoded characters, a heap buffer lets them go
+ * straight into its array and from there into the {@link MatchBuffer}.
+ * <p>
+ * Buffers are kept in power of two size classes between {@link #MIN_BUFFER_SIZE}
+ * and {@link #MAX_BUFFER_SIZE} characters. A spawn takes one buffer out of the
+ * pool when it starts reading and puts it back when it is done, so a read loop
+ * that keeps going at a stable rate never allocates.
+ * <p>
+ * The hit and miss counters can be used to verify that the pool is doing its job:
+ * in steady state only the hit counter should move.
+ */
+public final class ReadBufferPool {
+    /**
+     * The smallest buffer ever handed out.
+     */
+    public static final int             MIN_BUFFER_SIZE        = 256;
+
+    /**
+     * The biggest buffer ever handed out.
+     */
+    public static final int             MAX_BUFFER_SIZE        = 64 * 1024;
+
+    /**
+     * The size of the first buffer used by a new spawn.
+     */
+    static final int                    INITIAL_BUFFER_SIZE    = 2 * 1024;
+
+    /**
+     * How many idle buffers we keep per size class.
+     */
+    private static final int            MAX_BUFFERS_PER_CLASS  = 64;
+
+    /**
+     * The only instance, shared by all spawns.
+     */
+    private static final ReadBufferPool INSTANCE               = new ReadBufferPool();
+
+    /**
+     * Idle buffers, indexed by size class.
+     */
+    private final CharBuffer[][]        freeBuffers;
+
+    /**
+     * Number of idle buffers in each size class.
+     */
+    private final int[]                 freeCounts;
+
+    /**
+     * Number of buffers taken from the pool.
+     */
+    private long                        hits;
+
+    /**
+     * Number of buffers we had to allocate because the pool was empty.
+     */
+    private long                        misses;
+
+    private ReadBufferPool() {
+
+        int classes = sizeClass( MAX_BUFFER_SIZE ) + 1;
+        freeBuffers = new CharBuffer[classes][MAX_BUFFERS_PER_CLASS];
+        freeCounts = new int[classes];
+    }
+
+    /**
+     * @return the pool shared by all spawns
+     */
+    static ReadBufferPool getInstance() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * @return how many times a buffer was served from the pool
+     */
+    public static long getHitCount() {
+
+        synchronized( INSTANCE ) {
+            return INSTANCE.hits;
+        }
+    }
+
+    /**
+     * @return how many times a buffer had to be allocated
+     */
+    public static long getMissCount() {
+
+        synchronized( INSTANCE ) {
+            return INSTANCE.misses;
+        }
+    }
+
+    /**
+     * Take a cleared buffer out of the pool.
+     *
+     * @param size the wanted capacity, will be rounded up to the next size class
+     * @return a buffer of at least the given size
+     */
+    CharBuffer acquire(
+                        int size ) {
+
+        int sizeClass = sizeClass( size );
+        synchronized( this ) {
+            if( freeCounts[sizeClass] > 0 ) {
+                hits++;
+                int index = --freeCounts[sizeClass];
+                CharBuffer buffer = freeBuffers[sizeClass][index];
+                freeBuffers[sizeClass][index] = null;
+                return buffer;
+            }
+            misses++;
+        }
+        return CharBuffer.allocate( MIN_BUFFER_SIZE << sizeClass );
+    }
+
+    /**
+     * Give a buffer back to the pool. The buffer must not be used by the caller
+     * afterwards.
+     *
+     * @param buffer a buffer obtained from {@link #acquire(int)}
+     */
+    void release(
+                  CharBuffer buffer ) {
+
+        buffer.clear();
+        int sizeClass = sizeClass( buffer.capacity() );
+        synchronized( this ) {
+            if( freeCounts[sizeClass] < MAX_BUFFERS_PER_CLASS ) {
+                freeBuffers[sizeClass][freeCounts[sizeClass]++] = buffer;
+            }
+        }
+    }
+
+    private static int sizeClass(
+                                  int size ) {
+
+        int sizeClass = 0;
+        while( ( MIN_BUFFER_SIZE << sizeClass ) < size && ( MIN_BUFFER_SIZE << sizeClass ) < MAX_BUFFER_SIZE ) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * A read buffer owned by one reader, sized after the amount of data
+     * the reader actually gets.
+     * <p>
+     * A read that fills the whole buffer makes the next buffer twice as big,
+     * while a long run of reads using less than a quarter of it makes the next
+     * one half as big. Between reads the buffer can be given back to the pool
+     * by {@link #release()}, only the size hint is remembered.
+     * <p>
+     * Not thread safe, meant to be used by one reader at a time.
+     */
+    static class AdaptiveBuffer {
+        /**
+         * After this many small reads in a row we shrink.
+         */
+        private static final int SHRINK_AFTER_READS = 16;
+
+        /**
+         * The buffer currently in use, or null if we hold nothing from the pool.
+         */
+        private CharBuffer       buffer;
+
+        /**
+         * The size of the next buffer we'll take from the pool.
+         */
+        private int              nextSize           = INITIAL_BUFFER_SIZE;
+
+        /**
+         * How many reads in a row used less than a quarter of the buffer.
+         */
+        private int              smallReads;
+
+        /**
+         * @return a cleared buffer to read into
+         */
+        CharBuffer get() {
+
+            if( buffer != null && buffer.capacity() != nextSize ) {
+                ReadBufferPool.getInstance().release( buffer );
+                buffer = null;
+            }
+            if( buffer == null ) {
+                buffer = ReadBufferPool.getInstance().acquire( nextSize );
+            }
+            buffer.clear();
+            return buffer;
+        }
+
+        /**
+         * Tell how much the last read got, so we can size the next buffer.
+         *
+         * @param charsRead the number of characters read into the buffer
+         * returned by {@link #get()}
+         */
+        void record(
+                     int charsRead ) {
+
+            int capacity = buffer.capacity();
+            if( charsRead >= capacity ) {
+                smallReads = 0;
+                nextSize = Math.min( capacity * 2, MAX_BUFFER_SIZE );
+            } else if( charsRead < capacity / 4 ) {
+                if( ++smallReads >= SHRINK_AFTER_READS ) {
+                    smallReads = 0;
+                    nextSize = Math.max( capacity / 2, MIN_BUFFER_SIZE );
+                }
+            } else {
+                smallReads = 0;
+            }
+        }
+
+        /**
+         * Give the current buffer back to the pool.
+         */
+        void release() {
+
+            if( buffer != null ) {
+                ReadBufferPool.getInstance().release( buffer );
+                buffer = null;
+            }
+        }
+    }
+}
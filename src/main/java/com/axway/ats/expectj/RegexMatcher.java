@@ -0,0 +1,184 @@
+package com.axway.ats.expectj;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Looks for a regular expression.
+ * <p>
+ * The search is incremental: match attempts are made one start position at a
+ * time, and an attempt that fails without reaching the end of the text can't
+ * succeed later, whatever data arrives. The matcher remembers the first
+ * position whose attempt did reach the end, and the next search starts there.
+ * For usual prompt patterns that is very close to the end of the text, so each
+ * new chunk of output is only looked at once.
+ * <p>
+ * Patterns whose attempts always run to the end of the text, like
+ * <code>a.*b</code> once an <code>a</code> was seen, keep the start position
+ * back. A max lookback can be set to give up on start positions that are too
+ * far behind the end of the text.
+ * <p>
+ * The regular expression is matched directly on the buffer, no copy is made.
+ */
+class RegexMatcher extends BufferMatcher {
+    /**
+     * The regular expression we look for.
+     */
+    private final Pattern pattern;
+
+    /**
+     * Our matcher, reused for all searches.
+     */
+    private Matcher       matcher;
+
+    /**
+     * Absolute stream offset of the first position where a match could
+     * still start.
+     */
+    private long          nextStart;
+
+    /**
+     * How many characters back from the end of the text we keep trying to
+     * start a match, or -1 for no limit.
+     */
+    private int           maxLookback = -1;
+
+    /**
+     * @param pattern the regular expression to look for
+     */
+    RegexMatcher( Pattern pattern ) {
+
+        this.pattern = pattern;
+    }
+
+    /**
+     * Give up on start positions that are more than the given number of
+     * characters behind the end of the text. Matches longer than this may be
+     * missed if their beginning arrived in an earlier chunk.
+     *
+     * @param maxLookback the max lookback in characters, or -1 for no limit
+     */
+    void setMaxLookback(
+                         int maxLookback ) {
+
+        this.maxLookback = maxLookback;
+    }
+
+    @Override
+    boolean find(
+                  CharSequence text,
+                  long textOffset ) {
+
+        return find( text, textOffset, text.length() );
+    }
+
+    /**
+     * Only the text up to the limit is searched, lookarounds and anchors
+     * still see what follows. An attempt failing before the limit fails in
+     * the whole text too, so the search can go on later in a longer text.
+     */
+    @Override
+    boolean find(
+                  CharSequence text,
+                  long textOffset,
+                  int limit ) {
+
+        if( matcher == null ) {
+            matcher = pattern.matcher( text );
+            // lookarounds and anchors must see the text outside of the region
+            matcher.useTransparentBounds( true );
+            matcher.useAnchoringBounds( false );
+        } else {
+            matcher.reset( text );
+        }
+
+        int from = ( int ) Math.max( 0, nextStart - textOffset );
+        int firstOpen = -1;
+        for( int i = from; i <= limit; i++ ) {
+            matcher.region( i, limit );
+            if( matcher.lookingAt() ) {
+                nextStart = textOffset + Math.max( matcher.end(), i + 1 );
+                return true;
+            }
+            if( firstOpen == -1 && matcher.hitEnd() ) {
+                // more data could turn this attempt into a match
+                firstOpen = i;
+            }
+        }
+
+        if( firstOpen == -1 ) {
+            firstOpen = Math.max( from, limit );
+        }
+        if( maxLookback >= 0 ) {
+            firstOpen = Math.max( firstOpen, limit - maxLookback );
+        }
+        nextStart = textOffset + firstOpen;
+        return false;
+    }
+
+    /**
+     * @return the matcher of the last successful search
+     */
+    Matcher getMatcher() {
+
+        return matcher;
+    }
+
+    @Override
+    int start() {
+
+        return matcher.start();
+    }
+
+    /**
+     * We expect the user provided a pattern that is targeting 1 group only, but
+     * just in case we will process the last matched group.
+     */
+    @Override
+    int end() {
+
+        int end = matcher.end( matcher.groupCount() );
+        if( end == -1 ) {
+            // the last group did not take part in the match
+            end = matcher.end();
+        }
+        return end;
+    }
+
+    @Override
+    int[] groups() {
+
+        return groups( matcher, 0, matcher.groupCount() );
+    }
+
+    /**
+     * @param matcher a matcher that just found a match
+     * @param first the group holding the whole match
+     * @param last the last group of the match
+     * @return the bounds of the groups, see {@link BufferMatcher#groups()}
+     */
+    static int[] groups(
+                         Matcher matcher,
+                         int first,
+                         int last ) {
+
+        int[] groups = new int[( last - first + 1 ) * 2];
+        for( int group = first; group <= last; group++ ) {
+            groups[( group - first ) * 2] = matcher.start( group );
+            groups[( group - first ) * 2 + 1] = matcher.end( group );
+        }
+        return groups;
+    }
+
+    @Override
+    String getPattern() {
+
+        return pattern.pattern();
+    }
+
+    @Override
+    boolean isRegex() {
+
+        return true;
+    }
+}
@@ -0,0 +1,71 @@
+package com.axway.ats.expectj;
+
+import java.util.List;
+
+/**
+ * Looks for several patterns by asking the matcher of each pattern in turn.
+ */
+class SequentialMultiMatcher extends MultiMatcher {
+    /**
+     * A matcher for each pattern.
+     */
+    private final List<BufferMatcher> matchers;
+
+    /**
+     * The matcher that found its pattern last.
+     */
+    private BufferMatcher             found;
+
+    /**
+     * @param matchers a matcher for each pattern, in priority order
+     */
+    SequentialMultiMatcher( List<BufferMatcher> matchers ) {
+
+        this.matchers = matchers;
+    }
+
+    @Override
+    int find(
+              CharSequence text,
+              long textOffset ) {
+
+        for( int i = 0; i < matchers.size(); i++ ) {
+            if( matchers.get( i ).find( text, textOffset ) ) {
+                found = matchers.get( i );
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int start() {
+
+        return found.start();
+    }
+
+    @Override
+    int end() {
+
+        return found.end();
+    }
+
+    @Override
+    int[] groups() {
+
+        return found.groups();
+    }
+
+    @Override
+    int size() {
+
+        return matchers.size();
+    }
+
+    @Override
+    String getPattern(
+                       int index ) {
+
+        return matchers.get( index ).getPattern();
+    }
+}
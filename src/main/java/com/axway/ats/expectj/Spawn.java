@@ -1,18 +1,32 @@
 package com.axway.ats.expectj;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.channels.Channels;
-import java.nio.channels.Pipe;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 import org.apache.log4j.Logger;
 
@@ -28,6 +42,17 @@ public class Spawn {
      */
     private final static Logger LOG                      = Logger.getLogger( Spawn.class );
 
+    /**
+     * How much {@link #sendFrom(ReadableByteChannel, boolean)} sends at a
+     * time, in bytes.
+     */
+    private static final int    SEND_CHUNK_SIZE          = 64 * 1024;
+
+    /**
+     * How long to wait for more echo once the data is sent, in milliseconds.
+     */
+    private static final long   ECHO_QUIET_MILLIS        = 1000;
+
     /** Default time out for expect commands */
     private long                m_lDefaultTimeOutSeconds = -1;
 
@@ -36,6 +61,12 @@ public class Spawn {
      */
     private BufferedWriter      toStdin                  = null;
 
+    /**
+     * Held while writing to the spawn's stdin, so what a feeder thread
+     * writes doesn't interleave with a send.
+     */
+    private final Object        stdinLock                = new Object();
+
     /**
      * This is what we're actually talking to.
      */
@@ -62,30 +93,80 @@ public class Spawn {
     private StreamPiper         interactErr              = null;
 
     /**
-     * Wait for data from spawn's stdout.
+     * Data from spawn's stdout.
+     */
+    private SpawnOutput         stdout;
+
+    /**
+     * Data from spawn's stderr, null if there is no stderr.
      */
-    private Selector            stdoutSelector;
+    private SpawnOutput         stderr;
 
     /**
-     * Wait for data from spawn's stderr.
+     * Guards {@link #doneWaitingForClose}. A lock rather than a monitor, so that
+     * waiting doesn't pin the carrier of a virtual thread.
      */
-    private Selector            stderrSelector;
+    private final ReentrantLock closeLock                = new ReentrantLock();
 
     /**
-     * This object will be notified on timer timeout or when the spawn we're
+     * This condition will be signalled on timer timeout or when the spawn we're
      * waiting for closes.
      */
-    private final Object        doneWaitingForClose      = new Object();
+    private final Condition     doneWaitingForClose      = closeLock.newCondition();
 
     /**
      * This is the piece of text we currently work with
      */
-    private StringBuilder       currentBuffer            = new StringBuilder();
+    private final MatchBuffer   currentBuffer            = new MatchBuffer();
+
+    /**
+     * Where the text that was in {@link #currentBuffer} right after the last
+     * match ends, as an absolute offset
+     */
+    private long                pendingToMatchEnd        = 0;
+
+    /**
+     * The result of the last successful expect
+     */
+    private volatile MatchResult lastMatch;
+
+    /**
+     * How many characters back from the end of the buffer a regular expression
+     * match may start, -1 means no limit
+     */
+    private volatile int        regexMaxLookback         = -1;
+
+    /**
+     * The most unmatched characters kept, -1 means no limit
+     */
+    private volatile int        matchMax                 = -1;
+
+    /**
+     * Whether an expect fails when {@link #matchMax} is exceeded, rather than
+     * forgetting the oldest text
+     */
+    private volatile boolean    failOnMatchMax           = false;
+
+    /**
+     * How many unmatched characters were dropped because of {@link #matchMax}
+     */
+    private volatile long       discardedCount           = 0;
+
+    /**
+     * Buffer used for reading from the spawn's channels, taken from the
+     * {@link ReadBufferPool} while we read.
+     */
+    private final ReadBufferPool.AdaptiveBuffer readBuffer = new ReadBufferPool.AdaptiveBuffer();
+
+    /**
+     * The encoding of the spawn's input and output.
+     */
+    private final Charset       charset;
 
     /**
-     * This is the piece of text after the last match
+     * The asynchronous facade of this spawn, created on first use.
      */
-    private StringBuilder       pendingToMatchBuffer     = new StringBuilder();
+    private AsyncSpawn          async;
 
     /**
      * Constructor
@@ -97,25 +178,42 @@ public class Spawn {
     Spawn( Spawnable spawn,
            long lDefaultTimeOutSeconds ) throws IOException {
 
+        this( spawn, lDefaultTimeOutSeconds, false, true, Charset.defaultCharset() );
+    }
+
+    /**
+     * Constructor
+     *
+     * @param spawn This is what we'll control.
+     * @param lDefaultTimeOutSeconds Default timeout for expect commands
+     * @param useStreamPump whether the spawn's output is read by the shared {@link StreamPump}
+     * @param useDirectDelivery whether the spawn's output is handed over in
+     * memory, see {@link DirectOutput}, rather than through a pipe
+     * @param charset the encoding of the spawn's input and output
+     * @throws IOException on trouble launching the spawn
+     */
+    Spawn( Spawnable spawn,
+           long lDefaultTimeOutSeconds,
+           boolean useStreamPump,
+           boolean useDirectDelivery,
+           Charset charset ) throws IOException {
+
         if( lDefaultTimeOutSeconds < -1 ) {
             throw new IllegalArgumentException( "Timeout must be >= -1, was " + lDefaultTimeOutSeconds );
         }
         m_lDefaultTimeOutSeconds = lDefaultTimeOutSeconds;
+        this.charset = charset;
 
-        slave = new SpawnableHelper( spawn, lDefaultTimeOutSeconds );
+        slave = new SpawnableHelper( spawn, lDefaultTimeOutSeconds, useStreamPump, useDirectDelivery, charset );
         slave.start();
         LOG.debug( "Spawned Process: " + spawn );
 
         if( slave.getStdin() != null ) {
-            toStdin = new BufferedWriter( new OutputStreamWriter( slave.getStdin() ) );
+            toStdin = new BufferedWriter( new OutputStreamWriter( slave.getStdin(), charset ) );
         }
 
-        stdoutSelector = Selector.open();
-        slave.getStdoutChannel().register( stdoutSelector, SelectionKey.OP_READ );
-        if( slave.getStderrChannel() != null ) {
-            stderrSelector = Selector.open();
-            slave.getStderrChannel().register( stderrSelector, SelectionKey.OP_READ );
-        }
+        stdout = slave.getOutput();
+        stderr = slave.getErrorOutput();
     }
 
     /**
@@ -124,12 +222,23 @@ public class Spawn {
     private synchronized void timerTimedOut() {
 
         continueReading = false;
-        stdoutSelector.wakeup();
-        if( stderrSelector != null ) {
-            stderrSelector.wakeup();
+        stdout.wakeup();
+        if( stderr != null ) {
+            stderr.wakeup();
         }
-        synchronized( doneWaitingForClose ) {
-            doneWaitingForClose.notify();
+        signalDoneWaitingForClose();
+    }
+
+    /**
+     * Wake up {@link #expectClose(long)}.
+     */
+    private void signalDoneWaitingForClose() {
+
+        closeLock.lock();
+        try {
+            doneWaitingForClose.signalAll();
+        } finally {
+            closeLock.unlock();
         }
     }
 
@@ -142,12 +251,126 @@ private void timerInterrupted() {
         timerTimedOut();
     }
 
+    /**
+     * Regular expressions are matched incrementally: when new data arrives the
+     * search resumes at the first position where a match could still start.
+     * For patterns that can match arbitrary long text, like <code>a.*b</code>,
+     * that position may stay far behind, making each search slower as output
+     * accumulates. This limits how far back from the end of the unmatched
+     * output a match may start.
+     * <p>
+     * Matches longer than the limit can be missed, so it should be set well
+     * above the length of the longest text the patterns are meant to match.
+     *
+     * @param maxLookback the max lookback in characters, -1 for no limit (the default)
+     */
+    public void setRegexMaxLookback(
+                                     int maxLookback ) {
+
+        if( maxLookback < -1 ) {
+            throw new IllegalArgumentException( "Max lookback must be >= -1, was " + maxLookback );
+        }
+        this.regexMaxLookback = maxLookback;
+    }
+
+    /**
+     * @return the max lookback for regular expression matches, -1 means no limit
+     * @see #setRegexMaxLookback(int)
+     */
+    public int getRegexMaxLookback() {
+
+        return regexMaxLookback;
+    }
+
+    /**
+     * Limit how much unmatched text is kept, like <code>match_max</code> of
+     * Tcl expect. Without a limit, an expect waiting for a pattern that never
+     * comes keeps all the output in memory, and each search gets slower.
+     * <p>
+     * When a search finds nothing and the unmatched text is longer than the
+     * limit, the oldest text is dropped, or the expect fails, see
+     * {@link #setFailOnMatchMax(boolean)}. The limit is applied after each
+     * search, so the text searched may exceed it by the size of one read.
+     * Patterns longer than the limit can be missed.
+     *
+     * @param max the most characters kept, -1 for no limit (the default)
+     * @see #getDiscardedCount()
+     */
+    public void setMatchMax(
+                             int max ) {
+
+        if( max < -1 ) {
+            throw new IllegalArgumentException( "Match max must be >= -1, was " + max );
+        }
+        this.matchMax = max;
+    }
+
+    /**
+     * @return the most unmatched characters kept, -1 means no limit
+     * @see #setMatchMax(int)
+     */
+    public int getMatchMax() {
+
+        return matchMax;
+    }
+
+    /**
+     * Choose what happens when the match max is exceeded. By default the
+     * oldest text is dropped and the expect goes on. When failing, the expect
+     * throws a {@link MatchMaxExceededException}, after dropping the oldest
+     * text too.
+     *
+     * @param fail true to fail the expect
+     * @see #setMatchMax(int)
+     */
+    public void setFailOnMatchMax(
+                                   boolean fail ) {
+
+        this.failOnMatchMax = fail;
+    }
+
+    /**
+     * @return true if exceeding the match max fails the expect
+     * @see #setFailOnMatchMax(boolean)
+     */
+    public boolean isFailingOnMatchMax() {
+
+        return failOnMatchMax;
+    }
+
+    /**
+     * @return how many unmatched characters were dropped because of the
+     * match max, since the spawn started. These are bytes for spawns reading
+     * their output as ISO-8859-1
+     * @see #setMatchMax(int)
+     */
+    public long getDiscardedCount() {
+
+        return discardedCount;
+    }
+
     /**
      * @return the content after the last match
      */
     public String getPendingToMatchContent() {
 
-        return this.pendingToMatchBuffer.toString();
+        long head = currentBuffer.getHead();
+        if( pendingToMatchEnd <= head ) {
+            return "";
+        }
+        return currentBuffer.substring( head, pendingToMatchEnd );
+    }
+
+    /**
+     * Get the result of the last successful expect, the way to get the details
+     * of a match found by {@link #expectAny(List, boolean, long)} or
+     * {@link #expectAll(List, boolean, long)}.
+     *
+     * @return the last match, or null if nothing matched yet
+     */
+    public MatchResult getLastMatch() {
+
+        return lastMatch;
     }
 
     /**
@@ -155,15 +378,45 @@ public String getPendingToMatchContent() {
      * @param pattern The case-insensitive substring to match against.
      * @param isRegex weather the pattern is regular expression or plain text.
      * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     */
+    public MatchResult expect(
+                               String pattern,
+                               boolean isRegex,
+                               long timeOutSeconds ) throws IOException, TimeoutException {
+
+        return expect( newMatcher( pattern, isRegex ), timeOutSeconds, stdout );
+    }
+
+    /**
+     * Wait for a precompiled regular expression to appear on standard out.
+     * @param pattern The regular expression to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     */
+    public MatchResult expect(
+                               Pattern pattern,
+                               long timeOutSeconds ) throws IOException, TimeoutException {
+
+        return expect( newMatcher( pattern ), timeOutSeconds, stdout );
+    }
+
+    /**
+     * Wait the default timeout for a precompiled regular expression to appear
+     * on standard out.
+     * @param pattern The regular expression to match against.
+     * @return the match
      * @throws IOException on IO trouble waiting for pattern
      * @throws TimeoutException on timeout waiting for pattern
      */
-    public void expect(
-                        String pattern,
-                        boolean isRegex,
-                        long timeOutSeconds ) throws IOException, TimeoutException {
+    public MatchResult expect(
+                               Pattern pattern ) throws IOException, TimeoutException {
 
-        expect( pattern, isRegex, timeOutSeconds, stdoutSelector );
+        return expect( pattern, m_lDefaultTimeOutSeconds );
     }
 
     /**
@@ -188,9 +441,7 @@ public void expectClose(
         slave.setCloseListener( new Spawnable.CloseListener() {
             public void onClose() {
 
-                synchronized( doneWaitingForClose ) {
-                    doneWaitingForClose.notify();
-                }
+                signalDoneWaitingForClose();
             }
         } );
         if( timeOutSeconds != -1 ) {
@@ -210,7 +461,8 @@ public void timerInterrupted(
         }
         continueReading = true;
         boolean closed = false;
-        synchronized( doneWaitingForClose ) {
+        closeLock.lock();
+        try {
             while( continueReading ) {
                 // Sleep if process is still running
                 if( slave.isClosed() ) {
@@ -218,12 +470,17 @@ public void timerInterrupted(
                     break;
                 } else {
                     try {
-                        doneWaitingForClose.wait( 500 );
+                        // we are signalled on close and on timeout, the
+                        // periodic check is only a safety net for spawnables
+                        // that neither call onClose() nor end their output
+                        doneWaitingForClose.await( 500, TimeUnit.MILLISECONDS );
                     } catch( InterruptedException e ) {
                         throw new ExpectJException( "Interrupted waiting for spawn to finish", e );
                     }
                 }
             }
+        } finally {
+            closeLock.unlock();
         }
         if( tm != null ) {
             tm.close();
@@ -246,7 +503,7 @@ public void timerInterrupted(
     /**
      * Free up system resources.
      */
-    private void freeResources() {
+    void freeResources() {
 
         slave.close();
         if( interactIn != null ) {
@@ -258,22 +515,6 @@ private void freeResources() {
         if( interactErr != null ) {
             interactErr.stopProcessing();
         }
-        if( stderrSelector != null ) {
-            try {
-                stderrSelector.close();
-            } catch( IOException e ) {
-                // Cleaning up is a best effort operation, failures are
-                // logged but otherwise accepted.
-                LOG.warn( "Failed cleaning up after spawn done", e );
-            }
-        }
-        if( stdoutSelector != null ) {
-            try {
-                stdoutSelector.close();
-            } catch( IOException e ) {
-                LOG.warn( "Failed cleaning up after spawn done", e );
-            }
-        }
         if( toStdin != null ) {
             try {
                 toStdin.close();
@@ -298,80 +539,76 @@ public void expectClose() throws ExpectJException, TimeoutException {
 
     /**
      * Workhorse of the expect() and expectErr() methods.
-     * @see #expect(String, long)
-     * @param pattern What to look for
-     * @param isRegex weather the pattern is regular expression or plain text
+     * @see #expect(String, boolean, long)
+     * @param matcher What to look for
      * @param lTimeOutSeconds How long to look before giving up
-     * @param selector A selector covering only the channel we should read from
+     * @param output The output we should read from
+     * @return the match
      * @throws IOException on IO trouble waiting for pattern
      * @throws TimeoutException on timeout waiting for pattern
      */
-    private void expect(
-                         String pattern,
-                         boolean isRegex,
-                         long lTimeOutSeconds,
-                         Selector selector ) throws IOException, TimeoutException {
+    private MatchResult expect(
+                                BufferMatcher matcher,
+                                long lTimeOutSeconds,
+                                SpawnOutput output ) throws IOException, TimeoutException {
 
         if( lTimeOutSeconds < -1 ) {
             throw new IllegalArgumentException( "Timeout must be >= -1, was " + lTimeOutSeconds );
         }
 
-        if( selector.keys().size() != 1 ) {
-            throw new IllegalArgumentException( "Selector key set size must be 1, was "
-                                                + selector.keys().size() );
-        }
-        // If this cast fails somebody gave us the wrong selector.
-        Pipe.SourceChannel readMe = ( Pipe.SourceChannel ) ( selector.keys().iterator().next() ).channel();
-
         // tell user our expectations
-        LOG.info( "Expecting to match the following " + ( isRegex
-                                                                 ? "regex "
-                                                                 : "" ) + "pattern:\n" + pattern );
+        LOG.info( "Expecting to match the following " + ( matcher.isRegex()
+                                                                           ? "regex "
+                                                                           : "" ) + "pattern:\n" + matcher.getPattern() );
 
         // it is possible that the pattern we search for now, is already
         // available
-        if( findMatchInInternalBuffer( pattern, isRegex ) ) {
+        MatchResult found = findMatchInInternalBuffer( matcher );
+        if( found != null ) {
             LOG.debug( "The expected pattern was already read" );
-            return;
+            return found;
         }
 
         continueReading = true;
-        boolean found = false;
         Date runUntil = null;
         if( lTimeOutSeconds > 0 ) {
             runUntil = new Date( new Date().getTime() + lTimeOutSeconds * 1000 );
         }
-        while( continueReading ) {
-            if( runUntil == null ) {
-                selector.select();
-            } else {
-                long msLeft = runUntil.getTime() - new Date().getTime();
-                if( msLeft > 0 ) {
-                    selector.select( msLeft );
+        try {
+            while( continueReading ) {
+                boolean ready;
+                if( runUntil == null ) {
+                    ready = output.await( 0 );
                 } else {
-                    LOG.debug( "no more wait time" );
-                    continueReading = false;
-                    break;
+                    long msLeft = runUntil.getTime() - new Date().getTime();
+                    if( msLeft > 0 ) {
+                        ready = output.await( msLeft );
+                    } else {
+                        LOG.debug( "no more wait time" );
+                        continueReading = false;
+                        break;
+                    }
                 }
-            }
 
-            if( selector.selectedKeys().size() == 0 ) {
-                // Woke up with nothing selected, try again
-                LOG.debug( "Woke up with nothing selected, try again" );
-                continue;
-            }
+                if( !ready ) {
+                    // Woke up with nothing selected, try again
+                    LOG.debug( "Woke up with nothing selected, try again" );
+                    continue;
+                }
 
-            readFromPipeAndPutInInternalBuffer( readMe );
+                readFromPipeAndPutInInternalBuffer( output );
 
-            found = findMatchInInternalBuffer( pattern, isRegex );
-            if( found ) {
-                break;
+                found = findMatchInInternalBuffer( matcher );
+                if( found != null ) {
+                    return found;
+                }
+                applyMatchMax();
             }
+        } finally {
+            readBuffer.release();
         }
 
-        if( !continueReading ) {
-            throw new TimeoutException( "Timeout trying to match '" + pattern + "'" );
-        }
+        throw new TimeoutException( "Timeout trying to match '" + matcher.getPattern() + "'" );
     }
 
     /**
@@ -380,44 +617,178 @@ private void expect(
      * @param pattern The case-insensitive substring to match against.
      * @param isRegex weather the pattern is regular expression or plain text.
      * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match
      * @throws TimeoutException on timeout waiting for pattern
      * @throws IOException on IO trouble waiting for pattern
      */
-    public void expectErr(
-                           String pattern,
-                           boolean isRegex,
-                           long timeOutSeconds ) throws IOException, TimeoutException {
+    public MatchResult expectErr(
+                                  String pattern,
+                                  boolean isRegex,
+                                  long timeOutSeconds ) throws IOException, TimeoutException {
+
+        return expect( newMatcher( pattern, isRegex ), timeOutSeconds, stderr );
+    }
+
+    /**
+     * Wait for a precompiled regular expression to appear on standard error.
+     * @see #expect(Pattern, long)
+     * @param pattern The regular expression to match against.
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IOException on IO trouble waiting for pattern
+     */
+    public MatchResult expectErr(
+                                  Pattern pattern,
+                                  long timeOutSeconds ) throws IOException, TimeoutException {
+
+        return expect( newMatcher( pattern ), timeOutSeconds, stderr );
+    }
+
+    /**
+     * Wait the default timeout for a precompiled regular expression to appear
+     * on standard error.
+     * @param pattern The regular expression to match against.
+     * @return the match
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IOException on IO trouble waiting for pattern
+     */
+    public MatchResult expectErr(
+                                  Pattern pattern ) throws IOException, TimeoutException {
 
-        expect( pattern, isRegex, timeOutSeconds, stderrSelector );
+        return expectErr( pattern, m_lDefaultTimeOutSeconds );
     }
 
     /**
      * Wait for a pattern to appear on standard out.
      * @param pattern The case-insensitive substring to match against.
      * @param isRegex weather the pattern is regular expression or plain text.
+     * @return the match
      * @throws TimeoutException on timeout waiting for pattern
      * @throws IOException on IO trouble waiting for pattern
      */
-    public void expect(
-                        String pattern,
-                        boolean isRegex ) throws IOException, TimeoutException {
+    public MatchResult expect(
+                               String pattern,
+                               boolean isRegex ) throws IOException, TimeoutException {
 
-        expect( pattern, isRegex, m_lDefaultTimeOutSeconds );
+        return expect( pattern, isRegex, m_lDefaultTimeOutSeconds );
     }
 
     /**
      * Wait for a pattern to appear on standard error.
      * @param pattern The case-insensitive substring to match against.
      * @param isRegex weather the pattern is regular expression or plain text.
+     * @return the match
      * @throws TimeoutException on timeout waiting for pattern
      * @throws IOException on IO trouble waiting for pattern
      * @see #expect(String, boolean)
      */
-    public void expectErr(
-                           String pattern,
-                           boolean isRegex ) throws IOException, TimeoutException {
+    public MatchResult expectErr(
+                                  String pattern,
+                                  boolean isRegex ) throws IOException, TimeoutException {
+
+        return expectErr( pattern, isRegex, m_lDefaultTimeOutSeconds );
+    }
+
+    /**
+     * Wait for a sequence of bytes to appear on standard out.
+     * <p>
+     * Byte patterns need a spawn reading its output as ISO-8859-1, see
+     * {@link ExpectJ#setCharset(java.nio.charset.Charset)}. Each byte of the
+     * output is then one character of the buffer, 0 bytes included, and
+     * reading it is a plain copy with no decoding. Regular expressions given
+     * to {@link #expect(Pattern, long)} then work on bytes too, with
+     * <code>\xhh</code> escapes.
+     *
+     * @param pattern the bytes to look for, compared exactly
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match, see {@link MatchResult#groupBytes(int)}
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IllegalStateException if the spawn's output is not read as ISO-8859-1
+     */
+    public MatchResult expectBytes(
+                                    byte[] pattern,
+                                    long timeOutSeconds ) throws IOException, TimeoutException {
+
+        checkByteMode();
+        return expect( new BytesMatcher( pattern ), timeOutSeconds, stdout );
+    }
+
+    /**
+     * Wait the default timeout for a sequence of bytes to appear on standard out.
+     *
+     * @param pattern the bytes to look for, compared exactly
+     * @return the match, see {@link MatchResult#groupBytes(int)}
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IllegalStateException if the spawn's output is not read as ISO-8859-1
+     * @see #expectBytes(byte[], long)
+     */
+    public MatchResult expectBytes(
+                                    byte[] pattern ) throws IOException, TimeoutException {
+
+        return expectBytes( pattern, m_lDefaultTimeOutSeconds );
+    }
+
+    /**
+     * Wait for any of the given sequences of bytes to appear on standard out.
+     *
+     * @param patterns the bytes to look for, compared exactly
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match, {@link MatchResult#getPatternIndex()} tells which
+     * pattern was found
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws ExpectJException on timeout waiting for the patterns
+     * @throws IllegalStateException if the spawn's output is not read as ISO-8859-1
+     * @see #expectBytes(byte[], long)
+     */
+    public MatchResult expectAnyBytes(
+                                       List<byte[]> patterns,
+                                       long timeOutSeconds ) throws IOException, ExpectJException {
+
+        checkByteMode();
+        List<BufferMatcher> matchers = new ArrayList<BufferMatcher>( patterns.size() );
+        for( byte[] pattern : patterns ) {
+            matchers.add( new BytesMatcher( pattern ) );
+        }
+        expectAny( new SequentialMultiMatcher( matchers ), false, timeOutSeconds, stdout );
+        return lastMatch;
+    }
+
+    /**
+     * Wait for bytes matching a glob to appear on standard out. <code>*</code>
+     * matches any number of bytes, as few as possible, <code>?</code> one
+     * byte and <code>[...]</code> one of a set of bytes. A backslash escapes
+     * the next character and <code>\xhh</code> is the byte with the hex
+     * value <code>hh</code>, so <code>\x02*\x03</code> finds a frame
+     * between STX and ETX. The match is case sensitive.
+     *
+     * @param glob the glob
+     * @param timeOutSeconds The timeout in seconds before the match fails.
+     * @return the match, see {@link MatchResult#groupBytes(int)}
+     * @throws IOException on IO trouble waiting for pattern
+     * @throws TimeoutException on timeout waiting for pattern
+     * @throws IllegalStateException if the spawn's output is not read as ISO-8859-1
+     * @see #expectBytes(byte[], long)
+     */
+    public MatchResult expectBytesGlob(
+                                        String glob,
+                                        long timeOutSeconds ) throws IOException, TimeoutException {
+
+        checkByteMode();
+        return expect( newMatcher( BytesMatcher.globToPattern( glob ) ), timeOutSeconds, stdout );
+    }
+
+    /**
+     * @throws IllegalStateException if our output is not read byte by byte
+     */
+    private void checkByteMode() {
 
-        expectErr( pattern, isRegex, m_lDefaultTimeOutSeconds );
+        if( !StandardCharsets.ISO_8859_1.equals( charset ) ) {
+            throw new IllegalStateException( "Byte patterns need a spawn reading its output as ISO-8859-1, this one uses "
+                                             + charset );
+        }
     }
 
     /**
@@ -452,74 +823,580 @@ public void send(
                       String string ) throws IOException {
 
         LOG.debug( "Sending '" + string + "'" );
-        toStdin.write( string );
-        toStdin.flush();
+        synchronized( stdinLock ) {
+            toStdin.write( string );
+            toStdin.flush();
+        }
     }
 
     public void sendEnterKey() throws IOException {
 
         LOG.debug( "Sending 'ENTER'" );
-        toStdin.write( '\n' );
-        toStdin.flush();
+        synchronized( stdinLock ) {
+            toStdin.write( '\n' );
+            toStdin.flush();
+        }
     }
 
     /**
-     * Allows the user to interact with the spawned process.
+     * Feed the content of a file to the standard input of the spawned
+     * process.
+     *
+     * @param file the file to send
+     * @throws IOException on IO trouble reading the file or talking to spawn
+     * @see #sendFrom(ReadableByteChannel, boolean)
      */
-    public void interact() {
+    public void sendFrom(
+                          Path file ) throws IOException {
 
-        // FIXME: User input is echoed twice on the screen
-        interactIn = new StreamPiper( null, System.in, slave.getStdin() );
-        interactIn.start();
-        interactOut = new StreamPiper( null, Channels.newInputStream( slave.getStdoutChannel() ), System.out );
-        interactOut.start();
-        interactErr = new StreamPiper( null, Channels.newInputStream( slave.getStderrChannel() ), System.err );
-        interactErr.start();
-        slave.stopPipingToStandardOut();
+        sendFrom( file, false );
     }
 
     /**
-     * This method kills the process represented by SpawnedProcess object.
+     * Feed the content of a file to the standard input of the spawned
+     * process.
+     *
+     * @param file the file to send
+     * @param stripEcho whether to keep the echo of the file out of what is
+     * matched by the next expects
+     * @throws IOException on IO trouble reading the file or talking to spawn
+     * @see #sendFrom(ReadableByteChannel, boolean)
      */
-    public void stop() {
+    public void sendFrom(
+                          Path file,
+                          boolean stripEcho ) throws IOException {
+
+        FileChannel channel = FileChannel.open( file, StandardOpenOption.READ );
+        try {
+            sendFrom( channel, stripEcho );
+        } finally {
+            channel.close();
+        }
+    }
 
-        slave.stop();
+    /**
+     * Feed everything a channel has to the standard input of the spawned
+     * process.
+     *
+     * @param source where to read the data to send, until its end
+     * @throws IOException on IO trouble reading the channel or talking to spawn
+     * @see #sendFrom(ReadableByteChannel, boolean)
+     */
+    public void sendFrom(
+                          ReadableByteChannel source ) throws IOException {
 
-        freeResources();
+        sendFrom( source, false );
     }
 
-    public Object getSystemObject() {
+    /**
+     * Feed everything a channel has to the standard input of the spawned
+     * process.
+     * <p>
+     * The bytes are sent as they are, in chunks of bounded size, so the data
+     * is never all in memory. They are copied through a buffer of ours, and
+     * from a file to a spawn whose input is a plain file stream they are
+     * left to {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * instead, which the system may do without copying them into the JVM.
+     * The input of a process is buffered by the JVM, so the bytes sent to a
+     * process are always copied. A helper thread writes, waiting while the
+     * spawn doesn't keep up, and the calling thread reads what the spawn
+     * prints meanwhile into the match buffer, so a spawn echoing its input
+     * can't block us. Unless {@link #setMatchMax(int) a match max} is set
+     * the match buffer keeps that output, and so does the transcript unless
+     * it has {@link Transcript#setDefaultMemoryLimit(long) a memory limit}.
+     * <p>
+     * With <code>stripEcho</code> the echo of the data is left out of the
+     * match buffer, it is still in the transcript. The echo is taken out as
+     * long as the output is the data sent, and after the data is sent we
+     * wait for the rest of the echo until the spawn is quiet for a second.
+     * <p>
+     * If reading the output fails, the data is only partly sent: the helper
+     * thread stops after the chunk it is writing, and we keep reading the
+     * output for up to a second while it finishes that chunk. If the calling
+     * thread is interrupted the helper thread stops the same way, without us
+     * waiting. A later send waits for the end of that chunk.
+     *
+     * @param source where to read the data to send, until its end
+     * @param stripEcho whether to keep the echo of the data out of what is
+     * matched by the next expects
+     * @throws IOException on IO trouble reading the channel or talking to spawn
+     */
+    public void sendFrom(
+                          ReadableByteChannel source,
+                          boolean stripEcho ) throws IOException {
+
+        final EchoFilter echo = stripEcho
+                                          ? new EchoFilter( charset )
+                                          : null;
+        StdinFeeder feeder = startFeeder( source, echo );
+        try {
+            // the spawn may wait for its output to be read before it reads
+            // more input, so we read while the feeder writes
+            boolean ended = false;
+            while( !feeder.done && !ended ) {
+                if( stdout.await( 0 ) ) {
+                    ended = drainStdout( echo );
+                } else if( Thread.interrupted() ) {
+                    throw new InterruptedException();
+                }
+            }
+            feeder.thread.join();
+            if( feeder.failure != null ) {
+                throw feeder.failure;
+            }
+            LOG.debug( "Sent " + feeder.total + " bytes" );
 
-        return slave.getSystemObject();
+            // the end of the echo may still be on its way
+            long quietSince = System.currentTimeMillis();
+            while( !ended && echo != null && echo.isPending() ) {
+                long quietMillis = System.currentTimeMillis() - quietSince;
+                if( quietMillis >= ECHO_QUIET_MILLIS ) {
+                    break;
+                }
+                // a wakeup left by the feeder can end the wait early
+                if( stdout.await( ECHO_QUIET_MILLIS - quietMillis ) ) {
+                    ended = drainStdout( echo );
+                    quietSince = System.currentTimeMillis();
+                } else if( Thread.interrupted() ) {
+                    throw new InterruptedException();
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while sending to the spawn" );
+        } finally {
+            if( !feeder.done ) {
+                stopFeeder( feeder );
+            }
+            readBuffer.release();
+        }
     }
 
     /**
-     * Returns everything that has been received on the spawn's stdout during
-     * this session.
+     * Start writing a channel to the spawn's stdin, in a helper thread.
      *
-     * @return the available contents of Standard Out
+     * @param source where to read the data to send, until its end
+     * @param echo takes the echo of what is sent, or null
+     * @return the feeder, which is done when all the data is sent
+     * @throws IOException on IO trouble sending what was sent before
      */
-    public String getCurrentStandardOutContents() {
+    private StdinFeeder startFeeder(
+                                     ReadableByteChannel source,
+                                     EchoFilter echo ) throws IOException {
 
-        return slave.getCurrentStandardOutContents();
+        // what was sent before must go first
+        synchronized( stdinLock ) {
+            toStdin.flush();
+        }
+        StdinFeeder feeder = new StdinFeeder( source, slave.getStdin(), echo );
+        feeder.thread = SpawnThreads.newThread( feeder, "ExpectJ Stdin Feeder", true );
+        feeder.thread.start();
+        return feeder;
     }
 
     /**
-     * Returns everything that has been received on the spawn's stderr during
-     * this session.
+     * Make a feeder stop after the chunk it is writing, and wait for up to a
+     * second for it to finish that chunk. The spawn's output is read
+     * meanwhile, as the spawn may wait for that before it takes the chunk.
+     * Failures reading are ignored, the caller is already failing. If the
+     * calling thread is interrupted we don't wait.
      *
-     * @return the available contents of Standard Err
+     * @param feeder the feeder to stop
      */
-    public String getCurrentStandardErrContents() {
-
-        return slave.getCurrentStandardErrContents();
+    private void stopFeeder(
+                             StdinFeeder feeder ) {
+
+        feeder.stopped = true;
+        long stopUntil = System.currentTimeMillis() + ECHO_QUIET_MILLIS;
+        boolean reading = true;
+        try {
+            while( !feeder.done && !Thread.currentThread().isInterrupted() ) {
+                long msLeft = stopUntil - System.currentTimeMillis();
+                if( msLeft <= 0 ) {
+                    LOG.warn( "The spawn doesn't take what is being sent to it, the last "
+                              + SEND_CHUNK_SIZE + " bytes at most may still go out" );
+                    return;
+                }
+                if( !reading ) {
+                    feeder.thread.join( msLeft );
+                    continue;
+                }
+                try {
+                    if( stdout.await( msLeft ) ) {
+                        reading = !drainStdout( feeder.echo );
+                    }
+                } catch( MatchMaxExceededException e ) {
+                    // the text was cut down to the match max, we can go on
+                } catch( IOException e ) {
+                    LOG.debug( "Not reading the output while the feeder stops", e );
+                    reading = false;
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
     }
-    
-    public int expectAny ( List<String> patterns,
-                           boolean isRegex,
-                           long timeout ) throws IOException, ExpectJException {
+
+    /**
+     * Read what the spawn printed so far, without waiting.
+     *
+     * @param echo takes the echo of what was sent out, or null
+     * @return true at the end of the output
+     * @throws IOException on IO trouble reading
+     */
+    private boolean drainStdout(
+                                 EchoFilter echo ) throws IOException {
+
+        int nRead;
+        while( ( nRead = readIntoInternalBuffer( stdout, echo ) ) > 0 ) {
+            applyMatchMax();
+        }
+        return nRead == -1;
+    }
+
+    /**
+     * Writes a channel to the spawn's stdin, out of the thread that reads
+     * the spawn's output.
+     */
+    private class StdinFeeder implements Runnable {
+
+        private final ReadableByteChannel source;
+
+        private final OutputStream        stdin;
+
+        private final EchoFilter          echo;
+
+        /**
+         * The thread writing.
+         */
+        private Thread                    thread;
+
+        /**
+         * Set to stop before the next chunk.
+         */
+        private volatile boolean          stopped;
+
+        /**
+         * The number of bytes sent.
+         */
+        private long                      total;
+
+        /**
+         * Why sending stopped, if it failed.
+         */
+        private volatile IOException      failure;
+
+        private volatile boolean          done;
+
+        StdinFeeder( ReadableByteChannel source,
+                     OutputStream stdin,
+                     EchoFilter echo ) {
+
+            this.source = source;
+            this.stdin = stdin;
+            this.echo = echo;
+        }
+
+        public void run() {
+
+            try {
+                if( source instanceof FileChannel && stdin instanceof FileOutputStream && echo == null ) {
+                    // from a file to a file stream, the system can copy
+                    FileChannel file = ( FileChannel ) source;
+                    WritableByteChannel target = ( ( FileOutputStream ) stdin ).getChannel();
+                    long position = file.position();
+                    long size = file.size();
+                    while( position < size && !stopped ) {
+                        synchronized( stdinLock ) {
+                            position += file.transferTo( position,
+                                                         Math.min( SEND_CHUNK_SIZE, size - position ),
+                                                         target );
+                        }
+                    }
+                    total = position - file.position();
+                    file.position( position );
+                } else {
+                    ByteBuffer chunk = ByteBuffer.allocate( SEND_CHUNK_SIZE );
+                    while( !stopped && source.read( chunk ) != -1 ) {
+                        chunk.flip();
+                        if( echo != null ) {
+                            echo.sent( chunk );
+                        }
+                        synchronized( stdinLock ) {
+                            stdin.write( chunk.array(), chunk.arrayOffset(), chunk.limit() );
+                        }
+                        total += chunk.limit();
+                        chunk.clear();
+                    }
+                }
+                synchronized( stdinLock ) {
+                    stdin.flush();
+                }
+            } catch( IOException e ) {
+                failure = e;
+            } finally {
+                done = true;
+                stdout.wakeup();
+            }
+        }
+    }
+
+    /**
+     * Send a batch of commands at once, then collect the output of each.
+     * <p>
+     * The commands go out all together, so a batch costs one round trip
+     * instead of one per command. A helper thread writes them, like
+     * {@link #sendFrom(ReadableByteChannel)} does, while the output is read
+     * as it comes, so a spawn waiting for its output to be read before it
+     * reads more commands can't block us. The output is cut at the end
+     * pattern of each command in turn, every part of it being searched once.
+     * If a command's error pattern shows up before its end pattern, the batch
+     * fails right away, the output of the commands after it is left unread.
+     * When the batch fails, the commands not written yet are not sent.
+     *
+     * @param commands the commands, in the order they are to run
+     * @param timeOutSeconds how long to wait for the whole batch, in
+     * seconds, -1 to wait forever
+     * @return the match of the end pattern of each command, its text before
+     * is the output of the command
+     * @throws IOException on IO trouble talking to the spawn
+     * @throws TimeoutException if the batch doesn't complete in time, the
+     * message tells which command was waited for
+     * @throws CommandFailedException if a command printed its error pattern
+     */
+    public List<MatchResult> sendPipelined(
+                                            List<Command> commands,
+                                            long timeOutSeconds ) throws IOException, TimeoutException,
+                                                                  CommandFailedException {
+
+        if( timeOutSeconds < -1 ) {
+            throw new IllegalArgumentException( "Timeout must be >= -1, was " + timeOutSeconds );
+        }
+
+        StringBuilder batch = new StringBuilder();
+        for( Command command : commands ) {
+            batch.append( command.getText() );
+        }
+        LOG.info( "Sending a batch of " + commands.size() + " commands" );
+        byte[] bytes = batch.toString().getBytes( charset );
+        StdinFeeder feeder = startFeeder( Channels.newChannel( new ByteArrayInputStream( bytes ) ), null );
+
+        Date runUntil = null;
+        if( timeOutSeconds > 0 ) {
+            runUntil = new Date( new Date().getTime() + timeOutSeconds * 1000 );
+        }
+        List<MatchResult> results = new ArrayList<MatchResult>( commands.size() );
+        try {
+            for( int i = 0; i < commands.size(); i++ ) {
+                Command command = commands.get( i );
+                BufferMatcher end = newMatcher( command.getEndPattern() );
+                BufferMatcher error = command.getErrorPattern() == null
+                                                                        ? null
+                                                                        : newMatcher( command.getErrorPattern() );
+
+                MatchResult found = matchCommandInInternalBuffer( end, error );
+                while( found == null ) {
+                    if( feeder.failure != null ) {
+                        throw feeder.failure;
+                    }
+                    boolean ready;
+                    if( runUntil == null ) {
+                        ready = stdout.await( 0 );
+                    } else {
+                        long msLeft = runUntil.getTime() - new Date().getTime();
+                        if( msLeft <= 0 ) {
+                            throw new TimeoutException( "Timeout waiting for the end of command [" + i + "] '"
+                                                        + command + "', " + i + " of " + commands.size()
+                                                        + " commands completed" );
+                        }
+                        ready = stdout.await( msLeft );
+                    }
+                    if( !ready ) {
+                        // timed out, the feeder is done or we are interrupted
+                        if( Thread.interrupted() ) {
+                            throw new InterruptedException();
+                        }
+                        continue;
+                    }
+                    readFromPipeAndPutInInternalBuffer( stdout );
+                    found = matchCommandInInternalBuffer( end, error );
+                    if( found == null ) {
+                        applyMatchMax();
+                    }
+                }
+
+                if( found.getPatternIndex() == 1 ) {
+                    throw new CommandFailedException( i, command, found, results );
+                }
+                results.add( found );
+            }
+            // every command was answered, so it was all taken
+            feeder.thread.join();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException( "Interrupted while waiting for a batch of commands" );
+        } finally {
+            if( !feeder.done ) {
+                stopFeeder( feeder );
+            }
+            readBuffer.release();
+        }
+        return results;
+    }
+
+    /**
+     * Allows the user to interact with the spawned process.
+     */
+    public void interact() {
+
+        // FIXME: User input is echoed twice on the screen
+        interactIn = new StreamPiper( null, System.in, slave.getStdin() );
+        interactIn.start();
+        interactOut = new StreamPiper( null, stdout.newInputStream( charset ), System.out );
+        interactOut.start();
+        interactErr = new StreamPiper( null, stderr.newInputStream( charset ), System.err );
+        interactErr.start();
+        slave.stopPipingToStandardOut();
+    }
+
+    /**
+     * This method kills the process represented by SpawnedProcess object.
+     */
+    public void stop() {
+
+        slave.stop();
+
+        freeResources();
+    }
+
+    /**
+     * Stop the spawn if it still runs, and drop the transcripts of its
+     * output. Their temporary files are deleted, see
+     * {@link Transcript#setDefaultMemoryLimit(long)}, and neither the
+     * transcripts nor the current contents of the output can be read
+     * afterwards. Without this the temporary files stay until the JVM
+     * exits, so long running programs should close the spawns they are done
+     * with.
+     */
+    public void close() {
+
+        stop();
+        slave.closeTranscripts();
+    }
+
+    /**
+     * Get the asynchronous facade of this spawn. Its operations return
+     * futures instead of blocking, and are run in the order they are called
+     * by the library's own threads.
+     * <p>
+     * Don't call the blocking expect methods while asynchronous operations
+     * are pending, both read from the same output.
+     *
+     * @return the asynchronous facade, always the same instance
+     */
+    public synchronized AsyncSpawn async() {
+
+        if( async == null ) {
+            async = new AsyncSpawn( this );
+        }
+        return async;
+    }
+
+    /**
+     * @return the default timeout for expect commands, in seconds
+     */
+    long getDefaultTimeOutSeconds() {
+
+        return m_lDefaultTimeOutSeconds;
+    }
+
+    /**
+     * @param fromStderr true for stderr, false for stdout
+     * @return the output to read from, or null if there is no stderr
+     */
+    SpawnOutput getOutput(
+                           boolean fromStderr ) {
+
+        return fromStderr
+                          ? stderr
+                          : stdout;
+    }
+
+    public Object getSystemObject() {
+
+        return slave.getSystemObject();
+    }
+
+    /**
+     * @return what the spawn runs, from its spawnable, for logging purposes
+     */
+    @Override
+    public String toString() {
+
+        return "Spawn of " + slave;
+    }
+
+    /**
+     * Returns everything that has been received on the spawn's stdout during
+     * this session.
+     *
+     * @return the available contents of Standard Out
+     */
+    public String getCurrentStandardOutContents() {
+
+        return slave.getCurrentStandardOutContents();
+    }
+
+    /**
+     * Returns everything that has been received on the spawn's stderr during
+     * this session.
+     *
+     * @return the available contents of Standard Err
+     */
+    public String getCurrentStandardErrContents() {
+
+        return slave.getCurrentStandardErrContents();
+    }
+
+    /**
+     * Get everything the spawn wrote on stdout, without copying it to a
+     * string. The transcript can be read piece by piece, and keeps bounded
+     * memory when {@link Transcript#setDefaultMemoryLimit(long)} is set.
+     *
+     * @return the transcript of Standard Out
+     */
+    public Transcript getStandardOutTranscript() {
+
+        return slave.getStandardOutTranscript();
+    }
+
+    /**
+     * Get everything the spawn wrote on stderr, without copying it to a
+     * string.
+     *
+     * @return the transcript of Standard Err, or null if stderr is not available
+     * @see #getStandardOutTranscript()
+     */
+    public Transcript getStandardErrTranscript() {
+
+        return slave.getStandardErrTranscript();
+    }
+
+    /**
+     * @return the encoding used to decode the spawn's output and encode what
+     * is sent to it
+     * @see ExpectJ#setCharset(Charset)
+     */
+    public Charset getCharset() {
+
+        return charset;
+    }
+    
+    public int expectAny ( List<String> patterns,
+                           boolean isRegex,
+                           long timeout ) throws IOException, ExpectJException {
         
-        return expectAny( patterns, isRegex, timeout, stdoutSelector );
+        return expectAny( newMultiMatcher( patterns, isRegex ), isRegex, timeout, stdout );
         
     }
     
@@ -527,23 +1404,50 @@ public int expectErrAny ( List<String> patterns,
                               boolean isRegex,
                               long timeout ) throws IOException, ExpectJException {
         
-        return expectAny( patterns, isRegex, timeout, stderrSelector );
+        return expectAny( newMultiMatcher( patterns, isRegex ), isRegex, timeout, stderr );
         
     }
 
+    /**
+     * Wait for any of the given precompiled regular expressions to appear on
+     * standard out.
+     * @param patterns The regular expressions to match against.
+     * @param timeout The timeout in seconds before the match fails.
+     * @return the index of the matched pattern
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws ExpectJException on timeout waiting for the patterns
+     */
+    public int expectAny( List<Pattern> patterns,
+                          long timeout ) throws IOException, ExpectJException {
+
+        return expectAny( newMultiMatcher( patterns ), true, timeout, stdout );
+    }
+
+    /**
+     * Wait for any of the given precompiled regular expressions to appear on
+     * standard error.
+     * @param patterns The regular expressions to match against.
+     * @param timeout The timeout in seconds before the match fails.
+     * @return the index of the matched pattern
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws ExpectJException on timeout waiting for the patterns
+     */
+    public int expectErrAny( List<Pattern> patterns,
+                             long timeout ) throws IOException, ExpectJException {
+
+        return expectAny( newMultiMatcher( patterns ), true, timeout, stderr );
+    }
+
     private int expectAny(
-                          List<String> patterns,
+                          MultiMatcher patterns,
                           boolean isRegex,
                           long timeout,
-                          Selector selector ) throws IOException, ExpectJException {
+                          SpawnOutput output ) throws IOException, ExpectJException {
 
         if( timeout < -1 ) {
             throw new IllegalArgumentException( "Timeout must be >= -1, was " + timeout );
         }
 
-        // If this cast fails somebody gave us the wrong selector.
-        Pipe.SourceChannel readMe = ( Pipe.SourceChannel ) ( selector.keys().iterator().next() ).channel();
-
         // tell user our expectations
         StringBuilder msg = new StringBuilder();
         if( isRegex ) {
@@ -551,44 +1455,51 @@ private int expectAny(
         } else {
             msg.append( "Expecting to match any of the following patterns:" );
         }
-        int counter = 0;
-        for( String pattern : patterns ) {
-            msg.append( "\n[" + ( counter++ ) + "] '" + pattern + "'" );
+        for( int i = 0; i < patterns.size(); i++ ) {
+            msg.append( "\n[" + i + "] '" + patterns.getPattern( i ) + "'" );
         }
         LOG.info( msg );
 
+        // one of the patterns may be in what was already read
+        MatchResult alreadyFound = matchInInternalBuffer( patterns );
+        if( alreadyFound != null ) {
+            return alreadyFound.getPatternIndex();
+        }
+
         Date runUntil = null;
         if( timeout > 0 ) {
             runUntil = new Date( new Date().getTime() + timeout * 1000 );
         }
-        while( true ) {
-            if( runUntil == null ) {
-                selector.select();
-            } else {
-                long msLeft = runUntil.getTime() - new Date().getTime();
-                if( msLeft > 0 ) {
-                    selector.select( msLeft );
+        try {
+            while( true ) {
+                boolean ready;
+                if( runUntil == null ) {
+                    ready = output.await( 0 );
                 } else {
-                    throw new ExpectJException( "Could not match any of the patterns" );
+                    long msLeft = runUntil.getTime() - new Date().getTime();
+                    if( msLeft > 0 ) {
+                        ready = output.await( msLeft );
+                    } else {
+                        throw new ExpectJException( "Could not match any of the patterns" );
+                    }
                 }
-            }
-
-            if( selector.selectedKeys().size() == 0 ) {
-                // Woke up with nothing selected, try again
-                LOG.debug( "Woke up with nothing selected, try again" );
-                continue;
-            }
 
-            readFromPipeAndPutInInternalBuffer( readMe );
+                if( !ready ) {
+                    // Woke up with nothing selected, try again
+                    LOG.debug( "Woke up with nothing selected, try again" );
+                    continue;
+                }
 
-            int patternIndex = -1;
-            for( String pattern : patterns ) {
-                ++patternIndex;
+                readFromPipeAndPutInInternalBuffer( output );
 
-                if( findMatchInInternalBuffer( pattern, isRegex ) ) {
-                    return patternIndex;
+                MatchResult found = matchInInternalBuffer( patterns );
+                if( found != null ) {
+                    return found.getPatternIndex();
                 }
+                applyMatchMax();
             }
+        } finally {
+            readBuffer.release();
         }
     }
     
@@ -596,7 +1507,7 @@ public void expectAll( List<String> patterns,
                            boolean isRegex,
                            long timeout ) throws IOException, TimeoutException {
          
-         expectAll( patterns, isRegex, timeout, stdoutSelector );
+         expectAll( toMatchers( patterns, isRegex ), isRegex, timeout, stdout );
          
      }
      
@@ -604,23 +1515,252 @@ public void expectErrAll( List<String> patterns,
                                boolean isRegex,
                                long timeout ) throws IOException, TimeoutException {
           
-          expectAll( patterns, isRegex, timeout, stderrSelector );
+          expectAll( toMatchers( patterns, isRegex ), isRegex, timeout, stderr );
           
       }
 
+    /**
+     * Wait for all of the given precompiled regular expressions to appear on
+     * standard out, in the given order.
+     * @param patterns The regular expressions to match against.
+     * @param timeout The timeout in seconds before the match fails.
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws TimeoutException on timeout waiting for the pattern
+     * @see #expectAllUnordered(List, long) to wait for them in any order
+     */
+    public void expectAll( List<Pattern> patterns,
+                           long timeout ) throws IOException, TimeoutException {
+
+        expectAll( toMatchers( patterns ), true, timeout, stdout );
+    }
+
+    /**
+     * Wait for all of the given precompiled regular expressions to appear on
+     * standard error, in the given order.
+     * @param patterns The regular expressions to match against.
+     * @param timeout The timeout in seconds before the match fails.
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws TimeoutException on timeout waiting for the pattern
+     * @see #expectErrAllUnordered(List, long) to wait for them in any order
+     */
+    public void expectErrAll( List<Pattern> patterns,
+                              long timeout ) throws IOException, TimeoutException {
+
+        expectAll( toMatchers( patterns ), true, timeout, stderr );
+    }
+
+    /**
+     * Wait for all of the given patterns to appear on standard out, in any
+     * order.
+     * <p>
+     * Each new piece of output is searched once for all the patterns still
+     * missing, plain texts in a single pass. The first occurrence of each
+     * pattern is kept, and once all are found the output is consumed up to
+     * the end of the last one.
+     *
+     * @param patterns the patterns to look for
+     * @param isRegex whether the patterns are regular expressions or
+     * case-insensitive plain texts
+     * @param timeout The timeout in seconds before the match fails.
+     * @return the match of each pattern, in the order of the patterns
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws TimeoutException on timeout waiting for the patterns, the
+     * message tells which ones are missing
+     */
+    public List<MatchResult> expectAllUnordered(
+                                                 List<String> patterns,
+                                                 boolean isRegex,
+                                                 long timeout ) throws IOException, TimeoutException {
+
+        return expectAllUnordered( newUnorderedMatcher( patterns, isRegex ), isRegex, timeout, stdout );
+    }
+
+    /**
+     * Wait for all of the given patterns to appear on standard error, in any
+     * order.
+     *
+     * @param patterns the patterns to look for
+     * @param isRegex whether the patterns are regular expressions or
+     * case-insensitive plain texts
+     * @param timeout The timeout in seconds before the match fails.
+     * @return the match of each pattern, in the order of the patterns
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws TimeoutException on timeout waiting for the patterns, the
+     * message tells which ones are missing
+     * @see #expectAllUnordered(List, boolean, long)
+     */
+    public List<MatchResult> expectErrAllUnordered(
+                                                    List<String> patterns,
+                                                    boolean isRegex,
+                                                    long timeout ) throws IOException, TimeoutException {
+
+        return expectAllUnordered( newUnorderedMatcher( patterns, isRegex ), isRegex, timeout, stderr );
+    }
+
+    /**
+     * Wait for all of the given precompiled regular expressions to appear on
+     * standard out, in any order.
+     *
+     * @param patterns The regular expressions to match against.
+     * @param timeout The timeout in seconds before the match fails.
+     * @return the match of each pattern, in the order of the patterns
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws TimeoutException on timeout waiting for the patterns, the
+     * message tells which ones are missing
+     * @see #expectAllUnordered(List, boolean, long)
+     */
+    public List<MatchResult> expectAllUnordered(
+                                                 List<Pattern> patterns,
+                                                 long timeout ) throws IOException, TimeoutException {
+
+        return expectAllUnordered( UnorderedMatcher.forMatchers( toMatchers( patterns ) ), true, timeout,
+                                   stdout );
+    }
+
+    /**
+     * Wait for all of the given precompiled regular expressions to appear on
+     * standard error, in any order.
+     *
+     * @param patterns The regular expressions to match against.
+     * @param timeout The timeout in seconds before the match fails.
+     * @return the match of each pattern, in the order of the patterns
+     * @throws IOException on IO trouble waiting for the patterns
+     * @throws TimeoutException on timeout waiting for the patterns, the
+     * message tells which ones are missing
+     * @see #expectAllUnordered(List, boolean, long)
+     */
+    public List<MatchResult> expectErrAllUnordered(
+                                                    List<Pattern> patterns,
+                                                    long timeout ) throws IOException, TimeoutException {
+
+        return expectAllUnordered( UnorderedMatcher.forMatchers( toMatchers( patterns ) ), true, timeout,
+                                   stderr );
+    }
+
+    private List<MatchResult> expectAllUnordered(
+                                                  UnorderedMatcher matcher,
+                                                  boolean isRegex,
+                                                  long timeout,
+                                                  SpawnOutput output ) throws IOException, TimeoutException {
+
+        if( timeout < -1 ) {
+            throw new IllegalArgumentException( "Timeout must be >= -1, was " + timeout );
+        }
+
+        // tell user our expectations
+        StringBuilder msg = new StringBuilder( "Expecting to match all of the following "
+                                               + ( isRegex
+                                                          ? "regex "
+                                                          : "" ) + "patterns, in any order:" );
+        for( int i = 0; i < matcher.size(); i++ ) {
+            msg.append( "\n[" + i + "] '" + matcher.getPattern( i ) + "'" );
+        }
+        LOG.info( msg );
+
+        MatchResult[] results = new MatchResult[matcher.size()];
+        // some of the patterns may be in what was already read
+        if( matchAllInInternalBuffer( matcher, results ) ) {
+            return Arrays.asList( results );
+        }
+
+        Date runUntil = null;
+        if( timeout > 0 ) {
+            runUntil = new Date( new Date().getTime() + timeout * 1000 );
+        }
+        try {
+            while( true ) {
+                boolean ready;
+                if( runUntil == null ) {
+                    ready = output.await( 0 );
+                } else {
+                    long msLeft = runUntil.getTime() - new Date().getTime();
+                    if( msLeft > 0 ) {
+                        ready = output.await( msLeft );
+                    } else {
+                        LOG.debug( "no more wait time" );
+                        break;
+                    }
+                }
+
+                if( !ready ) {
+                    // Woke up with nothing selected, try again
+                    LOG.debug( "Woke up with nothing selected, try again" );
+                    continue;
+                }
+
+                readFromPipeAndPutInInternalBuffer( output );
+
+                if( matchAllInInternalBuffer( matcher, results ) ) {
+                    return Arrays.asList( results );
+                }
+                applyMatchMax();
+            }
+        } finally {
+            readBuffer.release();
+        }
+
+        int missing = 0;
+        StringBuilder missingPatterns = new StringBuilder();
+        for( int i = 0; i < matcher.size(); i++ ) {
+            if( !matcher.isFound( i ) ) {
+                missing++;
+                missingPatterns.append( "\n[" + i + "] '" + matcher.getPattern( i ) + "'" );
+            }
+        }
+        throw new TimeoutException( "Timed out with " + missing + " of " + matcher.size() + " "
+                                    + ( isRegex
+                                               ? "regex "
+                                               : "" ) + "patterns not matched:" + missingPatterns );
+    }
+
+    /**
+     * Record the patterns found in the internal buffer, without consuming it
+     * until all of them are found.
+     *
+     * @param matcher what to look for
+     * @param results where to keep the match of each pattern
+     * @return true once all the patterns are found, the buffer is then
+     * consumed up to the end of the last match
+     */
+    private boolean matchAllInInternalBuffer(
+                                              UnorderedMatcher matcher,
+                                              MatchResult[] results ) {
+
+        int index;
+        while( ( index = matcher.find( currentBuffer, currentBuffer.getHead() ) ) != -1 ) {
+            int[] groups = matcher.groups();
+            LOG.info( "Matched pattern [" + index + "] '" + matcher.getPattern( index ) + "' at "
+                      + ( currentBuffer.getHead() + groups[0] ) );
+            results[index] = viewMatch( index, matcher.getPattern( index ), groups, groups[1] );
+        }
+        if( !matcher.isDone() ) {
+            return false;
+        }
+
+        MatchResult last = null;
+        for( MatchResult result : results ) {
+            if( last == null || result.getEndOffset() > last.getEndOffset() ) {
+                last = result;
+            }
+        }
+        long head = currentBuffer.getHead();
+        if( last != null && last.getEndOffset() > head ) {
+            consumeInternalBuffer( ( int ) ( last.getEndOffset() - head ) );
+        }
+        lastMatch = last;
+        return true;
+    }
+
     private void expectAll(
-                           List<String> patterns,
+                           List<BufferMatcher> patterns,
                            boolean isRegex,
                            long timeout,
-                           Selector selector ) throws IOException, TimeoutException {
+                           SpawnOutput output ) throws IOException, TimeoutException {
 
         if( timeout < -1 ) {
             throw new IllegalArgumentException( "Timeout must be >= -1, was " + timeout );
         }
 
-        // If this cast fails somebody gave us the wrong selector.
-        Pipe.SourceChannel readMe = ( Pipe.SourceChannel ) ( selector.keys().iterator().next() ).channel();
-
         // tell user our expectations
         StringBuilder msg = new StringBuilder();
         if( isRegex ) {
@@ -629,57 +1769,51 @@ private void expectAll(
             msg.append( "Expecting to match all of the following patterns:" );
         }
         int counter = 0;
-        for( String pattern : patterns ) {
-            msg.append( "\n[" + ( counter++ ) + "] '" + pattern + "'" );
+        for( BufferMatcher pattern : patterns ) {
+            msg.append( "\n[" + ( counter++ ) + "] '" + pattern.getPattern() + "'" );
         }
         LOG.info( msg );
 
+        // the first patterns may be in what was already read
+        if( matchAllInInternalBuffer( patterns ) ) {
+            return;
+        }
+
         Date runUntil = null;
         if( timeout > 0 ) {
             runUntil = new Date( new Date().getTime() + timeout * 1000 );
         }
-        while( true ) {
-            if( runUntil == null ) {
-                selector.select();
-            } else {
-                long msLeft = runUntil.getTime() - new Date().getTime();
-                if( msLeft > 0 ) {
-                    selector.select( msLeft );
+        try {
+            while( true ) {
+                boolean ready;
+                if( runUntil == null ) {
+                    ready = output.await( 0 );
                 } else {
-                    LOG.debug( "no more wait time" );
-                    continueReading = false;
-                    break;
+                    long msLeft = runUntil.getTime() - new Date().getTime();
+                    if( msLeft > 0 ) {
+                        ready = output.await( msLeft );
+                    } else {
+                        LOG.debug( "no more wait time" );
+                        continueReading = false;
+                        break;
+                    }
                 }
-            }
-
-            if( selector.selectedKeys().size() == 0 ) {
-                // Woke up with nothing selected, try again
-                LOG.debug( "Woke up with nothing selected, try again" );
-                continue;
-            }
 
-            readFromPipeAndPutInInternalBuffer( readMe );
+                if( !ready ) {
+                    // Woke up with nothing selected, try again
+                    LOG.debug( "Woke up with nothing selected, try again" );
+                    continue;
+                }
 
-            Iterator<String> it = patterns.iterator();
-            while( it.hasNext() ) {
-                String pattern = it.next();
+                readFromPipeAndPutInInternalBuffer( output );
 
-                boolean matchedThisPattern = findMatchInInternalBuffer( pattern, isRegex );
-                if( matchedThisPattern ) {
-                    // this pattern is matched
-                    it.remove();
-                    // see if can match the next one now
-                } else {
-                    // this pattern is NOT matched
-                    // break the cycle, we will try again later with the same
-                    // pattern
-                    break;
+                if( matchAllInInternalBuffer( patterns ) ) {
+                    return;
                 }
+                applyMatchMax();
             }
-
-            if( patterns.size() == 0 ) {
-                return;
-            }
+        } finally {
+            readBuffer.release();
         }
 
         if( patterns.size() != 0 ) {
@@ -687,89 +1821,375 @@ private void expectAll(
                                                       + ( isRegex
                                                                  ? "regex "
                                                                  : "" ) + "patterns:" );
-            for( String pattern : patterns ) {
-                errMsg.append( "\n'" + pattern + "'" );
+            for( BufferMatcher pattern : patterns ) {
+                errMsg.append( "\n'" + pattern.getPattern() + "'" );
             }
 
             throw new TimeoutException( errMsg.toString() );
         }
     }
 
-    private void readFromPipeAndPutInInternalBuffer(
-                                                     Pipe.SourceChannel readMe ) throws IOException {
+    /**
+     * Match the patterns one after the other in the internal buffer, removing
+     * each matched pattern from the list. Stops at the first pattern not
+     * found, it is tried again when more output comes.
+     *
+     * @param patterns the patterns left, in the order they must appear
+     * @return true if all of them are matched
+     */
+    private boolean matchAllInInternalBuffer(
+                                              List<BufferMatcher> patterns ) {
 
-        ByteBuffer buffer = newBuffer();
+        Iterator<BufferMatcher> it = patterns.iterator();
+        while( it.hasNext() ) {
+            if( findMatchInInternalBuffer( it.next() ) == null ) {
+                return false;
+            }
+            it.remove();
+        }
+        return true;
+    }
 
-        if( readMe.read( buffer ) == -1 ) {
+    private void readFromPipeAndPutInInternalBuffer(
+                                                     SpawnOutput output ) throws IOException {
+
+        if( readIntoInternalBuffer( output ) == -1 ) {
             // End of stream
             throw new IOException( "End of stream reached, no match found" );
         }
+    }
 
-        // go to beginning
-        buffer.rewind();
+    /**
+     * Read what is available on one of our outputs into the internal buffer.
+     *
+     * @param output the output to read from
+     * @return the number of characters read, or -1 at the end of the stream
+     * @throws IOException on IO trouble reading the channel
+     */
+    int readIntoInternalBuffer(
+                                SpawnOutput output ) throws IOException {
 
-        // read all bytes
-        for( int i = 0; i < buffer.limit(); i++ ) {
-            byte b = buffer.get( i );
-            if( b == 0 ) {
-                // reached buffer end
-                break;
-            }
+        return readIntoInternalBuffer( output, null );
+    }
+
+    /**
+     * Read what is available on one of our outputs into the internal buffer.
+     *
+     * @param output the output to read from
+     * @param echo takes the echo of what was sent out, or null
+     * @return the number of characters read, or -1 at the end of the stream
+     * @throws IOException on IO trouble reading the channel
+     */
+    private int readIntoInternalBuffer(
+                                        SpawnOutput output,
+                                        EchoFilter echo ) throws IOException {
+
+        CharBuffer buffer = readBuffer.get();
 
-            currentBuffer.append( ( char ) b );
+        int nRead = output.read( buffer );
+        if( nRead == -1 ) {
+            return -1;
         }
+        readBuffer.record( nRead );
+
+        buffer.flip();
+        if( echo != null ) {
+            echo.strip( buffer );
+        }
+        currentBuffer.append( buffer );
 
         // displayCurrentBuffer("CURRENT BUFFER");
+        return nRead;
     }
 
-    private boolean findMatchInInternalBuffer(
-                                               String pattern,
-                                               boolean isRegex ) {
+    /**
+     * Give the read buffer back to the pool, for readers that don't go
+     * through the expect loops.
+     */
+    void releaseReadBuffer() {
 
-        if( isRegex ) {
-            // regular expression patter
+        readBuffer.release();
+    }
 
-            Pattern patternObject = Pattern.compile( pattern, Pattern.DOTALL | Pattern.CASE_INSENSITIVE );
-            Matcher matcher = patternObject.matcher( currentBuffer.toString() );
+    /**
+     * @param matcher what to look for
+     * @return the match, or null if the pattern did not match
+     */
+    private MatchResult findMatchInInternalBuffer(
+                                                   BufferMatcher matcher ) {
+
+        String regex = matcher.isRegex()
+                                         ? "regex "
+                                         : "";
+        if( matcher.find( currentBuffer, currentBuffer.getHead() ) ) {
+            LOG.info( "Matched " + regex + "pattern '" + matcher.getPattern() + "'" );
+            return newMatchResult( 0, matcher.getPattern(), matcher.groups(), matcher.end() );
+        } else {
+            LOG.info( "Did not match " + regex + "pattern '" + matcher.getPattern() + "'" );
+            return null;
+        }
+    }
 
-            if( matcher.find() ) {
-                LOG.info( "Matched regex pattern '" + pattern + "'" );
+    /**
+     * Look for any of several patterns in the internal buffer, consuming the
+     * text up to the end of the match when found.
+     *
+     * @param matcher what to look for
+     * @return the match, or null if none of the patterns matched
+     */
+    MatchResult matchInInternalBuffer(
+                                       MultiMatcher matcher ) {
+
+        int patternIndex = matcher.find( currentBuffer, currentBuffer.getHead() );
+        if( patternIndex == -1 ) {
+            LOG.info( "Did not match any of the patterns" );
+            return null;
+        }
+
+        LOG.info( "Matched pattern [" + patternIndex + "] '" + matcher.getPattern( patternIndex ) + "'" );
+        return newMatchResult( patternIndex, matcher.getPattern( patternIndex ), matcher.groups(),
+                               matcher.end() );
+    }
+
+    /**
+     * Look for the end of a command's output, or for its error, whichever
+     * comes first.
+     *
+     * @param end finds the end of the output
+     * @param error finds the error, or null
+     * @return the match, with pattern index 0 for the end and 1 for the
+     * error, or null if neither was found
+     */
+    private MatchResult matchCommandInInternalBuffer(
+                                                      BufferMatcher end,
+                                                      BufferMatcher error ) {
+
+        long head = currentBuffer.getHead();
+        boolean endFound = end.find( currentBuffer, head );
+        // the error matcher only goes as far as the end, which is enough
+        // since an error after the end belongs to a later command
+        boolean errorFound = error != null
+                             && error.find( currentBuffer, head, endFound
+                                                                         ? end.end()
+                                                                         : currentBuffer.length() );
+        if( errorFound ) {
+            LOG.info( "Matched error pattern '" + error.getPattern() + "'" );
+            return newMatchResult( 1, error.getPattern(), error.groups(), error.end() );
+        }
+        if( endFound ) {
+            LOG.info( "Matched pattern '" + end.getPattern() + "'" );
+            return newMatchResult( 0, end.getPattern(), end.groups(), end.end() );
+        }
+        return null;
+    }
 
-                // We expect user provided a matcher that is targeting 1 group
-                // only,
-                // but just in case we will process the last matched group
-                int patternIndexEnd = matcher.end( matcher.groupCount() );
+    /**
+     * Enforce the match max, once a search found nothing.
+     *
+     * @throws MatchMaxExceededException if it was exceeded and we should fail
+     * @see #setMatchMax(int)
+     */
+    void applyMatchMax() throws MatchMaxExceededException {
+
+        int max = matchMax;
+        int unmatched = currentBuffer.length();
+        if( max == -1 || unmatched <= max ) {
+            return;
+        }
+        currentBuffer.consume( unmatched - max );
+        discardedCount += unmatched - max;
+        LOG.debug( "Match max of " + max + " exceeded, dropped " + ( unmatched - max ) + " characters" );
+        if( failOnMatchMax ) {
+            throw new MatchMaxExceededException( max, unmatched );
+        }
+    }
+
+    /**
+     * Keep the result of a match and consume the matched text.
+     *
+     * @param patternIndex index of the pattern that matched
+     * @param pattern the pattern that matched
+     * @param groups bounds of the match and its groups, relative to the head
+     * @param end where the match ends, the text up to here is consumed
+     * @return the match
+     */
+    private MatchResult newMatchResult(
+                                        int patternIndex,
+                                        String pattern,
+                                        int[] groups,
+                                        int end ) {
+
+        MatchResult result = viewMatch( patternIndex, pattern, groups, end );
+        consumeInternalBuffer( end );
+        lastMatch = result;
+        return result;
+    }
 
-                // displayCurrentBuffer("OLD BUFFER");
-                currentBuffer.delete( 0, patternIndexEnd );
-                // displayCurrentBuffer("NEW BUFFER");
-                pendingToMatchBuffer.setLength( 0 );
-                pendingToMatchBuffer.append( currentBuffer );
-                return true;
+    /**
+     * Make the result of a match, leaving the matched text in the buffer.
+     *
+     * @param patternIndex index of the pattern that matched
+     * @param pattern the pattern that matched
+     * @param groups bounds of the match and its groups, relative to the head
+     * @param end where the match ends
+     * @return the match
+     * @throws IllegalStateException if the match starts before the head,
+     * which only a broken matcher can report
+     */
+    private MatchResult viewMatch(
+                                   int patternIndex,
+                                   String pattern,
+                                   int[] groups,
+                                   int end ) {
+
+        if( groups[0] < 0 ) {
+            throw new IllegalStateException( "The matcher of pattern [" + patternIndex + "] '" + pattern
+                                             + "' found a match starting " + -groups[0]
+                                             + " characters before the text it was given" );
+        }
+        long head = currentBuffer.getHead();
+        int textEnd = Math.max( end, groups[1] );
+        for( int i = 2; i < groups.length; i += 2 ) {
+            if( groups[i] < 0 ) {
+                // the group did not take part in the match, or it is in a
+                // lookbehind reaching into consumed text we no longer have
+                groups[i] = -1;
+                groups[i + 1] = -1;
             } else {
+                textEnd = Math.max( textEnd, groups[i + 1] );
+            }
+        }
+        return new MatchResult( patternIndex,
+                                pattern,
+                                currentBuffer.view( head, head + textEnd ),
+                                head,
+                                groups );
+    }
 
-                LOG.info( "Did not match regex pattern '" + pattern + "'" );
-                return false;
+    /**
+     * Drop the matched text from the internal buffer.
+     *
+     * @param end where the match ends
+     */
+    private void consumeInternalBuffer(
+                                        int end ) {
+
+        // displayCurrentBuffer("OLD BUFFER");
+        currentBuffer.consume( end );
+        // displayCurrentBuffer("NEW BUFFER");
+        pendingToMatchEnd = currentBuffer.getTail();
+    }
+
+    /**
+     * @param pattern the pattern to look for
+     * @param isRegex whether the pattern is a regular expression or plain text
+     * @return a matcher for the pattern, set up with our settings
+     */
+    BufferMatcher newMatcher(
+                              String pattern,
+                              boolean isRegex ) {
+
+        BufferMatcher matcher = BufferMatcher.forString( pattern, isRegex );
+        if( isRegex ) {
+            ( ( RegexMatcher ) matcher ).setMaxLookback( regexMaxLookback );
+        }
+        return matcher;
+    }
+
+    /**
+     * @param pattern the precompiled regular expression to look for
+     * @return a matcher for the pattern, set up with our settings
+     */
+    BufferMatcher newMatcher(
+                              Pattern pattern ) {
+
+        RegexMatcher matcher = ( RegexMatcher ) BufferMatcher.forPattern( pattern );
+        matcher.setMaxLookback( regexMaxLookback );
+        return matcher;
+    }
+
+    /**
+     * @param patterns the patterns to look for
+     * @param isRegex whether the patterns are regular expressions or plain text
+     * @return a matcher looking for all of the patterns at once
+     */
+    MultiMatcher newMultiMatcher(
+                                  List<String> patterns,
+                                  boolean isRegex ) {
+
+        if( !isRegex && patterns.size() > 1 ) {
+            return new AhoCorasickMatcher( patterns );
+        }
+        if( isRegex ) {
+            List<Pattern> compiled = new ArrayList<Pattern>( patterns.size() );
+            for( String pattern : patterns ) {
+                compiled.add( PatternCache.getPattern( pattern ) );
             }
-        } else {
-            // plain text pattern
+            return newMultiMatcher( compiled );
+        }
+        return new SequentialMultiMatcher( toMatchers( patterns, isRegex ) );
+    }
 
-            int patternIndex = currentBuffer.toString().toUpperCase().indexOf( pattern.toUpperCase() );
+    /**
+     * @param patterns the patterns to look for
+     * @param isRegex whether the patterns are regular expressions or plain text
+     * @return a matcher looking for all of the patterns, in any order
+     */
+    private UnorderedMatcher newUnorderedMatcher(
+                                                  List<String> patterns,
+                                                  boolean isRegex ) {
 
-            if( patternIndex != -1 ) {
-                LOG.info( "Matched pattern '" + pattern + "'" );
+        if( isRegex ) {
+            return UnorderedMatcher.forMatchers( toMatchers( patterns, true ) );
+        }
+        return UnorderedMatcher.forLiterals( patterns );
+    }
 
-                // displayCurrentBuffer("OLD BUFFER");
-                currentBuffer.delete( 0, patternIndex + pattern.length() );
-                // displayCurrentBuffer("NEW BUFFER");
-                pendingToMatchBuffer.setLength( 0 );
-                pendingToMatchBuffer.append( currentBuffer );
-                return true;
-            } else {
-                LOG.info( "Did not match pattern '" + pattern + "'" );
-                return false;
+    /**
+     * @param patterns the precompiled regular expressions to look for
+     * @return a matcher looking for all of the patterns at once
+     */
+    MultiMatcher newMultiMatcher(
+                                  List<Pattern> patterns ) {
+
+        if( CombinedRegexMatcher.canCombine( patterns ) ) {
+            try {
+                return new CombinedRegexMatcher( patterns, regexMaxLookback );
+            } catch( PatternSyntaxException e ) {
+                LOG.debug( "Patterns can't be combined, they will be matched one by one", e );
             }
         }
+        return new SequentialMultiMatcher( toMatchers( patterns ) );
+    }
+
+    /**
+     * @param patterns the patterns to look for
+     * @param isRegex whether the patterns are regular expressions or plain text
+     * @return a new list with a matcher for each pattern
+     */
+    private List<BufferMatcher> toMatchers(
+                                            List<String> patterns,
+                                            boolean isRegex ) {
+
+        List<BufferMatcher> matchers = new ArrayList<BufferMatcher>( patterns.size() );
+        for( String pattern : patterns ) {
+            matchers.add( newMatcher( pattern, isRegex ) );
+        }
+        return matchers;
+    }
+
+    /**
+     * @param patterns the precompiled regular expressions to look for
+     * @return a new list with a matcher for each pattern
+     */
+    private List<BufferMatcher> toMatchers(
+                                            List<Pattern> patterns ) {
+
+        List<BufferMatcher> matchers = new ArrayList<BufferMatcher>( patterns.size() );
+        for( Pattern pattern : patterns ) {
+            matchers.add( newMatcher( pattern ) );
+        }
+        return matchers;
     }
 
     public void sendEnterKeyInLoop(
@@ -817,43 +2237,34 @@ private String readInBuffer(
                                  long readTimeSeconds ) throws IOException {
 
         StringBuffer bigBuffer = new StringBuffer();
-        Selector selector = stdoutSelector;
-
-        // If this cast fails somebody gave us the wrong selector.
-        Pipe.SourceChannel readMe = ( Pipe.SourceChannel ) ( selector.keys().iterator().next() ).channel();
-
         final Date endTime = new Date( new Date().getTime() + readTimeSeconds * 1000 );
 
-        ByteBuffer buffer = newBuffer();
-        while( true ) {
-            buffer = newBuffer();
-            long msLeft = endTime.getTime() - new Date().getTime();
-            if( msLeft > 0 ) {
-                selector.select( msLeft );
-            } else {
-                LOG.debug( "no more wait time" );
-                break;
-            }
+        try {
+            while( true ) {
+                CharBuffer buffer = readBuffer.get();
+                long msLeft = endTime.getTime() - new Date().getTime();
+                if( msLeft <= 0 ) {
+                    LOG.debug( "no more wait time" );
+                    break;
+                }
 
-            if( selector.selectedKeys().size() == 0 ) {
-                LOG.debug( "Woke up with nothing selected, try again" );
-                continue;
-            }
+                if( !stdout.await( msLeft ) ) {
+                    LOG.debug( "Woke up with nothing selected, try again" );
+                    continue;
+                }
 
-            // buffer.rewind();
-            int nRead = readMe.read( buffer );
-            if( nRead == -1 ) {
-                LOG.debug( "End of stream reached" );
-                break;
-            } else if( nRead > 0 ) {
-                buffer.rewind();
-                for( int i = 0; i < buffer.limit(); i++ ) {
-                    byte b = buffer.get( i );
-                    if( b != 0 ) {
-                        bigBuffer.append( ( char ) b );
-                    }
+                int nRead = stdout.read( buffer );
+                if( nRead == -1 ) {
+                    LOG.debug( "End of stream reached" );
+                    break;
+                } else if( nRead > 0 ) {
+                    readBuffer.record( nRead );
+                    buffer.flip();
+                    bigBuffer.append( buffer );
                 }
             }
+        } finally {
+            readBuffer.release();
         }
 
         return bigBuffer.toString();
@@ -865,9 +2276,4 @@ private void displayCurrentBuffer(
 
         LOG.warn( prefix + "\n'''''''''''\n" + currentBuffer.toString() + "\n'''''''''''''" );
     }
-
-    private ByteBuffer newBuffer() {
-
-        return ByteBuffer.allocate( 100 * 1024 );
-    }
 }
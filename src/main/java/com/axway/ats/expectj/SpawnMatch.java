@@ -0,0 +1,53 @@
+package com.axway.ats.expectj;
+
+/**
+ * The outcome of an expect on several spawns at once: which spawn matched,
+ * and how.
+ *
+ * @see ExpectJ#expectAny(java.util.Map, long)
+ */
+public final class SpawnMatch {
+    /**
+     * The spawn whose output matched.
+     */
+    private final Spawn       spawn;
+
+    /**
+     * The match, the pattern index refers to the patterns of the spawn.
+     */
+    private final MatchResult match;
+
+    /**
+     * @param spawn the spawn whose output matched
+     * @param match the match
+     */
+    SpawnMatch( Spawn spawn,
+                MatchResult match ) {
+
+        this.spawn = spawn;
+        this.match = match;
+    }
+
+    /**
+     * @return the spawn whose output matched
+     */
+    public Spawn getSpawn() {
+
+        return spawn;
+    }
+
+    /**
+     * @return the match, its pattern index is the index in the list of
+     * patterns given for the spawn
+     */
+    public MatchResult getMatch() {
+
+        return match;
+    }
+
+    @Override
+    public String toString() {
+
+        return spawn + ": " + match;
+    }
+}
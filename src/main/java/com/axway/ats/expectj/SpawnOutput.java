@@ -0,0 +1,141 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Carries one output stream of a spawn, stdout or stderr, from the thread
+ * reading the spawn to the {@link Spawn} looking for patterns in it. The
+ * stream is decoded by the reading thread, what goes through here are
+ * characters.
+ * <p>
+ * The reading side writes what the spawn printed, the {@link Spawn} side
+ * waits for data and reads it when an expect needs it. Data nobody asked
+ * for stays here, and once there is enough of it the writer has to wait, so
+ * a spawn whose output is not read is slowed down like with a full pipe.
+ *
+ * @see DirectOutput
+ * @see PipeOutput
+ */
+abstract class SpawnOutput {
+
+    /**
+     * Write without blocking.
+     *
+     * @param data the characters to write
+     * @return the number of characters written, 0 when there is no room right now
+     * @throws IOException if the output is closed
+     */
+    abstract int write(
+                        CharBuffer data ) throws IOException;
+
+    /**
+     * Write all the characters, waiting for room when needed.
+     *
+     * @param data the characters to write
+     * @throws IOException if the output is closed
+     */
+    abstract void writeFully(
+                              CharBuffer data ) throws IOException;
+
+    /**
+     * Tell the reading side that the spawn's stream ended.
+     *
+     * @throws IOException on trouble closing
+     */
+    abstract void closeSink() throws IOException;
+
+    /**
+     * Read without blocking.
+     *
+     * @param buffer where to put the characters
+     * @return the number of characters read, 0 when there is nothing right
+     * now, -1 at the end of the stream
+     * @throws IOException if the output is closed
+     */
+    abstract int read(
+                       CharBuffer buffer ) throws IOException;
+
+    /**
+     * Wait until there is data to read, the end of the stream is reached,
+     * {@link #wakeup()} is called or the time is out.
+     *
+     * @param timeoutMillis how long to wait, 0 to wait until something happens
+     * @return true if {@link #read(CharBuffer)} has something to tell
+     * @throws IOException on trouble waiting
+     */
+    abstract boolean await(
+                            long timeoutMillis ) throws IOException;
+
+    /**
+     * Make the pending or next call to {@link #await(long)} return.
+     */
+    abstract void wakeup();
+
+    /**
+     * Release everything, both sides are done.
+     */
+    abstract void close();
+
+    /**
+     * @param charset how to encode the characters
+     * @return a blocking stream reading from this output
+     */
+    InputStream newInputStream(
+                                Charset charset ) {
+
+        final CharsetEncoder encoder = charset.newEncoder()
+                                              .onMalformedInput( CodingErrorAction.REPLACE )
+                                              .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        final CharBuffer chars = CharBuffer.allocate( 1024 );
+        chars.flip();
+
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+
+                byte[] b = new byte[1];
+                int nRead = read( b, 0, 1 );
+                return nRead == -1
+                                   ? -1
+                                   : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(
+                             byte[] b,
+                             int off,
+                             int len ) throws IOException {
+
+                if( len == 0 ) {
+                    return 0;
+                }
+                ByteBuffer out = ByteBuffer.wrap( b, off, len );
+                while( true ) {
+                    encoder.encode( chars, out, false );
+                    if( out.position() > off ) {
+                        return out.position() - off;
+                    }
+                    // too few characters for a byte, get more
+                    chars.compact();
+                    int nRead = SpawnOutput.this.read( chars );
+                    chars.flip();
+                    if( nRead == -1 ) {
+                        encoder.encode( chars, out, true );
+                        return out.position() > off
+                                                    ? out.position() - off
+                                                    : -1;
+                    }
+                    if( nRead == 0 ) {
+                        await( 0 );
+                    }
+                }
+            }
+        };
+    }
+}
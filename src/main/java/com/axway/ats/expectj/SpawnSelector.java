@@ -0,0 +1,217 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Waits for any of several spawns to match one of its patterns, from the
+ * calling thread alone.
+ * <p>
+ * Pipes are registered with a selector opened for the wait. Outputs
+ * delivered directly have a listener queueing the spawn and waking the
+ * selector up, so both kinds are waited for at once. Each time a spawn has
+ * output, what is available is read and searched, like an asynchronous
+ * expect does.
+ */
+final class SpawnSelector {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger LOG = Logger.getLogger( SpawnSelector.class );
+
+    private SpawnSelector() {
+
+    }
+
+    /**
+     * @param patterns the patterns to look for on the stdout of each spawn
+     * @param timeout the timeout in seconds, -1 or 0 to wait forever
+     * @return the first match found
+     * @throws IOException on IO trouble, or when all of the spawns ended
+     * without a match
+     * @throws TimeoutException on timeout
+     * @see ExpectJ#expectAny(Map, long)
+     */
+    static SpawnMatch expectAny(
+                                 Map<Spawn, List<Pattern>> patterns,
+                                 long timeout ) throws IOException, TimeoutException {
+
+        if( timeout < -1 ) {
+            throw new IllegalArgumentException( "Timeout must be >= -1, was " + timeout );
+        }
+        if( patterns.isEmpty() ) {
+            throw new IllegalArgumentException( "No spawn to expect from" );
+        }
+
+        final List<Watched> watched = new ArrayList<Watched>( patterns.size() );
+        for( Map.Entry<Spawn, List<Pattern>> entry : patterns.entrySet() ) {
+            Spawn spawn = entry.getKey();
+            Watched spawnWatched = new Watched( spawn, spawn.newMultiMatcher( entry.getValue() ) );
+            // one of the patterns may be in what was already read
+            MatchResult found = spawn.matchInInternalBuffer( spawnWatched.matcher );
+            if( found != null ) {
+                return new SpawnMatch( spawn, found );
+            }
+            watched.add( spawnWatched );
+        }
+        LOG.info( "Expecting a match from any of " + watched.size() + " spawns" );
+
+        final Selector selector = Selector.open();
+        final Queue<Watched> ready = new ConcurrentLinkedQueue<Watched>();
+        try {
+            for( final Watched spawnWatched : watched ) {
+                if( spawnWatched.output instanceof DirectOutput ) {
+                    ( ( DirectOutput ) spawnWatched.output ).setListener( new Runnable() {
+                        public void run() {
+
+                            ready.add( spawnWatched );
+                            selector.wakeup();
+                        }
+                    } );
+                } else {
+                    Pipe.SourceChannel channel = ( ( PipeOutput ) spawnWatched.output ).getChannel();
+                    channel.register( selector, SelectionKey.OP_READ, spawnWatched );
+                }
+            }
+
+            int open = watched.size();
+            Date runUntil = null;
+            if( timeout > 0 ) {
+                runUntil = new Date( new Date().getTime() + timeout * 1000 );
+            }
+            while( true ) {
+                // only the spawns queued before this pass: a read queues its
+                // spawn again when output is left, and a spawn that keeps
+                // printing must not keep the pipes and the timeout waiting
+                Watched spawnWatched;
+                for( int queued = ready.size(); queued > 0 && ( spawnWatched = ready.poll() ) != null; queued-- ) {
+                    MatchResult found = spawnWatched.readAndMatch();
+                    if( found != null ) {
+                        return new SpawnMatch( spawnWatched.spawn, found );
+                    }
+                    if( spawnWatched.ended ) {
+                        open--;
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while( it.hasNext() ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    spawnWatched = ( Watched ) key.attachment();
+                    MatchResult found = spawnWatched.readAndMatch();
+                    if( found != null ) {
+                        return new SpawnMatch( spawnWatched.spawn, found );
+                    }
+                    if( spawnWatched.ended ) {
+                        key.cancel();
+                        open--;
+                    }
+                }
+
+                if( open == 0 ) {
+                    throw new IOException( "End of stream reached on all of the spawns, no match found" );
+                }
+                long msLeft = 0;
+                if( runUntil != null ) {
+                    msLeft = runUntil.getTime() - new Date().getTime();
+                    if( msLeft <= 0 ) {
+                        throw new TimeoutException( timeoutMessage( watched ) );
+                    }
+                }
+                if( !ready.isEmpty() ) {
+                    selector.selectNow();
+                } else {
+                    selector.select( msLeft );
+                }
+            }
+        } finally {
+            for( Watched spawnWatched : watched ) {
+                if( spawnWatched.output instanceof DirectOutput ) {
+                    ( ( DirectOutput ) spawnWatched.output ).setListener( null );
+                }
+            }
+            selector.close();
+        }
+    }
+
+    private static String timeoutMessage(
+                                          List<Watched> watched ) {
+
+        StringBuilder msg = new StringBuilder( "Timeout trying to match any of the patterns of "
+                                               + watched.size() + " spawns" );
+        for( Watched spawnWatched : watched ) {
+            msg.append( "\n" + spawnWatched.spawn + ":" );
+            for( int i = 0; i < spawnWatched.matcher.size(); i++ ) {
+                msg.append( " '" + spawnWatched.matcher.getPattern( i ) + "'" );
+            }
+        }
+        return msg.toString();
+    }
+
+    /**
+     * A spawn being waited for.
+     */
+    private static class Watched {
+
+        final Spawn        spawn;
+
+        final MultiMatcher matcher;
+
+        final SpawnOutput  output;
+
+        /**
+         * Whether the end of the spawn's output was reached.
+         */
+        boolean            ended;
+
+        Watched( Spawn spawn,
+                 MultiMatcher matcher ) {
+
+            this.spawn = spawn;
+            this.matcher = matcher;
+            this.output = spawn.getOutput( false );
+        }
+
+        /**
+         * Read what the spawn has for us and look for the patterns in it.
+         *
+         * @return the match, or null
+         * @throws IOException on IO trouble, or if the match max is exceeded
+         */
+        MatchResult readAndMatch() throws IOException {
+
+            if( ended ) {
+                return null;
+            }
+            int nRead;
+            try {
+                nRead = spawn.readIntoInternalBuffer( output );
+            } finally {
+                spawn.releaseReadBuffer();
+            }
+            if( nRead == -1 ) {
+                LOG.debug( "End of stream reached on " + spawn );
+                ended = true;
+                return null;
+            }
+            MatchResult found = spawn.matchInInternalBuffer( matcher );
+            if( found == null ) {
+                spawn.applyMatchMax();
+            }
+            return found;
+        }
+    }
+}
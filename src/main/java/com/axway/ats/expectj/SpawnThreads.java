@@ -0,0 +1,144 @@
+package com.axway.ats.expectj;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the helper threads of the library: stream pipers, the stream pump,
+ * timers and process supervisors.
+ * <p>
+ * By default these are platform threads. On Java 21 and later they can be
+ * virtual threads instead, so that thousands of concurrent spawns don't need
+ * thousands of platform threads. The library is built for Java 8, so virtual
+ * threads are created through reflection and this mode is simply not
+ * available on older runtimes.
+ * <p>
+ * Virtual threads are always daemon threads. Reading the streams of a
+ * process blocks in file I/O, which ties up a carrier thread; for process
+ * spawns virtual threads are best combined with the {@link StreamPump}.
+ */
+public final class SpawnThreads {
+    /**
+     * <code>Thread.ofVirtual()</code>, or null before Java 21.
+     */
+    private static final Method     OF_VIRTUAL;
+
+    /**
+     * <code>Thread.Builder.name(String)</code>, or null before Java 21.
+     */
+    private static final Method     BUILDER_NAME;
+
+    /**
+     * <code>Thread.Builder.unstarted(Runnable)</code>, or null before Java 21.
+     */
+    private static final Method     BUILDER_UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method builderName = null;
+        Method builderUnstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod( "ofVirtual" );
+            Class<?> builder = Class.forName( "java.lang.Thread$Builder" );
+            builderName = builder.getMethod( "name", String.class );
+            builderUnstarted = builder.getMethod( "unstarted", Runnable.class );
+        } catch( Exception e ) {
+            // Before Java 21, only platform threads
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        BUILDER_NAME = builderName;
+        BUILDER_UNSTARTED = builderUnstarted;
+    }
+
+    /**
+     * Whether new helper threads are virtual.
+     */
+    private static volatile boolean useVirtualThreads;
+
+    private SpawnThreads() {
+
+        // Only static methods here
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Choose whether helper threads started from now on are virtual threads.
+     *
+     * @param virtual true for virtual threads, false for platform threads
+     * @throws UnsupportedOperationException if virtual threads are asked for
+     * and the JVM doesn't support them
+     */
+    public static void setUseVirtualThreads(
+                                             boolean virtual ) {
+
+        if( virtual && !isVirtualThreadSupported() ) {
+            throw new UnsupportedOperationException( "Virtual threads need Java 21 or later, running on Java "
+                                                     + System.getProperty( "java.version" ) );
+        }
+        useVirtualThreads = virtual;
+    }
+
+    /**
+     * @return true if helper threads are virtual threads
+     */
+    public static boolean isUsingVirtualThreads() {
+
+        return useVirtualThreads;
+    }
+
+    /**
+     * Create a helper thread, virtual or not depending on the current mode.
+     * Platform threads are created as daemon threads when asked to, virtual
+     * threads are always daemon threads.
+     *
+     * @param task what the thread runs
+     * @param name the thread name
+     * @param daemon whether a platform thread should be a daemon thread
+     * @return the new thread, not started
+     */
+    static Thread newThread(
+                             Runnable task,
+                             String name,
+                             boolean daemon ) {
+
+        if( useVirtualThreads ) {
+            try {
+                Object builder = BUILDER_NAME.invoke( OF_VIRTUAL.invoke( null ), name );
+                return ( Thread ) BUILDER_UNSTARTED.invoke( builder, task );
+            } catch( IllegalAccessException e ) {
+                throw new IllegalStateException( "Can't create a virtual thread", e );
+            } catch( InvocationTargetException e ) {
+                throw new IllegalStateException( "Can't create a virtual thread", e.getCause() );
+            }
+        }
+
+        Thread thread = new Thread( task, name );
+        thread.setDaemon( daemon );
+        return thread;
+    }
+
+    /**
+     * @param name the name of the threads
+     * @return a factory of daemon helper threads
+     */
+    static ThreadFactory newThreadFactory(
+                                           final String name ) {
+
+        return new ThreadFactory() {
+            public Thread newThread(
+                                     Runnable task ) {
+
+                return SpawnThreads.newThread( task, name, true );
+            }
+        };
+    }
+}
@@ -1,9 +1,10 @@
 package com.axway.ats.expectj;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.channels.Channels;
-import java.nio.channels.Pipe;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
 
 import org.apache.log4j.Logger;
 
@@ -25,6 +26,23 @@ class SpawnableHelper implements TimerEventListener {
      */
     private Spawnable           spawnable;
 
+    /**
+     * When true the spawn's streams are read by the shared {@link StreamPump}
+     * instead of a {@link StreamPiper} thread each.
+     */
+    private final boolean       useStreamPump;
+
+    /**
+     * When true the spawn's output is handed to the {@link Spawn} by a
+     * {@link DirectOutput}, otherwise through a {@link PipeOutput}.
+     */
+    private final boolean       useDirectDelivery;
+
+    /**
+     * The encoding of the spawn's output.
+     */
+    private final Charset       charset;
+
     /**
      * @param timeOutSeconds time interval in seconds to be allowed for spawn execution
      * @param runMe the spawnable to execute
@@ -32,6 +50,23 @@ class SpawnableHelper implements TimerEventListener {
     SpawnableHelper( Spawnable runMe,
                      long timeOutSeconds ) {
 
+        this( runMe, timeOutSeconds, false, true, Charset.defaultCharset() );
+    }
+
+    /**
+     * @param timeOutSeconds time interval in seconds to be allowed for spawn execution
+     * @param runMe the spawnable to execute
+     * @param useStreamPump whether to read the spawn's streams with the shared {@link StreamPump}
+     * @param useDirectDelivery whether to hand the spawn's output over in memory rather than
+     * through pipes
+     * @param charset the encoding of the spawn's output
+     */
+    SpawnableHelper( Spawnable runMe,
+                     long timeOutSeconds,
+                     boolean useStreamPump,
+                     boolean useDirectDelivery,
+                     Charset charset ) {
+
         if( timeOutSeconds < -1 ) {
             throw new IllegalArgumentException( "Time-out is invalid" );
         }
@@ -39,6 +74,9 @@ class SpawnableHelper implements TimerEventListener {
             timer = new Timer( timeOutSeconds, this );
         }
         this.spawnable = runMe;
+        this.useStreamPump = useStreamPump;
+        this.useDirectDelivery = useDirectDelivery;
+        this.charset = charset;
     }
 
     /**
@@ -55,12 +93,12 @@ class SpawnableHelper implements TimerEventListener {
     /**
      * Handle spawn's stdout.
      */
-    private Pipe        systemOut;
+    private SpawnOutput systemOut;
 
     /**
      * Handle spawn's stderr.
      */
-    private Pipe        systemErr;
+    private SpawnOutput systemErr;
 
     /**
      * Drive the pipe from spawn's stdout to {@link #systemOut}.
@@ -72,6 +110,11 @@ class SpawnableHelper implements TimerEventListener {
      */
     private StreamPiper spawnErrToSystemErr = null;
 
+    /**
+     * Will be notified when the spawn closes.
+     */
+    private volatile CloseListener closeListener;
+
     public void timerTimedOut() {
 
         stop();
@@ -95,6 +138,12 @@ public Object getSystemObject() {
         return spawnable.getSystemObject();
     }
 
+    @Override
+    public String toString() {
+
+        return spawnable.toString();
+    }
+
     /**
      * This method is invoked by the {@link Timer}, when the timer thread
      * receives an interrupted exception.
@@ -151,22 +200,87 @@ void start() throws IOException {
         }
 
         // Starting the piped streams and StreamPiper objects
-        systemOut = Pipe.open();
-        systemOut.source().configureBlocking( false );
-        spawnOutToSystemOut = new StreamPiper( System.out,
-                                               spawnable.getStdout(),
-                                               Channels.newOutputStream( systemOut.sink() ) );
-        spawnOutToSystemOut.start();
+        systemOut = newOutput();
+        spawnOutToSystemOut = startPiping( System.out, spawnable.getStdout(), systemOut, new Runnable() {
+            public void run() {
+
+                stdoutEnded();
+            }
+        } );
 
         if( spawnable.getStderr() != null ) {
-            systemErr = Pipe.open();
-            systemErr.source().configureBlocking( false );
+            systemErr = newOutput();
+            spawnErrToSystemErr = startPiping( System.err, spawnable.getStderr(), systemErr, null );
+        }
+    }
+
+    /**
+     * The spawn's output ended, which for SSH channels is how we learn that
+     * the other side closed, JSch has no callback for it. The spawnable
+     * usually reports being closed within a few milliseconds, the
+     * {@link CloseWatcher} tells the close listener when it does. Processes
+     * and telnet sessions report their close themselves, for them this only
+     * gets the close noticed a little sooner.
+     */
+    private void stdoutEnded() {
+
+        CloseWatcher.watch( new CloseWatcher.CloseCheck() {
+            public boolean isClosed() {
+
+                return spawnable.isClosed();
+            }
+        }, new Runnable() {
+            public void run() {
+
+                CloseListener listener = closeListener;
+                if( listener != null ) {
+                    listener.onClose();
+                }
+            }
+        } );
+    }
 
-            spawnErrToSystemErr = new StreamPiper( System.err,
-                                                   spawnable.getStderr(),
-                                                   Channels.newOutputStream( systemErr.sink() ) );
-            spawnErrToSystemErr.start();
+    /**
+     * @return where to put one of the spawn's output streams
+     * @throws IOException if a pipe can't be set up
+     */
+    private SpawnOutput newOutput() throws IOException {
+
+        if( useDirectDelivery ) {
+            return new DirectOutput();
+        }
+        return new PipeOutput();
+    }
+
+    /**
+     * Start moving data from one of the spawn's streams to its output, either
+     * with a thread of its own or with the shared {@link StreamPump}.
+     *
+     * @param copyStream where to copy the data to, unless piping is paused
+     * @param in the spawn's stream
+     * @param output the output to write the data to
+     * @param endListener called when the stream ends, or null. Set before
+     * reading starts, a short stream may end right away.
+     * @return the piper holding the contents of the stream
+     */
+    private StreamPiper startPiping(
+                                     PrintStream copyStream,
+                                     InputStream in,
+                                     SpawnOutput output,
+                                     Runnable endListener ) {
+
+        if( useStreamPump ) {
+            StreamPiper piper = new StreamPiper( copyStream, in, output, charset );
+            piper.setEndListener( endListener );
+            // a telnet session only learns it is closed by reading the end of its socket
+            StreamPump.getInstance().register( piper, in, output, this, !( spawnable instanceof TelnetSpawn ) );
+            return piper;
         }
+
+        StreamPiper piper = new StreamPiper( copyStream, in, output, charset );
+        piper.setEndListener( endListener );
+        piper.start();
+        return piper;
     }
 
     /**
@@ -183,37 +297,30 @@ void close() {
             spawnOutToSystemOut.stopProcessing();
         }
         if( systemOut != null ) {
-            try {
-                systemOut.sink().close();
-            } catch( IOException e ) {
-                LOG.warn( "Closing stdout sink failed", e );
-            }
-            try {
-                systemOut.source().close();
-            } catch( IOException e ) {
-                LOG.warn( "Closing stdout source failed", e );
-            }
+            systemOut.close();
         }
         if( systemErr != null ) {
-            try {
-                systemErr.sink().close();
-            } catch( IOException e ) {
-                LOG.warn( "Closing stderr sink failed", e );
-            }
-            try {
-                systemErr.source().close();
-            } catch( IOException e ) {
-                LOG.warn( "Closing stderr source failed", e );
-            }
+            systemErr.close();
+        }
+    }
+
+    /**
+     * Drop the transcripts and delete their temporary files.
+     */
+    void closeTranscripts() {
+
+        spawnOutToSystemOut.getTranscript().close();
+        if( spawnErrToSystemErr != null ) {
+            spawnErrToSystemErr.getTranscript().close();
         }
     }
 
     /**
-     * @return a channel from which data produced by the spawn can be read
+     * @return where data produced by the spawn can be read
      */
-    Pipe.SourceChannel getStdoutChannel() {
+    SpawnOutput getOutput() {
 
-        return systemOut.source();
+        return systemOut;
     }
 
     /**
@@ -225,15 +332,12 @@ OutputStream getStdin() {
     }
 
     /**
-     * @return a channel from which stderr data produced by the spawn can be read, or
-     * null if there is no channel to stderr.
+     * @return where stderr data produced by the spawn can be read, or null if
+     * there is no stderr.
      */
-    Pipe.SourceChannel getStderrChannel() {
+    SpawnOutput getErrorOutput() {
 
-        if( systemErr == null ) {
-            return null;
-        }
-        return systemErr.source();
+        return systemErr;
     }
 
     /**
@@ -278,6 +382,25 @@ String getCurrentStandardErrContents() {
         return spawnErrToSystemErr.getCurrentContents();
     }
 
+    /**
+     * @return everything the spawn wrote on stdout
+     */
+    Transcript getStandardOutTranscript() {
+
+        return spawnOutToSystemOut.getTranscript();
+    }
+
+    /**
+     * @return everything the spawn wrote on stderr, or null if stderr is not available
+     */
+    Transcript getStandardErrTranscript() {
+
+        if( spawnErrToSystemErr == null ) {
+            return null;
+        }
+        return spawnErrToSystemErr.getTranscript();
+    }
+
     /**
      * Register a listener that will be called when the spawnable we're wrapping
      * closes.
@@ -288,6 +411,7 @@ String getCurrentStandardErrContents() {
     void setCloseListener(
                            CloseListener closeListener ) {
 
+        this.closeListener = closeListener;
         spawnable.setCloseListener( closeListener );
     }
 }
@@ -0,0 +1,541 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.jcraft.jsch.Session;
+
+/**
+ * Keeps authenticated SSH sessions open, so that SSH spawns to the same
+ * host, port and user open a channel over an existing session instead of
+ * connecting and authenticating each time.
+ * <p>
+ * Sessions are only shared between callers giving the same password. The
+ * pool keys its sessions by a salted digest of the password, so a caller
+ * with a wrong password gets a session of its own, whose authentication
+ * fails, and never a channel over the session of someone else.
+ * <p>
+ * A session carries up to {@link #setMaxChannelsPerSession(int) a number of}
+ * channels at once, more sessions are opened when they are all busy. A
+ * session without channels is closed once it has been idle for
+ * {@link #setIdleTimeoutSeconds(long) a while}. Before a session is reused
+ * it is checked with a keep-alive message, and a session that is broken or
+ * whose channel can't be opened is dropped and replaced by a new one.
+ * <p>
+ * Thread safe. Connecting is done out of the lock, so a slow host does not
+ * hold back the others.
+ *
+ * @see ExpectJ#setSshSessionPool(SshSessionPool)
+ */
+public class SshSessionPool {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger                    LOG                    = Logger.getLogger( SshSessionPool.class );
+
+    /**
+     * The sessions of each host, port, user and password.
+     */
+    private final Map<String, List<PooledSession>> sessions               = new HashMap<String, List<PooledSession>>();
+
+    /**
+     * The session of each open channel.
+     */
+    private final Map<Channel, PooledSession>      channels               = new IdentityHashMap<Channel, PooledSession>();
+
+    /**
+     * How many channels a session carries at most. OpenSSH allows 10 by
+     * default, see MaxSessions in sshd_config.
+     */
+    private int                                    maxChannelsPerSession  = 10;
+
+    /**
+     * How long a session without channels stays open, in seconds.
+     */
+    private long                                   idleTimeoutSeconds     = 60;
+
+    /**
+     * How long to wait for a session to connect, in milliseconds.
+     */
+    private int                                    connectTimeoutMillis   = 30000;
+
+    /**
+     * Whether the pool was closed.
+     */
+    private boolean                                closed;
+
+    /**
+     * Salts the digests of the passwords in the keys of the sessions.
+     */
+    private final byte[]                           keySalt                = newSalt();
+
+    /**
+     * @param maxChannelsPerSession how many channels a session carries at
+     * most, it should not be more than what the servers allow
+     */
+    public synchronized void setMaxChannelsPerSession( int maxChannelsPerSession ) {
+
+        if( maxChannelsPerSession < 1 ) {
+            throw new IllegalArgumentException( "A session must carry at least one channel, was "
+                                                + maxChannelsPerSession );
+        }
+        this.maxChannelsPerSession = maxChannelsPerSession;
+    }
+
+    /**
+     * @return how many channels a session carries at most
+     */
+    public synchronized int getMaxChannelsPerSession() {
+
+        return maxChannelsPerSession;
+    }
+
+    /**
+     * @param idleTimeoutSeconds how long a session without channels stays
+     * open, -1 to keep it until the pool is closed
+     */
+    public synchronized void setIdleTimeoutSeconds( long idleTimeoutSeconds ) {
+
+        if( idleTimeoutSeconds < -1 ) {
+            throw new IllegalArgumentException( "Idle timeout must be >= -1, was " + idleTimeoutSeconds );
+        }
+        this.idleTimeoutSeconds = idleTimeoutSeconds;
+    }
+
+    /**
+     * @return how long a session without channels stays open, in seconds
+     */
+    public synchronized long getIdleTimeoutSeconds() {
+
+        return idleTimeoutSeconds;
+    }
+
+    /**
+     * @param connectTimeoutMillis how long to wait for new sessions to
+     * connect, in milliseconds, 0 to wait forever
+     */
+    public synchronized void setConnectTimeoutMillis( int connectTimeoutMillis ) {
+
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * @return how long to wait for new sessions to connect, in milliseconds
+     */
+    public synchronized int getConnectTimeoutMillis() {
+
+        return connectTimeoutMillis;
+    }
+
+    /**
+     * Open sessions ahead of time, so the first spawns don't wait for them.
+     *
+     * @param remoteHost the host to connect to
+     * @param remotePort the port to connect to
+     * @param username the user name with which to authenticate
+     * @param password the password with which to authenticate
+     * @param count how many sessions these host, port, user and password
+     * should have
+     * @throws IOException if a session can't be opened
+     */
+    public void prewarm( String remoteHost,
+                         int remotePort,
+                         String username,
+                         String password,
+                         int count ) throws IOException {
+
+        String target = target( remoteHost, remotePort, username );
+        String key = key( target, password );
+        while( true ) {
+            synchronized( this ) {
+                if( closed ) {
+                    throw new IOException( "The SSH session pool is closed" );
+                }
+                List<PooledSession> list = sessions.get( key );
+                if( list != null && list.size() >= count ) {
+                    return;
+                }
+            }
+            addIdle( connect( key, target, remoteHost, remotePort, username, password ) );
+        }
+    }
+
+    /**
+     * @return the number of open sessions, to all hosts
+     */
+    public synchronized int getSessionCount() {
+
+        int count = 0;
+        for( List<PooledSession> list : sessions.values() ) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * Close all the sessions, the channels still open are closed with them.
+     */
+    public void close() {
+
+        List<PooledSession> toClose = new ArrayList<PooledSession>();
+        synchronized( this ) {
+            closed = true;
+            for( List<PooledSession> list : sessions.values() ) {
+                for( PooledSession session : list ) {
+                    if( session.eviction != null ) {
+                        session.eviction.cancel();
+                        session.eviction = null;
+                    }
+                    toClose.add( session );
+                }
+            }
+            sessions.clear();
+            channels.clear();
+        }
+        for( PooledSession session : toClose ) {
+            session.disconnect();
+        }
+    }
+
+    /**
+     * Open a channel over a pooled session, opening a session if needed.
+     *
+     * @param remoteHost the host to connect to
+     * @param remotePort the port to connect to
+     * @param username the user name with which to authenticate
+     * @param password the password with which to authenticate
+     * @param type the type of channel, like "shell" or "exec"
+     * @param connect whether to connect the channel, exec channels need
+     * their command before
+     * @return the channel, to give back with {@link #releaseChannel(Channel)}
+     * @throws IOException if no session or channel can be opened
+     */
+    Channel openChannel(
+                         String remoteHost,
+                         int remotePort,
+                         String username,
+                         String password,
+                         String type,
+                         boolean connect ) throws IOException {
+
+        String target = target( remoteHost, remotePort, username );
+        String key = key( target, password );
+        while( true ) {
+            PooledSession session = borrow( key );
+            boolean isNew = session == null;
+            if( isNew ) {
+                session = connect( key, target, remoteHost, remotePort, username, password );
+                session.channelCount++;
+                add( session );
+            } else if( !session.isHealthy() ) {
+                // the connection went away meanwhile
+                LOG.info( "Dropping broken SSH session to " + target );
+                discard( session );
+                continue;
+            }
+
+            Channel channel;
+            try {
+                channel = session.session.openChannel( type );
+                if( connect ) {
+                    channel.connect( getConnectTimeoutMillis() );
+                }
+            } catch( JSchException e ) {
+                if( isNew || session.session.isConnected() ) {
+                    giveBack( session );
+                    throw new IOException( "Unable to open SSH " + type + " channel to " + target, e );
+                }
+                LOG.info( "Dropping broken SSH session to " + target, e );
+                discard( session );
+                continue;
+            }
+            synchronized( this ) {
+                channels.put( channel, session );
+            }
+            return channel;
+        }
+    }
+
+    /**
+     * Close a channel opened by {@link #openChannel}, its session stays open
+     * for other channels.
+     *
+     * @param channel the channel
+     */
+    void releaseChannel(
+                         Channel channel ) {
+
+        channel.disconnect();
+        PooledSession session;
+        synchronized( this ) {
+            session = channels.remove( channel );
+        }
+        if( session != null ) {
+            giveBack( session );
+        }
+    }
+
+    /**
+     * @return a connected session with room for a channel, counting the
+     * channel, or null if a new session is needed
+     */
+    private synchronized PooledSession borrow(
+                                               String key ) throws IOException {
+
+        if( closed ) {
+            throw new IOException( "The SSH session pool is closed" );
+        }
+        List<PooledSession> list = sessions.get( key );
+        if( list == null ) {
+            return null;
+        }
+        // fill the busiest session first, so the others can go idle
+        PooledSession best = null;
+        for( PooledSession session : list ) {
+            if( session.channelCount < maxChannelsPerSession
+                && ( best == null || session.channelCount > best.channelCount ) ) {
+                best = session;
+            }
+        }
+        if( best != null ) {
+            best.channelCount++;
+            if( best.eviction != null ) {
+                best.eviction.cancel();
+                best.eviction = null;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Uncount a channel of a session.
+     */
+    private void giveBack(
+                           PooledSession session ) {
+
+        synchronized( this ) {
+            session.channelCount--;
+            if( session.channelCount > 0 || closed ) {
+                return;
+            }
+            if( session.session.isConnected() ) {
+                scheduleEviction( session );
+                return;
+            }
+        }
+        discard( session );
+    }
+
+    /**
+     * Close a session once it has been idle for the idle timeout. Must be
+     * called with the lock held.
+     */
+    private void scheduleEviction(
+                                   final PooledSession session ) {
+
+        if( idleTimeoutSeconds == -1 ) {
+            return;
+        }
+        session.eviction = TimerWheel.getInstance().schedule( idleTimeoutSeconds * 1000, new Runnable() {
+            public void run() {
+
+                synchronized( SshSessionPool.this ) {
+                    if( session.channelCount > 0 || session.eviction == null ) {
+                        // it was borrowed meanwhile
+                        return;
+                    }
+                    session.eviction = null;
+                }
+                LOG.debug( "Closing idle SSH session to " + session.target );
+                discard( session );
+            }
+        } );
+    }
+
+    /**
+     * Put a new session in the pool, without channels.
+     */
+    private synchronized void addIdle(
+                                       PooledSession session ) throws IOException {
+
+        add( session );
+        scheduleEviction( session );
+    }
+
+    /**
+     * Put a new session in the pool.
+     *
+     * @throws IOException if the pool was closed while the session connected
+     */
+    private synchronized void add(
+                                   PooledSession session ) throws IOException {
+
+        if( closed ) {
+            session.disconnect();
+            throw new IOException( "The SSH session pool is closed" );
+        }
+        List<PooledSession> list = sessions.get( session.key );
+        if( list == null ) {
+            list = new ArrayList<PooledSession>();
+            sessions.put( session.key, list );
+        }
+        list.add( session );
+    }
+
+    /**
+     * Take a session out of the pool and close it.
+     */
+    private void discard(
+                          PooledSession session ) {
+
+        synchronized( this ) {
+            List<PooledSession> list = sessions.get( session.key );
+            if( list != null ) {
+                list.remove( session );
+                if( list.isEmpty() ) {
+                    sessions.remove( session.key );
+                }
+            }
+            if( session.eviction != null ) {
+                session.eviction.cancel();
+                session.eviction = null;
+            }
+        }
+        session.disconnect();
+    }
+
+    private PooledSession connect(
+                                   String key,
+                                   String target,
+                                   String remoteHost,
+                                   int remotePort,
+                                   String username,
+                                   String password ) throws IOException {
+
+        LOG.debug( "Opening SSH session to " + target );
+        try {
+            Session session = new JSch().getSession( username, remoteHost, remotePort );
+            session.setPassword( password );
+            session.setConfig( "StrictHostKeyChecking", "no" );
+            session.connect( getConnectTimeoutMillis() );
+            return new PooledSession( key, target, session );
+        } catch( JSchException e ) {
+            throw new IOException( "Unable to establish SSH session to " + target, e );
+        }
+    }
+
+    /**
+     * @return what the sessions connect to, for log messages
+     */
+    private static String target(
+                                  String remoteHost,
+                                  int remotePort,
+                                  String username ) {
+
+        return username + "@" + remoteHost + ":" + remotePort;
+    }
+
+    /**
+     * @return the key of the sessions opened with these credentials, the
+     * password is in it as a salted digest only
+     */
+    private String key(
+                        String target,
+                        String password ) {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance( "SHA-256" );
+        } catch( NoSuchAlgorithmException e ) {
+            // every JVM has SHA-256
+            throw new IllegalStateException( e );
+        }
+        digest.update( keySalt );
+        if( password != null ) {
+            // tell a null password from an empty one
+            digest.update( ( byte ) 1 );
+            digest.update( password.getBytes( StandardCharsets.UTF_8 ) );
+        }
+        StringBuilder key = new StringBuilder( target ).append( '#' );
+        for( byte b : digest.digest() ) {
+            key.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return key.toString();
+    }
+
+    private static byte[] newSalt() {
+
+        byte[] salt = new byte[16];
+        new SecureRandom().nextBytes( salt );
+        return salt;
+    }
+
+    /**
+     * A session of the pool.
+     */
+    private static class PooledSession {
+
+        final String       key;
+
+        /**
+         * What the session connects to, without the password.
+         */
+        final String       target;
+
+        final Session      session;
+
+        /**
+         * The open channels, and the ones being opened.
+         */
+        int                channelCount;
+
+        /**
+         * Closes the session when it has been idle long enough, null while
+         * it is in use.
+         */
+        TimerWheel.Timeout eviction;
+
+        PooledSession( String key,
+                       String target,
+                       Session session ) {
+
+            this.key = key;
+            this.target = target;
+            this.session = session;
+        }
+
+        /**
+         * @return false if the session is known to be broken
+         */
+        boolean isHealthy() {
+
+            if( !session.isConnected() ) {
+                return false;
+            }
+            try {
+                session.sendKeepAliveMsg();
+                return true;
+            } catch( Exception e ) {
+                return false;
+            }
+        }
+
+        void disconnect() {
+
+            session.disconnect();
+        }
+    }
+}
@@ -4,53 +4,78 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 import com.jcraft.jsch.Channel;
+import com.jcraft.jsch.ChannelExec;
 import com.jcraft.jsch.JSch;
 import com.jcraft.jsch.JSchException;
 import com.jcraft.jsch.Session;
 
 /**
  * A Spawnable for controlling an SSH session using ExpectJ.
+ * <p>
+ * By default an interactive shell is opened. Given a command, the spawn
+ * runs it in an exec channel instead, with its own stderr and the real exit
+ * status of the command, like a {@link ProcessSpawn} but on the remote host.
  */
 public class SshSpawn extends AbstractSpawnable implements Spawnable {
     /**
      * A reference to the remote host.
      */
-    private String       m_remoteHost;
+    private String         m_remoteHost;
 
     /**
      * The port we're talking to on the remote host.
      */
-    private int          m_remotePort;
+    private int            m_remotePort;
 
     /**
      * Our communications channel to the remote host.
      */
-    private Session      m_session  = null;
+    private Session        m_session   = null;
 
     /**
      * Use this to read data from the remote host.
      */
-    private OutputStream m_fromSocket;
+    private OutputStream   m_fromSocket;
 
     /**
      * Use this to write data to the remote host.
      */
-    private InputStream  m_toSocket;
+    private InputStream    m_toSocket;
 
     /**
      * The username with which to authenticate
      */
-    private String       m_username = null;
+    private String         m_username  = null;
 
     /**
      * The password with which to authenticate
      */
-    private String       m_password = null;
+    private String         m_password  = null;
 
     /**
-     * The JSch Channel of type "shell"
+     * The JSch Channel of type "shell", or "exec" when running a command
      */
-    private Channel      m_channel  = null;
+    private Channel        m_channel   = null;
+
+    /**
+     * The command to run in an exec channel, null for a shell
+     */
+    private String         m_command   = null;
+
+    /**
+     * Use this to read the stderr of the command, null for a shell
+     */
+    private InputStream    m_stderr    = null;
+
+    /**
+     * The exit status of the command, -1 if unknown
+     */
+    private int            m_exitValue = -1;
+
+    /**
+     * Where the session comes from, null to open our own
+     */
+    private SshSessionPool m_pool      = null;
 
     /**
      * Construct a new SSH spawn.
@@ -70,6 +95,68 @@ public SshSpawn( String remoteHostName,
         this.m_password = password;
     }
 
+    /**
+     * Construct a new SSH spawn whose channel is opened over a session of a
+     * pool, shared with other spawns to the same host, port and user, with
+     * the same password.
+     * @param pool Where to get the session from.
+     * @param remoteHostName The remote host to connect to.
+     * @param remotePort The remote port to connect to.
+     * @param username The user name with which to authenticate
+     * @param password The password with which to authenticate
+     */
+    public SshSpawn( SshSessionPool pool,
+                     String remoteHostName,
+                     int remotePort,
+                     String username,
+                     String password ) {
+
+        this( remoteHostName, remotePort, username, password );
+        this.m_pool = pool;
+    }
+
+    /**
+     * Construct a new SSH spawn running a single command in an exec channel.
+     * Its stdout and stderr are read separately, and its exit status is
+     * reported by {@link #getExitValue()}.
+     * @param remoteHostName The remote host to connect to.
+     * @param remotePort The remote port to connect to.
+     * @param username The user name with which to authenticate
+     * @param password The password with which to authenticate
+     * @param command The command to run
+     */
+    public SshSpawn( String remoteHostName,
+                     int remotePort,
+                     String username,
+                     String password,
+                     String command ) {
+
+        this( remoteHostName, remotePort, username, password );
+        this.m_command = command;
+    }
+
+    /**
+     * Construct a new SSH spawn running a single command in an exec channel
+     * opened over a session of a pool.
+     * @param pool Where to get the session from.
+     * @param remoteHostName The remote host to connect to.
+     * @param remotePort The remote port to connect to.
+     * @param username The user name with which to authenticate
+     * @param password The password with which to authenticate
+     * @param command The command to run
+     * @see #SshSpawn(String, int, String, String, String)
+     */
+    public SshSpawn( SshSessionPool pool,
+                     String remoteHostName,
+                     int remotePort,
+                     String username,
+                     String password,
+                     String command ) {
+
+        this( pool, remoteHostName, remotePort, username, password );
+        this.m_command = command;
+    }
+
     /**
      * Takes control over an existing SSH channel.
      *
@@ -102,14 +189,36 @@ public void start() throws IOException {
             return;
         }
 
+        String type = m_command == null
+                                        ? "shell"
+                                        : "exec";
+        // an exec channel needs its command and streams before connecting
+        boolean connectNow = m_command == null;
         try {
-            m_session = new JSch().getSession( m_username, m_remoteHost, m_remotePort );
-            m_session.setPassword( m_password );
-            m_session.setConfig( "StrictHostKeyChecking", "no" );
-            m_session.connect();
-            m_channel = m_session.openChannel( "shell" );
-            m_channel.connect();
+            if( m_pool != null ) {
+                m_channel = m_pool.openChannel( m_remoteHost, m_remotePort, m_username, m_password, type,
+                                                connectNow );
+            } else {
+                m_session = new JSch().getSession( m_username, m_remoteHost, m_remotePort );
+                m_session.setPassword( m_password );
+                m_session.setConfig( "StrictHostKeyChecking", "no" );
+                m_session.connect();
+                m_channel = m_session.openChannel( type );
+                if( connectNow ) {
+                    m_channel.connect();
+                }
+            }
+            if( !connectNow ) {
+                ChannelExec exec = ( ChannelExec ) m_channel;
+                exec.setCommand( m_command );
+                m_stderr = exec.getErrStream();
+                m_toSocket = exec.getInputStream();
+                m_fromSocket = exec.getOutputStream();
+                exec.connect();
+                return;
+            }
         } catch( JSchException e ) {
+            stop();
             throw new IOException( "Unable to establish SSH session/channel", e );
         }
         m_toSocket = m_channel.getInputStream();
@@ -128,10 +237,10 @@ public OutputStream getStdin() {
 
     public InputStream getStderr() {
 
-        return null;
+        return m_stderr;
     }
 
-    public boolean isClosed() {
+    public synchronized boolean isClosed() {
 
         if( m_channel != null ) {
             if( m_channel.isClosed() ) {
@@ -142,19 +251,40 @@ public boolean isClosed() {
         return m_channel == null;
     }
 
-    public int getExitValue() {
+    /**
+     * @return the exit status of the command, -1 if the spawn was stopped
+     * before the command finished. Always 0 for a shell.
+     * @throws ExpectJException if the command is still running
+     */
+    public synchronized int getExitValue() throws ExpectJException {
 
-        return 0;
+        if( m_command == null ) {
+            return 0;
+        }
+        if( !isClosed() ) {
+            throw new ExpectJException( "Command is still running" );
+        }
+        return m_exitValue;
     }
 
-    public void stop() {
+    public synchronized void stop() {
 
-        if( m_channel == null ) {
+        if( m_channel == null && m_session == null ) {
             return;
         }
 
-        m_channel.disconnect();
-        m_channel = null;
+        if( m_channel != null ) {
+            if( m_channel.isClosed() ) {
+                m_exitValue = m_channel.getExitStatus();
+            }
+            if( m_pool != null ) {
+                // the session stays open for other spawns
+                m_pool.releaseChannel( m_channel );
+            } else {
+                m_channel.disconnect();
+            }
+            m_channel = null;
+        }
 
         if( m_session != null ) {
             m_session.disconnect();
@@ -162,10 +292,22 @@ public void stop() {
         }
         m_toSocket = null;
         m_fromSocket = null;
+        m_stderr = null;
     }
 
     public Object getSystemObject() {
 
         return null;
     }
+
+    @Override
+    public String toString() {
+
+        String target = m_remoteHost == null
+                                             ? "an SSH channel"
+                                             : "SSH to " + m_username + "@" + m_remoteHost + ":" + m_remotePort;
+        return m_command == null
+                                 ? target
+                                 : target + " running '" + m_command + "'";
+    }
 }
@@ -0,0 +1,138 @@
+package com.axway.ats.expectj;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes one of the spawn's output streams, chunk by chunk as it is read.
+ * <p>
+ * A multi-byte sequence split between two reads is kept until the rest of
+ * it arrives, so it comes out as one character. Malformed input is replaced
+ * like {@link String#String(byte[], Charset)} does, and 0 bytes are
+ * characters like any other.
+ * <p>
+ * Not thread safe, each stream has its own decoder used by the thread
+ * reading the stream.
+ */
+class StreamDecoder {
+    /**
+     * The initial size of the character buffer, it grows with the chunks.
+     */
+    private static final int     INITIAL_SIZE = 512;
+
+    private final CharsetDecoder decoder;
+
+    /**
+     * ISO-8859-1 maps each byte to the character of the same value, so it
+     * needs no decoder.
+     */
+    private final boolean        latin1;
+
+    /**
+     * The end of a chunk that could not be decoded yet, in read mode.
+     */
+    private ByteBuffer           leftover     = ByteBuffer.allocate( 0 );
+
+    /**
+     * Receives the characters, reused for every chunk.
+     */
+    private CharBuffer           chars        = CharBuffer.allocate( INITIAL_SIZE );
+
+    /**
+     * @param charset the encoding of the stream
+     */
+    StreamDecoder( Charset charset ) {
+
+        decoder = charset.newDecoder()
+                         .onMalformedInput( CodingErrorAction.REPLACE )
+                         .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        latin1 = StandardCharsets.ISO_8859_1.equals( charset );
+    }
+
+    /**
+     * @return the encoding of the stream
+     */
+    Charset charset() {
+
+        return decoder.charset();
+    }
+
+    /**
+     * Decode the next chunk of the stream.
+     *
+     * @param bytes holds the chunk
+     * @param offset where the chunk starts
+     * @param length the length of the chunk
+     * @return the characters, in read mode, valid until the next call
+     */
+    CharBuffer decode(
+                       byte[] bytes,
+                       int offset,
+                       int length ) {
+
+        if( latin1 ) {
+            chars.clear();
+            if( chars.capacity() < length ) {
+                chars = CharBuffer.allocate( Math.max( length, chars.capacity() * 2 ) );
+            }
+            char[] array = chars.array();
+            for( int i = 0; i < length; i++ ) {
+                array[i] = ( char ) ( bytes[offset + i] & 0xFF );
+            }
+            chars.limit( length );
+            return chars;
+        }
+
+        ByteBuffer in = ByteBuffer.wrap( bytes, offset, length );
+        if( leftover.hasRemaining() ) {
+            // finish the sequence started by the previous chunk
+            ByteBuffer joined = ByteBuffer.allocate( leftover.remaining() + length );
+            joined.put( leftover ).put( in ).flip();
+            in = joined;
+        }
+
+        chars.clear();
+        int needed = ( int ) ( in.remaining() * decoder.maxCharsPerByte() ) + 1;
+        if( chars.capacity() < needed ) {
+            chars = CharBuffer.allocate( Math.max( needed, chars.capacity() * 2 ) );
+        }
+        decoder.decode( in, chars, false );
+        keepLeftover( in );
+        chars.flip();
+        return chars;
+    }
+
+    /**
+     * The stream ended, decode what is left.
+     *
+     * @return the characters, in read mode, valid until the next call
+     */
+    CharBuffer finish() {
+
+        chars.clear();
+        CoderResult result = decoder.decode( leftover, chars, true );
+        if( !result.isOverflow() ) {
+            decoder.flush( chars );
+        }
+        leftover = ByteBuffer.allocate( 0 );
+        decoder.reset();
+        chars.flip();
+        return chars;
+    }
+
+    private void keepLeftover(
+                               ByteBuffer in ) {
+
+        if( !in.hasRemaining() ) {
+            return;
+        }
+        // a few bytes at most, the start of a multi-byte sequence
+        leftover = ByteBuffer.allocate( in.remaining() );
+        leftover.put( in ).flip();
+    }
+}
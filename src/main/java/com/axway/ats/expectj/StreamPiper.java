@@ -4,6 +4,8 @@
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 
 import org.apache.log4j.Logger;
 
@@ -15,7 +17,7 @@
  * @author	Sachin Shekar Shetty
  */
 
-class StreamPiper extends Thread implements Runnable {
+class StreamPiper implements Runnable {
     /**
      * Log messages go here.
      */
@@ -31,6 +33,16 @@ class StreamPiper extends Thread implements Runnable {
      */
     private OutputStream          outputStream       = null;
 
+    /**
+     * Or write the decoded data to here.
+     */
+    private SpawnOutput           output             = null;
+
+    /**
+     * Decodes the data, once for the transcript and the output.
+     */
+    private final StreamDecoder   decoder;
+
     /**
      * Optionally send a copy of all piped data to here.
      */
@@ -49,9 +61,14 @@ class StreamPiper extends Thread implements Runnable {
     private boolean               continueProcessing = true;
 
     /**
-     * String Buffer to hold the contents of output and err.
+     * Holds the contents of output and err.
      */
-    private volatile StringBuffer sCurrentOut        = new StringBuffer();
+    private final Transcript      transcript         = new Transcript();
+
+    /**
+     * If non-null, will be notified when the input stream ends.
+     */
+    private volatile Runnable     endListener        = null;
 
     /**
      * When data piping is paused, we just drop data from the input stream
@@ -75,15 +92,46 @@ private synchronized boolean getPipingPaused() {
                  InputStream pi,
                  OutputStream po ) {
 
+        this( copyStream, pi, Charset.defaultCharset() );
+        this.outputStream = po;
+    }
+
+    /**
+     * @param copyStream Stream to copy the contents to before piping
+     * the data to another stream. When this parameter is null, it does
+     * not copy the contents
+     * @param pi Input stream to read the data
+     * @param output where to write the decoded data
+     * @param charset the encoding of the data
+     */
+    StreamPiper( PrintStream copyStream,
+                 InputStream pi,
+                 SpawnOutput output,
+                 Charset charset ) {
+
+        this( copyStream, pi, charset );
+        this.output = output;
+    }
+
+    private StreamPiper( PrintStream copyStream,
+                         InputStream pi,
+                         Charset charset ) {
+
         if( pi == null ) {
             throw new NullPointerException( "Input stream must not be null" );
         }
         this.inputStream = pi;
-        this.outputStream = po;
         this.copyStream = copyStream;
+        this.decoder = new StreamDecoder( charset );
+    }
+
+    /**
+     * Start piping in a thread of our own.
+     */
+    void start() {
+
         // So that JVM does not wait for these threads
-        this.setDaemon( true );
-        this.setName( "ExpectJ Stream Piper" );
+        SpawnThreads.newThread( this, "ExpectJ Stream Piper", true ).start();
     }
 
     /**
@@ -117,7 +165,7 @@ public synchronized void stopProcessing() {
      *
      * @return True if we should keep piping data.  False if we should shut down.
      */
-    private synchronized boolean getContinueProcessing() {
+    synchronized boolean getContinueProcessing() {
 
         return continueProcessing;
     }
@@ -125,9 +173,70 @@ private synchronized boolean getContinueProcessing() {
     /**
      * @return the entire available contents read from the stream
      */
-    synchronized String getCurrentContents() {
+    String getCurrentContents() {
+
+        return transcript.toString();
+    }
+
+    /**
+     * @return everything read from the stream
+     */
+    Transcript getTranscript() {
+
+        return transcript;
+    }
+
+    /**
+     * @param endListener will be called when the input stream ends
+     */
+    void setEndListener(
+                         Runnable endListener ) {
+
+        this.endListener = endListener;
+    }
+
+    /**
+     * Notify the end listener, called once the input stream ended.
+     */
+    void streamEnded() {
+
+        Runnable listener = endListener;
+        if( listener != null ) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Keep a copy of piped data in the current contents, and on the copy
+     * stream unless piping is paused.
+     *
+     * @param buffer holds the data
+     * @param length how many bytes of the buffer to use
+     * @return the decoded data, valid until the next call
+     */
+    CharBuffer record(
+                       byte[] buffer,
+                       int length ) {
+
+        CharBuffer chars = decoder.decode( buffer, 0, length );
+        transcript.append( chars );
+        if( copyStream != null && !getPipingPaused() ) {
+            copyStream.write( buffer, 0, length );
+            copyStream.flush();
+        }
+        return chars;
+    }
+
+    /**
+     * Keep what is left once the stream ended, an incomplete character at most.
+     *
+     * @return the decoded data
+     */
+    CharBuffer recordEnd() {
 
-        return sCurrentOut.toString();
+        CharBuffer chars = decoder.finish();
+        transcript.append( chars );
+        return chars;
     }
 
     /**
@@ -144,16 +253,23 @@ public void run() {
                 if( bytes_read == -1 ) {
                     LOG.debug( "Stream ended, closing" );
                     inputStream.close();
-                    outputStream.close();
+                    CharBuffer rest = recordEnd();
+                    if( output != null ) {
+                        output.writeFully( rest );
+                        output.closeSink();
+                    } else {
+                        outputStream.close();
+                    }
+                    streamEnded();
                     return;
                 }
-                outputStream.write( buffer, 0, bytes_read );
-                sCurrentOut.append( new String( buffer, 0, bytes_read ) );
-                if( copyStream != null && !getPipingPaused() ) {
-                    copyStream.write( buffer, 0, bytes_read );
-                    copyStream.flush();
+                CharBuffer chars = record( buffer, bytes_read );
+                if( output != null ) {
+                    output.writeFully( chars );
+                } else {
+                    outputStream.write( buffer, 0, bytes_read );
+                    outputStream.flush();
                 }
-                outputStream.flush();
             }
         } catch( IOException e ) {
             if( getContinueProcessing() ) {
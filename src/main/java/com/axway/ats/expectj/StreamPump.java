@@ -0,0 +1,415 @@
+package com.axway.ats.expectj;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pumps the output of many spawns with a few shared threads, instead of one
+ * {@link StreamPiper} thread per stream.
+ * <p>
+ * This trades latency and throughput for threads and their stacks, it is not
+ * an event loop. Process, socket and SSH streams can't be selected on, so
+ * each pump thread polls its streams with {@link InputStream#available()}
+ * and only reads what is there, which never blocks. When a whole pass finds
+ * nothing to do the thread parks for a short while, starting at 1 ms and
+ * backing off up to 10 ms. Data arriving on an idle stream therefore waits up
+ * to 10 ms before it is read, and a single busy stream is read more slowly
+ * than by a thread of its own. Data is written to the spawn's output without
+ * blocking, a stream whose output is full is not read again until the spawn
+ * catches up.
+ * <p>
+ * An idle stream can't tell "no data yet" from "end of stream". Once its
+ * spawn is closed, the rest of the stream is read with blocking reads by a
+ * small pool of adapter threads, which only live while there is something to
+ * drain. Streams whose end is the only sign of their spawn closing, like the
+ * socket of a telnet session, are read by an adapter thread from the start.
+ * <p>
+ * Worth it when many spawns run at once and mostly wait, not for a few
+ * spawns exchanging lots of small messages or moving bulk data. The
+ * <code>StreamPumpBenchmark</code> among the tests compares both modes.
+ * <p>
+ * Enabled per {@link ExpectJ} with {@link ExpectJ#setUseStreamPump(boolean)}.
+ * Spawnables used this way must return streams whose
+ * {@link InputStream#available()} reports the buffered data, which is the
+ * case for all the spawnables of this library.
+ */
+public final class StreamPump {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger      LOG              = Logger.getLogger( StreamPump.class );
+
+    /**
+     * The default number of pump threads.
+     */
+    public static final int          DEFAULT_THREADS  = 1;
+
+    /**
+     * The shortest time a pump thread parks when idle.
+     */
+    private static final long        MIN_IDLE_NANOS   = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    /**
+     * The longest time a pump thread parks when idle.
+     */
+    private static final long        MAX_IDLE_NANOS   = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+    /**
+     * Size of the read buffer of each pump thread.
+     */
+    private static final int         BUFFER_SIZE      = 64 * 1024;
+
+    /**
+     * The only instance, created on first use.
+     */
+    private static StreamPump        instance;
+
+    /**
+     * How many pump threads the instance will start.
+     */
+    private static int               threadCount      = DEFAULT_THREADS;
+
+    /**
+     * The pump threads, streams are spread among them.
+     */
+    private final PumpThread[]       pumpThreads;
+
+    /**
+     * Drains the streams of closed spawns with blocking reads.
+     */
+    private final ExecutorService    adapterPool;
+
+    private StreamPump( int threads ) {
+
+        pumpThreads = new PumpThread[threads];
+        for( int i = 0; i < threads; i++ ) {
+            pumpThreads[i] = new PumpThread( "ExpectJ Stream Pump " + i );
+            pumpThreads[i].start();
+        }
+        adapterPool = new ThreadPoolExecutor( 0,
+                                              Integer.MAX_VALUE,
+                                              10,
+                                              TimeUnit.SECONDS,
+                                              new SynchronousQueue<Runnable>(),
+                                              SpawnThreads.newThreadFactory( "ExpectJ Stream Pump Adapter" ) );
+    }
+
+    /**
+     * @return the pump shared by all spawns, started on the first call
+     */
+    static synchronized StreamPump getInstance() {
+
+        if( instance == null ) {
+            instance = new StreamPump( threadCount );
+        }
+        return instance;
+    }
+
+    /**
+     * Set how many pump threads to start. Only has an effect before the first
+     * spawn using the pump is started.
+     *
+     * @param threads the number of pump threads, at least 1
+     */
+    public static synchronized void setThreadCount(
+                                                    int threads ) {
+
+        if( threads < 1 ) {
+            throw new IllegalArgumentException( "Thread count must be >= 1, was " + threads );
+        }
+        threadCount = threads;
+    }
+
+    /**
+     * @return how many pump threads are or will be running
+     */
+    public static synchronized int getThreadCount() {
+
+        if( instance != null ) {
+            return instance.pumpThreads.length;
+        }
+        return threadCount;
+    }
+
+    /**
+     * @return how many streams are currently pumped
+     */
+    public static int getStreamCount() {
+
+        StreamPump pump;
+        synchronized( StreamPump.class ) {
+            pump = instance;
+        }
+        if( pump == null ) {
+            return 0;
+        }
+        int count = 0;
+        for( PumpThread pumpThread : pump.pumpThreads ) {
+            count += pumpThread.streamCount;
+        }
+        return count;
+    }
+
+    /**
+     * Start pumping a stream.
+     *
+     * @param piper keeps the contents of the stream and tells when to stop
+     * @param in the stream to read
+     * @param sink where to write what we read
+     * @param owner the helper of the spawn the stream comes from
+     * @param pollable false if the spawn can't tell it is closed before the
+     * end of the stream is read, the stream is then read with blocking reads
+     */
+    void register(
+                   StreamPiper piper,
+                   InputStream in,
+                   SpawnOutput sink,
+                   SpawnableHelper owner,
+                   boolean pollable ) {
+
+        if( !pollable ) {
+            adapterPool.execute( new PumpedStream( piper, in, sink, owner ) );
+            return;
+        }
+        PumpThread target = pumpThreads[0];
+        for( PumpThread pumpThread : pumpThreads ) {
+            if( pumpThread.streamCount < target.streamCount ) {
+                target = pumpThread;
+            }
+        }
+        target.add( new PumpedStream( piper, in, sink, owner ) );
+    }
+
+    /**
+     * A thread polling its share of the streams.
+     */
+    private class PumpThread implements Runnable {
+        /**
+         * The thread running this pump.
+         */
+        private final Thread              thread;
+
+        /**
+         * Streams registered but not picked up by the thread yet.
+         */
+        private final Queue<PumpedStream> added = new ConcurrentLinkedQueue<PumpedStream>();
+
+        /**
+         * Number of streams of this thread, including the ones just added.
+         */
+        private volatile int              streamCount;
+
+        PumpThread( String name ) {
+
+            thread = SpawnThreads.newThread( this, name, true );
+        }
+
+        void start() {
+
+            thread.start();
+        }
+
+        void add(
+                  PumpedStream stream ) {
+
+            synchronized( this ) {
+                streamCount++;
+            }
+            added.add( stream );
+            LockSupport.unpark( thread );
+        }
+
+        public void run() {
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            List<PumpedStream> streams = new ArrayList<PumpedStream>();
+            long idleNanos = MIN_IDLE_NANOS;
+            while( true ) {
+                PumpedStream stream;
+                while( ( stream = added.poll() ) != null ) {
+                    streams.add( stream );
+                }
+
+                boolean progress = false;
+                Iterator<PumpedStream> it = streams.iterator();
+                while( it.hasNext() ) {
+                    switch( it.next().pump( buffer ) ){
+                        case PumpedStream.PROGRESS:
+                            progress = true;
+                            break;
+                        case PumpedStream.DONE:
+                            it.remove();
+                            synchronized( this ) {
+                                streamCount--;
+                            }
+                            break;
+                        default:
+                            break;
+                    }
+                }
+
+                if( progress ) {
+                    idleNanos = MIN_IDLE_NANOS;
+                } else if( streams.isEmpty() ) {
+                    // nothing to do until a stream is added
+                    LockSupport.park( this );
+                } else {
+                    LockSupport.parkNanos( this, idleNanos );
+                    idleNanos = Math.min( idleNanos * 2, MAX_IDLE_NANOS );
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one pumped stream. Only used by its pump thread, until it
+     * is handed to the adapter pool.
+     */
+    private class PumpedStream implements Runnable {
+        /**
+         * Data was moved.
+         */
+        static final int                PROGRESS = 0;
+
+        /**
+         * Nothing to do right now.
+         */
+        static final int                IDLE     = 1;
+
+        /**
+         * The stream is not ours anymore.
+         */
+        static final int                DONE     = 2;
+
+        private final StreamPiper       piper;
+
+        private final InputStream       in;
+
+        private final SpawnOutput       sink;
+
+        private final SpawnableHelper   owner;
+
+        /**
+         * Data read but not written yet because the output was full.
+         */
+        private CharBuffer              backlog;
+
+        PumpedStream( StreamPiper piper,
+                      InputStream in,
+                      SpawnOutput sink,
+                      SpawnableHelper owner ) {
+
+            this.piper = piper;
+            this.in = in;
+            this.sink = sink;
+            this.owner = owner;
+        }
+
+        /**
+         * Move what can be moved without blocking.
+         *
+         * @param buffer the read buffer of the pump thread
+         * @return {@link #PROGRESS}, {@link #IDLE} or {@link #DONE}
+         */
+        int pump(
+                  byte[] buffer ) {
+
+            if( !piper.getContinueProcessing() ) {
+                return DONE;
+            }
+            try {
+                if( backlog != null ) {
+                    int written = sink.write( backlog );
+                    if( backlog.hasRemaining() ) {
+                        return written > 0
+                                           ? PROGRESS
+                                           : IDLE;
+                    }
+                    backlog = null;
+                }
+
+                int available = in.available();
+                if( available > 0 ) {
+                    int bytesRead = in.read( buffer, 0, Math.min( available, buffer.length ) );
+                    if( bytesRead == -1 ) {
+                        endOfStream();
+                        return DONE;
+                    }
+                    CharBuffer data = piper.record( buffer, bytesRead );
+                    sink.write( data );
+                    if( data.hasRemaining() ) {
+                        backlog = CharBuffer.allocate( data.remaining() );
+                        backlog.put( data );
+                        backlog.flip();
+                    }
+                    return PROGRESS;
+                }
+
+                if( owner.isClosed() ) {
+                    // whatever is left is read with blocking reads
+                    adapterPool.execute( this );
+                    return DONE;
+                }
+                return IDLE;
+            } catch( IOException e ) {
+                failed( e );
+                return DONE;
+            }
+        }
+
+        /**
+         * Drain the stream with blocking reads, run by the adapter pool.
+         */
+        public void run() {
+
+            try {
+                if( backlog != null ) {
+                    sink.writeFully( backlog );
+                    backlog = null;
+                }
+
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while( piper.getContinueProcessing() ) {
+                    int bytesRead = in.read( buffer );
+                    if( bytesRead == -1 ) {
+                        endOfStream();
+                        return;
+                    }
+                    sink.writeFully( piper.record( buffer, bytesRead ) );
+                }
+            } catch( IOException e ) {
+                failed( e );
+            }
+        }
+
+        private void endOfStream() throws IOException {
+
+            LOG.debug( "Stream ended, closing" );
+            in.close();
+            sink.writeFully( piper.recordEnd() );
+            sink.closeSink();
+            piper.streamEnded();
+        }
+
+        private void failed(
+                             IOException e ) {
+
+            if( piper.getContinueProcessing() ) {
+                LOG.error( "Trouble while pushing data between streams", e );
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.axway.ats.expectj;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -37,6 +38,13 @@ class TelnetSpawn extends AbstractSpawnable implements Spawnable {
      */
     private OutputStream m_toSocket;
 
+    /**
+     * Guards closing the socket, which the thread reading it does when the
+     * remote host closes the connection. Not the spawnable itself, that one
+     * is held while the close listener runs.
+     */
+    private final Object m_closeLock = new Object();
+
     /**
      * Construct a new telnet spawn.
      * @param remoteHostName The remote host to connect to.
@@ -53,10 +61,49 @@ public TelnetSpawn( String remoteHostName,
     public void start() throws IOException {
 
         m_socket = new Socket( m_remoteHost, m_remotePort );
-        m_fromSocket = m_socket.getInputStream();
+        m_fromSocket = new FilterInputStream( m_socket.getInputStream() ) {
+            @Override
+            public int read() throws IOException {
+
+                int b = super.read();
+                if( b == -1 ) {
+                    remoteClosed();
+                }
+                return b;
+            }
+
+            @Override
+            public int read(
+                             byte[] b,
+                             int off,
+                             int len ) throws IOException {
+
+                int bytesRead = super.read( b, off, len );
+                if( bytesRead == -1 ) {
+                    remoteClosed();
+                }
+                return bytesRead;
+            }
+        };
         m_toSocket = m_socket.getOutputStream();
     }
 
+    /**
+     * The end of the input is the remote host closing the connection, the
+     * socket itself doesn't report being closed until we close it.
+     */
+    private void remoteClosed() {
+
+        boolean wasOpen;
+        synchronized( m_closeLock ) {
+            wasOpen = m_socket != null;
+            stop();
+        }
+        if( wasOpen ) {
+            onClose();
+        }
+    }
+
     public InputStream getStdout() {
 
         return m_fromSocket;
@@ -74,13 +121,15 @@ public InputStream getStderr() {
 
     public boolean isClosed() {
 
-        if( m_socket != null ) {
-            if( m_socket.isClosed() ) {
-                // We've been disconnected, shut down
-                stop();
+        synchronized( m_closeLock ) {
+            if( m_socket != null ) {
+                if( m_socket.isClosed() ) {
+                    // We've been disconnected, shut down
+                    stop();
+                }
             }
+            return m_socket == null;
         }
-        return m_socket == null;
     }
 
     public int getExitValue() {
@@ -90,22 +139,30 @@ public int getExitValue() {
 
     public void stop() {
 
-        if( m_socket == null ) {
-            return;
-        }
+        synchronized( m_closeLock ) {
+            if( m_socket == null ) {
+                return;
+            }
 
-        try {
-            m_socket.close();
-        } catch( IOException ignored ) {
-            // Failure: When your best just isn't good enough.
+            try {
+                m_socket.close();
+            } catch( IOException ignored ) {
+                // Failure: When your best just isn't good enough.
+            }
+            m_socket = null;
+            m_fromSocket = null;
+            m_toSocket = null;
         }
-        m_socket = null;
-        m_fromSocket = null;
-        m_toSocket = null;
     }
 
     public Object getSystemObject() {
 
         return null;
     }
+
+    @Override
+    public String toString() {
+
+        return "telnet to " + m_remoteHost.getHostName() + ":" + m_remotePort;
+    }
 }
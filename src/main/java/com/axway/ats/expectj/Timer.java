@@ -2,53 +2,51 @@
 
 /**
  * This class acts like a timer and invokes the listener on time-out.
+ * <p>
+ * Timers don't have threads of their own, they are scheduled on the
+ * {@link TimerWheel} shared by all spawns.
  */
 class Timer implements Runnable {
     /**
      * The time interval in milliseconds up to which the process
      * should be allowed to run.
      */
-    private long               timeOut       = 0;
+    private long                timeOut       = 0;
 
     /**
      * The entity that wants to be notified on timeout.
      */
-    private TimerEventListener listener      = null;
+    private TimerEventListener  listener      = null;
 
     /**
-     * The waiting thread.
+     * Our entry in the timer wheel.
      */
-    private Thread             thread        = null;
+    private TimerWheel.Timeout  timeout       = null;
 
     /**
      * Timer not started.
      */
-    public static final int    NOT_STARTED   = 0;
+    public static final int     NOT_STARTED   = 0;
 
     /**
      * Timer started and still running.
      */
-    public static final int    STARTED       = 1;
+    public static final int     STARTED       = 1;
 
     /**
      * Timer timed out.
      */
-    public static final int    TIMEDOUT      = 2;
+    public static final int     TIMEDOUT      = 2;
 
     /**
      * Timer interrupted.
      */
-    public static final int    INTERRUPTED   = 3;
+    public static final int     INTERRUPTED   = 3;
 
     /**
      * Stores the current status of Timer
      */
-    private int                currentStatus = NOT_STARTED;
-
-    /**
-     * Are we there yet?
-     */
-    private boolean            done          = false;
+    private volatile int        currentStatus = NOT_STARTED;
 
     /**
      * Constructor
@@ -77,9 +75,8 @@ public Timer( long timeOut,
      */
     public void startTimer() {
 
-        thread = new Thread( this, "ExpectJ Timer Thread, " + timeOut + "ms" );
         currentStatus = STARTED;
-        thread.start();
+        timeout = TimerWheel.getInstance().schedule( timeOut, this );
     }
 
     /**
@@ -99,33 +96,18 @@ public int getStatus() {
      */
     public void close() {
 
-        synchronized( this ) {
-            done = true;
-            this.notify();
+        if( timeout != null ) {
+            timeout.cancel();
         }
     }
 
     /**
-     * This is the timer thread main.
+     * Called by the timer wheel when the time is up.
      */
     public void run() {
 
-        try {
-            // Sleep for the specified time
-            synchronized( this ) {
-                this.wait( timeOut );
-                if( done ) {
-                    // We've been nicely asked to quit
-                    return;
-                }
-
-                // Jag Utha Shaitan, Its time to invoke the listener
-                currentStatus = TIMEDOUT;
-                listener.timerTimedOut();
-            }
-        } catch( InterruptedException iexp ) {
-            currentStatus = INTERRUPTED;
-            listener.timerInterrupted( iexp );
-        }
+        // Jag Utha Shaitan, Its time to invoke the listener
+        currentStatus = TIMEDOUT;
+        listener.timerTimedOut();
     }
 }
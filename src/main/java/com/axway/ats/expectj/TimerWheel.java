@@ -0,0 +1,361 @@
+package com.axway.ats.expectj;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * One scheduler for the timeouts of all spawns.
+ * <p>
+ * This is a hashed timing wheel with millisecond ticks. A timeout goes to the
+ * bucket of its deadline tick, modulo the wheel size, in a doubly linked
+ * list, so scheduling and cancelling are O(1) and cost one object. A single
+ * thread advances the wheel one tick at a time and fires the timeouts whose
+ * deadline has come, timeouts further away stay in their bucket until a
+ * later revolution. The thread doesn't wake up every tick, it sleeps until
+ * the nearest deadline, found by scanning forward to the next bucket holding
+ * a timeout due in this revolution, and not at all while the wheel is empty.
+ * <p>
+ * Expired timeouts run on a separate pool, so a slow listener, like one
+ * stopping a process and waiting for it, does not delay other timeouts.
+ */
+final class TimerWheel {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger       LOG        = Logger.getLogger( TimerWheel.class );
+
+    /**
+     * Number of buckets, a power of two.
+     */
+    private static final int          WHEEL_SIZE = 512;
+
+    /**
+     * Finds the bucket of a tick.
+     */
+    private static final int          WHEEL_MASK = WHEEL_SIZE - 1;
+
+    /**
+     * The length of a tick.
+     */
+    private static final long         TICK_NANOS = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+    /**
+     * The only instance, shared by all spawns.
+     */
+    private static final TimerWheel   INSTANCE   = new TimerWheel();
+
+    /**
+     * Guards all the state of the wheel.
+     */
+    private final ReentrantLock       lock       = new ReentrantLock();
+
+    /**
+     * Signalled when a timeout is scheduled before the worker would wake up.
+     */
+    private final Condition           scheduled  = lock.newCondition();
+
+    /**
+     * First timeout of each bucket.
+     */
+    private final Timeout[]           buckets    = new Timeout[WHEEL_SIZE];
+
+    /**
+     * Time the ticks are counted from.
+     */
+    private final long                startNanos = System.nanoTime();
+
+    /**
+     * The last tick processed.
+     */
+    private long                      tick;
+
+    /**
+     * Number of timeouts in the wheel.
+     */
+    private int                       pending;
+
+    /**
+     * The tick the worker sleeps until, {@link Long#MAX_VALUE} while the wheel
+     * is empty, -1 while the worker is not sleeping.
+     */
+    private long                      wakeTick   = -1;
+
+    /**
+     * Advances the wheel, started on first use.
+     */
+    private Thread                    worker;
+
+    /**
+     * Runs the expired timeouts.
+     */
+    private final ExecutorService     expiredPool;
+
+    private TimerWheel() {
+
+        expiredPool = new ThreadPoolExecutor( 0,
+                                              Integer.MAX_VALUE,
+                                              10,
+                                              TimeUnit.SECONDS,
+                                              new SynchronousQueue<Runnable>(),
+                                              SpawnThreads.newThreadFactory( "ExpectJ Timer" ) );
+    }
+
+    /**
+     * @return the wheel shared by all spawns
+     */
+    static TimerWheel getInstance() {
+
+        return INSTANCE;
+    }
+
+    /**
+     * Run a task once a delay has passed.
+     *
+     * @param delayMillis the delay in milliseconds
+     * @param task what to run
+     * @return a handle for cancelling the task
+     */
+    Timeout schedule(
+                      long delayMillis,
+                      Runnable task ) {
+
+        Timeout timeout = new Timeout( task );
+        lock.lock();
+        try {
+            long now = currentTick();
+            if( pending == 0 ) {
+                // the wheel is empty, no need to walk the ticks we slept through
+                tick = Math.max( tick, now - 1 );
+            }
+            // a tick is a millisecond, the extra one covers the part of the
+            // current tick that already passed, so we never fire early
+            timeout.deadline = Math.max( now + delayMillis + 1, tick + 1 );
+            add( timeout );
+            if( worker == null ) {
+                worker = SpawnThreads.newThread( new Worker(), "ExpectJ Timer Wheel", true );
+                worker.start();
+            }
+            if( timeout.deadline < wakeTick ) {
+                scheduled.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts waiting to expire
+     */
+    int getPendingCount() {
+
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private long currentTick() {
+
+        return ( System.nanoTime() - startNanos ) / TICK_NANOS;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void add(
+                      Timeout timeout ) {
+
+        int bucket = ( int ) ( timeout.deadline & WHEEL_MASK );
+        timeout.next = buckets[bucket];
+        if( timeout.next != null ) {
+            timeout.next.previous = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.inWheel = true;
+        pending++;
+    }
+
+    /**
+     * Must be called with the lock held.
+     */
+    private void remove(
+                         Timeout timeout ) {
+
+        if( timeout.previous != null ) {
+            timeout.previous.next = timeout.next;
+        } else {
+            buckets[( int ) ( timeout.deadline & WHEEL_MASK )] = timeout.next;
+        }
+        if( timeout.next != null ) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+        timeout.inWheel = false;
+        pending--;
+    }
+
+    /**
+     * Must be called with the lock held.
+     *
+     * @param bucket the bucket to look in
+     * @param now the current tick
+     * @param expired where to put the expired timeouts
+     */
+    private void expire(
+                         int bucket,
+                         long now,
+                         List<Timeout> expired ) {
+
+        Timeout timeout = buckets[bucket];
+        while( timeout != null ) {
+            Timeout next = timeout.next;
+            if( timeout.deadline <= now ) {
+                remove( timeout );
+                expired.add( timeout );
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * Must be called with the lock held and timeouts pending.
+     *
+     * @return the earliest deadline in the wheel
+     */
+    private long nextDeadline() {
+
+        long earliest = Long.MAX_VALUE;
+        for( long next = tick + 1; next <= tick + WHEEL_SIZE; next++ ) {
+            Timeout timeout = buckets[( int ) ( next & WHEEL_MASK )];
+            for( ; timeout != null; timeout = timeout.next ) {
+                if( timeout.deadline == next ) {
+                    // the buckets before held nothing due sooner
+                    return next;
+                }
+                earliest = Math.min( earliest, timeout.deadline );
+            }
+        }
+        // all timeouts are due in later revolutions, we saw each of them
+        return earliest;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    final class Timeout {
+
+        private final Runnable task;
+
+        /**
+         * The tick at which to run the task.
+         */
+        private long           deadline;
+
+        private Timeout        previous;
+
+        private Timeout        next;
+
+        /**
+         * True until the task expires or is cancelled.
+         */
+        private boolean        inWheel;
+
+        private Timeout( Runnable task ) {
+
+            this.task = task;
+        }
+
+        /**
+         * Cancel the task if it didn't run yet.
+         *
+         * @return true if the task was cancelled, false if it already expired
+         */
+        boolean cancel() {
+
+            lock.lock();
+            try {
+                if( !inWheel ) {
+                    return false;
+                }
+                remove( this );
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Advances the wheel while timeouts are pending.
+     */
+    private class Worker implements Runnable {
+
+        public void run() {
+
+            List<Timeout> expired = new ArrayList<Timeout>();
+            while( true ) {
+                lock.lock();
+                try {
+                    while( pending == 0 ) {
+                        wakeTick = Long.MAX_VALUE;
+                        scheduled.awaitUninterruptibly();
+                    }
+                    wakeTick = -1;
+
+                    long now = currentTick();
+                    if( now - tick >= WHEEL_SIZE ) {
+                        // we are a whole revolution late, look at each bucket once
+                        for( int bucket = 0; bucket < WHEEL_SIZE; bucket++ ) {
+                            expire( bucket, now, expired );
+                        }
+                        tick = now;
+                    }
+                    while( tick < now ) {
+                        tick++;
+                        expire( ( int ) ( tick & WHEEL_MASK ), now, expired );
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                for( Timeout timeout : expired ) {
+                    try {
+                        expiredPool.execute( timeout.task );
+                    } catch( RuntimeException e ) {
+                        LOG.error( "Failed running an expired timeout", e );
+                    }
+                }
+                expired.clear();
+
+                // sleep until the nearest deadline, or until a sooner one is scheduled
+                lock.lock();
+                try {
+                    if( pending > 0 ) {
+                        wakeTick = nextDeadline();
+                        long sleepNanos = startNanos + wakeTick * TICK_NANOS - System.nanoTime();
+                        if( sleepNanos > 0 ) {
+                            scheduled.awaitNanos( sleepNanos );
+                        }
+                    }
+                } catch( InterruptedException e ) {
+                    // keep ticking, the wheel is shared by everybody
+                } finally {
+                    wakeTick = -1;
+                    lock.unlock();
+                }
+            }
+        }
+    }
+}
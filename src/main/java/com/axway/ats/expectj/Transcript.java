@@ -0,0 +1,445 @@
+package com.axway.ats.expectj;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Everything a spawn wrote on one of its streams.
+ * <p>
+ * The text is kept in segments of {@link #SEGMENT_SIZE} characters. Once the
+ * segments in memory go over the memory limit, the oldest ones are written to
+ * a temporary file, and the memory used per stream stays bounded however long
+ * the spawn runs. Text that went to the file is read back through a memory
+ * mapping when asked for. By default there is no limit and nothing leaves the
+ * memory, see {@link #setDefaultMemoryLimit(long)}.
+ * <p>
+ * Positions are character offsets from the start of the stream. The
+ * transcript can be read at any position with {@link #read(long, char[], int, int)}
+ * or streamed with {@link #openReader(long)}, while the spawn keeps writing.
+ * <p>
+ * The temporary file is deleted by {@link #close()}, or when the JVM exits.
+ * The transcripts of a spawn are closed by {@link Spawn#close()}.
+ */
+public final class Transcript {
+    /**
+     * Log messages go here.
+     */
+    private final static Logger     LOG                = Logger.getLogger( Transcript.class );
+
+    /**
+     * The number of characters in a segment.
+     */
+    public static final int         SEGMENT_SIZE       = 64 * 1024;
+
+    /**
+     * The memory used by a segment, in bytes.
+     */
+    private static final long       SEGMENT_BYTES      = SEGMENT_SIZE * 2L;
+
+    /**
+     * The most characters mapped at once.
+     */
+    private static final long       MAX_MAPPED         = 512L * 1024 * 1024;
+
+    /**
+     * Memory limit of the transcripts created from now on, in bytes, -1 for none.
+     */
+    private static volatile long    defaultMemoryLimit = -1;
+
+    /**
+     * Where the temporary files go, null for the default temporary directory.
+     */
+    private static volatile File    spillDirectory;
+
+    /**
+     * The temporary files not deleted yet, deleted when the JVM exits.
+     * Unlike {@link File#deleteOnExit()}, files leave the set once deleted.
+     */
+    private static final Set<File>  liveSpillFiles     = ConcurrentHashMap.newKeySet();
+    static {
+        Runtime.getRuntime().addShutdownHook( new Thread( new Runnable() {
+            public void run() {
+
+                for( File file : liveSpillFiles ) {
+                    file.delete();
+                }
+            }
+        }, "ExpectJ Transcript Cleanup" ) );
+    }
+
+    /**
+     * Our memory limit in bytes, -1 for none.
+     */
+    private final long              memoryLimit;
+
+    /**
+     * The segments in memory, oldest first. All of them are full except the last one.
+     */
+    private final List<char[]>      segments           = new ArrayList<char[]>();
+
+    /**
+     * Number of characters in the last segment.
+     */
+    private int                     lastSegmentLength  = SEGMENT_SIZE;
+
+    /**
+     * Total number of characters.
+     */
+    private long                    length;
+
+    /**
+     * Number of characters moved to {@link #spillFile}, they come first.
+     */
+    private long                    spilledLength;
+
+    /**
+     * Holds the oldest part of the text, created on first use.
+     */
+    private File                    spillFile;
+
+    /**
+     * Used to write segments to {@link #spillFile}, created when needed.
+     */
+    private ByteBuffer              spillBuffer;
+
+    /**
+     * Mapping of a part of {@link #spillFile}, created when needed.
+     */
+    private CharBuffer              mapped;
+
+    /**
+     * Position of the first character of {@link #mapped}.
+     */
+    private long                    mappedFrom;
+
+    /**
+     * Set once the temporary file failed, we then keep everything in memory.
+     */
+    private boolean                 spillFailed;
+
+    /**
+     * Set by {@link #close()}.
+     */
+    private boolean                 closed;
+
+    /**
+     * Create a transcript with the default memory limit.
+     */
+    Transcript() {
+
+        this( defaultMemoryLimit );
+    }
+
+    /**
+     * @param memoryLimit how much memory the text may use, in bytes, -1 for no limit
+     */
+    Transcript( long memoryLimit ) {
+
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Set how much memory the transcript of each stream of the spawns created
+     * from now on may use. The oldest text beyond that goes to a temporary
+     * file. At least one segment is always kept in memory. The file is
+     * deleted when the spawn is {@link Spawn#close() closed}.
+     *
+     * @param bytes the limit in bytes, or -1 to keep everything in memory
+     */
+    public static void setDefaultMemoryLimit(
+                                              long bytes ) {
+
+        if( bytes < -1 ) {
+            throw new IllegalArgumentException( "Memory limit must be >= -1, was " + bytes );
+        }
+        defaultMemoryLimit = bytes;
+    }
+
+    /**
+     * @return the memory limit in bytes of new transcripts, -1 meaning none
+     */
+    public static long getDefaultMemoryLimit() {
+
+        return defaultMemoryLimit;
+    }
+
+    /**
+     * @param directory where to create the temporary files, null for the
+     * default temporary directory
+     */
+    public static void setSpillDirectory(
+                                          File directory ) {
+
+        spillDirectory = directory;
+    }
+
+    /**
+     * Add text at the end.
+     *
+     * @param text the text, left as it is
+     */
+    synchronized void append(
+                              CharBuffer text ) {
+
+        if( closed ) {
+            return;
+        }
+        CharBuffer chars = text.duplicate();
+        int done = 0;
+        while( chars.hasRemaining() ) {
+            if( lastSegmentLength == SEGMENT_SIZE ) {
+                addSegment();
+            }
+            int count = Math.min( chars.remaining(), SEGMENT_SIZE - lastSegmentLength );
+            chars.get( segments.get( segments.size() - 1 ), lastSegmentLength, count );
+            lastSegmentLength += count;
+            done += count;
+        }
+        length += done;
+    }
+
+    /**
+     * @return the number of characters written so far
+     */
+    public synchronized long length() {
+
+        return length;
+    }
+
+    /**
+     * @return the number of characters kept in the temporary file
+     */
+    public synchronized long getSpilledLength() {
+
+        return spilledLength;
+    }
+
+    /**
+     * Copy text out of the transcript.
+     *
+     * @param position where to start reading
+     * @param chars where to put the text
+     * @param offset where to start in the array
+     * @param count the maximum number of characters to read
+     * @return the number of characters read, -1 if the position is at the end
+     * @throws IOException if the part in the temporary file can't be read
+     */
+    public synchronized int read(
+                                  long position,
+                                  char[] chars,
+                                  int offset,
+                                  int count ) throws IOException {
+
+        if( position < 0 || position > length ) {
+            throw new IndexOutOfBoundsException( "Position " + position + ", length " + length );
+        }
+        if( closed ) {
+            throw new IOException( "The transcript is closed" );
+        }
+        if( position == length ) {
+            return -1;
+        }
+        count = ( int ) Math.min( count, length - position );
+
+        if( position < spilledLength ) {
+            count = ( int ) Math.min( count, spilledLength - position );
+            CharBuffer text = getMapped( position );
+            text.position( ( int ) ( position - mappedFrom ) );
+            count = Math.min( count, text.remaining() );
+            text.get( chars, offset, count );
+            return count;
+        }
+
+        // spilled text always ends on a segment boundary
+        long inMemory = position - spilledLength;
+        int start = ( int ) ( inMemory & ( SEGMENT_SIZE - 1 ) );
+        count = Math.min( count, SEGMENT_SIZE - start );
+        System.arraycopy( segments.get( ( int ) ( inMemory / SEGMENT_SIZE ) ), start, chars, offset, count );
+        return count;
+    }
+
+    /**
+     * @param from position of the first character
+     * @param to position after the last character
+     * @return the text between the two positions
+     * @throws IOException if the part in the temporary file can't be read
+     */
+    public synchronized String substring(
+                                          long from,
+                                          long to ) throws IOException {
+
+        if( from < 0 || to > length || from > to ) {
+            throw new IndexOutOfBoundsException( "Range " + from + "-" + to + ", length " + length );
+        }
+        char[] chars = new char[( int ) ( to - from )];
+        int done = 0;
+        while( done < chars.length ) {
+            done += read( from + done, chars, done, chars.length - done );
+        }
+        return new String( chars );
+    }
+
+    /**
+     * @param from where to start reading
+     * @return a reader of the text from the given position. It returns the
+     * text written up to the time of each read, and reports the end of the
+     * stream when it caught up with the spawn.
+     */
+    public Reader openReader(
+                              final long from ) {
+
+        return new Reader() {
+            private long position = from;
+
+            @Override
+            public int read(
+                             char[] chars,
+                             int offset,
+                             int count ) throws IOException {
+
+                if( count == 0 ) {
+                    return 0;
+                }
+                int read = Transcript.this.read( position, chars, offset, count );
+                if( read > 0 ) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public void close() {
+
+                // nothing to release, the transcript stays open
+            }
+        };
+    }
+
+    /**
+     * @return a reader of the text from the start
+     * @see #openReader(long)
+     */
+    public Reader openReader() {
+
+        return openReader( 0 );
+    }
+
+    /**
+     * Delete the temporary file and drop the text. The transcript can't be
+     * read anymore.
+     */
+    public synchronized void close() {
+
+        closed = true;
+        segments.clear();
+        mapped = null;
+        spillBuffer = null;
+        if( spillFile != null ) {
+            if( spillFile.delete() ) {
+                liveSpillFiles.remove( spillFile );
+            } else {
+                LOG.warn( "Could not delete " + spillFile + ", it will be deleted on exit" );
+            }
+            spillFile = null;
+        }
+    }
+
+    /**
+     * @return the whole text
+     * @throws UncheckedIOException if the part in the temporary file can't be read
+     */
+    @Override
+    public synchronized String toString() {
+
+        try {
+            return substring( 0, length );
+        } catch( IOException e ) {
+            throw new UncheckedIOException( e );
+        }
+    }
+
+    private void addSegment() {
+
+        while( memoryLimit >= 0 && !spillFailed && segments.size() > 0
+               && ( segments.size() + 1 ) * SEGMENT_BYTES > memoryLimit ) {
+            try {
+                spill( segments.get( 0 ) );
+            } catch( IOException e ) {
+                LOG.error( "Could not write the transcript to " + spillFile
+                           + ", it will be kept in memory", e );
+                spillFailed = true;
+                break;
+            }
+            segments.remove( 0 );
+            spilledLength += SEGMENT_SIZE;
+        }
+        segments.add( new char[SEGMENT_SIZE] );
+        lastSegmentLength = 0;
+    }
+
+    /**
+     * Write a segment at the end of the temporary file.
+     *
+     * @param segment a full segment
+     * @throws IOException on trouble with the file
+     */
+    private void spill(
+                        char[] segment ) throws IOException {
+
+        if( spillFile == null ) {
+            spillFile = File.createTempFile( "expectj-transcript", ".txt", spillDirectory );
+            liveSpillFiles.add( spillFile );
+        }
+        if( spillBuffer == null ) {
+            spillBuffer = ByteBuffer.allocate( ( int ) SEGMENT_BYTES );
+        }
+        spillBuffer.clear();
+        spillBuffer.asCharBuffer().put( segment );
+        // the file is only open while we use it, an abandoned transcript
+        // does not hold a file descriptor
+        try (FileChannel channel = FileChannel.open( spillFile.toPath(), StandardOpenOption.WRITE,
+                                                     StandardOpenOption.APPEND )) {
+            while( spillBuffer.hasRemaining() ) {
+                channel.write( spillBuffer );
+            }
+        }
+    }
+
+    /**
+     * @param position the position we need to read
+     * @return a mapping of the part of the temporary file holding the position
+     * @throws IOException on trouble with the file
+     */
+    private CharBuffer getMapped(
+                                  long position ) throws IOException {
+
+        if( mapped == null || position < mappedFrom || position >= mappedFrom + mapped.capacity() ) {
+            // a mapping is limited to 2 GB, very long transcripts are mapped
+            // one window at a time
+            mappedFrom = position & ~( SEGMENT_SIZE - 1L );
+            mapped = map( mappedFrom, Math.min( spilledLength, mappedFrom + MAX_MAPPED ) );
+        }
+        return mapped.duplicate();
+    }
+
+    private CharBuffer map(
+                            long from,
+                            long to ) throws IOException {
+
+        try (FileChannel channel = FileChannel.open( spillFile.toPath(), StandardOpenOption.READ )) {
+            return channel.map( FileChannel.MapMode.READ_ONLY, from * 2, ( to - from ) * 2 ).asCharBuffer();
+        }
+    }
+}
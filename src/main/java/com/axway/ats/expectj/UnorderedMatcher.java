@@ -0,0 +1,191 @@
+package com.axway.ats.expectj;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Looks for several patterns in any order, recording where each of them is
+ * first found.
+ * <p>
+ * Plain texts are looked for together by one {@link AhoCorasickMatcher}, so
+ * each new chunk of output is scanned once whatever the number of patterns.
+ * Regular expressions can't be combined without one match hiding another,
+ * so each has its own incremental matcher, which resumes where its last
+ * search stopped instead of rescanning from the start. Found patterns are
+ * not looked for anymore.
+ */
+class UnorderedMatcher {
+    /**
+     * The plain texts, or null when looking for regular expressions.
+     */
+    private final AhoCorasickMatcher  literals;
+
+    /**
+     * The texts we look for, as given.
+     */
+    private final List<String>        literalPatterns;
+
+    /**
+     * A matcher per regular expression, or null when looking for plain texts.
+     */
+    private final List<BufferMatcher> matchers;
+
+    /**
+     * Absolute stream offset where each plain text was found, -1 if not yet.
+     */
+    private final long[]              ends;
+
+    /**
+     * Whether each pattern was found and reported.
+     */
+    private final boolean[]           found;
+
+    /**
+     * How many patterns were reported.
+     */
+    private int                       foundCount;
+
+    /**
+     * Plain texts found but not reported yet.
+     */
+    private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+
+    /**
+     * Bounds of the last pattern reported and of its groups.
+     */
+    private int[]                     groups;
+
+    private UnorderedMatcher( AhoCorasickMatcher literals,
+                              List<String> literalPatterns,
+                              List<BufferMatcher> matchers,
+                              int size ) {
+
+        this.literals = literals;
+        this.literalPatterns = literalPatterns;
+        this.matchers = matchers;
+        if( literals != null ) {
+            ends = new long[size];
+            Arrays.fill( ends, -1 );
+        } else {
+            ends = null;
+        }
+        found = new boolean[size];
+    }
+
+    /**
+     * @param patterns the plain texts to look for, case-insensitive
+     * @return a matcher looking for all of them in a single pass
+     */
+    static UnorderedMatcher forLiterals(
+                                         List<String> patterns ) {
+
+        return new UnorderedMatcher( new AhoCorasickMatcher( patterns ), patterns, null, patterns.size() );
+    }
+
+    /**
+     * @param matchers a matcher per pattern to look for
+     * @return a matcher looking for all of them, each on its own
+     */
+    static UnorderedMatcher forMatchers(
+                                         List<BufferMatcher> matchers ) {
+
+        return new UnorderedMatcher( null, null, matchers, matchers.size() );
+    }
+
+    /**
+     * Look for a pattern not found yet. Call again until nothing more is
+     * found, several patterns may be in the same text.
+     *
+     * @param text the text received from the spawn and not consumed yet
+     * @param textOffset the position of the first character of the text in
+     * the whole output of the spawn
+     * @return the index of a newly found pattern, or -1
+     */
+    int find(
+              CharSequence text,
+              long textOffset ) {
+
+        if( literals == null ) {
+            for( int i = 0; i < matchers.size(); i++ ) {
+                BufferMatcher matcher = matchers.get( i );
+                if( !found[i] && matcher.find( text, textOffset ) ) {
+                    groups = matcher.groups();
+                    return report( i );
+                }
+            }
+            return -1;
+        }
+
+        if( pending.isEmpty() && literals.findAll( text, textOffset, ends ) > 0 ) {
+            for( int i = 0; i < ends.length; i++ ) {
+                if( ends[i] != -1 && !found[i] && !pending.contains( i ) ) {
+                    pending.add( i );
+                }
+            }
+        }
+        if( pending.isEmpty() ) {
+            return -1;
+        }
+        int index = pending.removeFirst();
+        int end = ( int ) ( ends[index] - textOffset );
+        groups = new int[]{ end - literalPatterns.get( index ).length(), end };
+        return report( index );
+    }
+
+    private int report(
+                        int index ) {
+
+        found[index] = true;
+        foundCount++;
+        return index;
+    }
+
+    /**
+     * @return the start and end of the last pattern found, followed by the
+     * start and end of each of its groups, relative to the searched text
+     */
+    int[] groups() {
+
+        return groups;
+    }
+
+    /**
+     * @return true once all the patterns were found
+     */
+    boolean isDone() {
+
+        return foundCount == found.length;
+    }
+
+    /**
+     * @param index the index of a pattern
+     * @return whether the pattern was found
+     */
+    boolean isFound(
+                     int index ) {
+
+        return found[index];
+    }
+
+    /**
+     * @return the number of patterns
+     */
+    int size() {
+
+        return found.length;
+    }
+
+    /**
+     * @param index the index of a pattern
+     * @return the pattern, for logging purposes
+     */
+    String getPattern(
+                       int index ) {
+
+        if( literals != null ) {
+            return literalPatterns.get( index );
+        }
+        return matchers.get( index ).getPattern();
+    }
+}
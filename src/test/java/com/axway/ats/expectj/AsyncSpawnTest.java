@@ -0,0 +1,86 @@
+package com.axway.ats.expectj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that asynchronous expects on pipes are served while spawns
+ * delivered directly print without stopping.
+ */
+public class AsyncSpawnTest {
+
+    private static final int PRINTING_SPAWNS = 4;
+
+    private List<Spawn> printing = new ArrayList<Spawn>();
+
+    private Spawn       piped;
+
+    private PrintStream systemOut;
+
+    @Before
+    public void dropOutput() {
+
+        // the spawns copy their output to System.out
+        systemOut = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+            @Override
+            public void write(
+                               int b ) {
+
+            }
+
+            @Override
+            public void write(
+                               byte[] b,
+                               int off,
+                               int len ) {
+
+            }
+        } ) );
+    }
+
+    @After
+    public void stopSpawns() {
+
+        for( Spawn spawn : printing ) {
+            spawn.stop();
+        }
+        if( piped != null ) {
+            piped.stop();
+        }
+        System.setOut( systemOut );
+    }
+
+    @Test( timeout = 20000 )
+    public void pipesAreReadWhileASpawnKeepsPrinting() throws Exception {
+
+        List<CompletableFuture<MatchResult>> never = new ArrayList<CompletableFuture<MatchResult>>();
+        for( int i = 0; i < PRINTING_SPAWNS; i++ ) {
+            Spawn spawn = new ExpectJ( 30 ).spawn( "yes" );
+            spawn.setMatchMax( 10000 );
+            printing.add( spawn );
+            never.add( spawn.async().expect( "NEVERMATCH", false, 15 ) );
+        }
+
+        ExpectJ pipes = new ExpectJ( 30 );
+        pipes.setUseDirectDelivery( false );
+        piped = pipes.spawn( "sh -c 'sleep 1; echo FOUND'" );
+        MatchResult found = piped.async().expect( "FOUND", false, 5 ).get( 5, TimeUnit.SECONDS );
+
+        assertEquals( "FOUND", found.getMatchedText() );
+        for( CompletableFuture<MatchResult> future : never ) {
+            assertFalse( future.isDone() );
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.axway.ats.expectj;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the expects find patterns read together with an earlier match,
+ * without waiting for more output.
+ */
+public class BufferedTextTest {
+
+    private Spawn spawn;
+
+    @Before
+    public void startSpawn() throws Exception {
+
+        // everything comes in one read, then nothing more
+        spawn = new ExpectJ( 30 ).spawn( "sh -c 'echo first second third; sleep 10'" );
+        spawn.expect( "first", false, 3 );
+    }
+
+    @After
+    public void stopSpawn() {
+
+        spawn.stop();
+    }
+
+    @Test
+    public void expectAnyFindsBufferedText() throws Exception {
+
+        assertEquals( 1, spawn.expectAny( Arrays.asList( "zzz", "third" ), false, 3 ) );
+        assertEquals( " second ", spawn.getLastMatch().getTextBefore() );
+    }
+
+    @Test
+    public void expectAllFindsBufferedText() throws Exception {
+
+        spawn.expectAll( Arrays.asList( "second", "third" ), false, 3 );
+    }
+}
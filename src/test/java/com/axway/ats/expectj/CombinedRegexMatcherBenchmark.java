@@ -0,0 +1,112 @@
+package com.axway.ats.expectj;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compares looking for several regular expressions with one
+ * {@link CombinedRegexMatcher} scan and with a {@link SequentialMultiMatcher}
+ * scan per pattern, on output arriving in chunks the way it is read from a
+ * spawn. Only the last pattern is printed, at the very end.
+ * <p>
+ * Not a unit test, run it by hand:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;reload4j and jsch jars&gt; \
+ *      com.axway.ats.expectj.CombinedRegexMatcherBenchmark [kilobytes] [chunk size] [runs]
+ * </pre>
+ */
+public class CombinedRegexMatcherBenchmark {
+
+    private static final int[] PATTERN_COUNTS = { 1, 10, 100 };
+
+    public static void main(
+                             String[] args ) throws Exception {
+
+        int kilobytes = args.length > 0
+                                        ? Integer.parseInt( args[0] )
+                                        : 1000;
+        int chunkSize = args.length > 1
+                                        ? Integer.parseInt( args[1] )
+                                        : 4096;
+        int runs = args.length > 2
+                                   ? Integer.parseInt( args[2] )
+                                   : 5;
+
+        for( int patternCount : PATTERN_COUNTS ) {
+            List<Pattern> patterns = new ArrayList<Pattern>( patternCount );
+            for( int i = 0; i < patternCount; i++ ) {
+                patterns.add( Pattern.compile( "step " + i + " failed with code (\\d+)" ) );
+            }
+            String output = output( kilobytes, "step " + ( patternCount - 1 ) + " failed with code 42\n" );
+
+            // the first runs only warm up the JIT
+            scan( newSequentialMatcher( patterns ), output, chunkSize );
+            scan( new CombinedRegexMatcher( patterns, -1 ), output, chunkSize );
+
+            long sequentialNanos = 0;
+            long combinedNanos = 0;
+            for( int i = 0; i < runs; i++ ) {
+                sequentialNanos += scan( newSequentialMatcher( patterns ), output, chunkSize );
+                combinedNanos += scan( new CombinedRegexMatcher( patterns, -1 ), output, chunkSize );
+            }
+            System.out.println( patternCount + " patterns: " + sequentialNanos / runs / 1000000
+                                + " ms one by one, " + combinedNanos / runs / 1000000 + " ms combined" );
+        }
+    }
+
+    /**
+     * @return a matcher running each pattern on its own
+     */
+    private static MultiMatcher newSequentialMatcher(
+                                                      List<Pattern> patterns ) {
+
+        List<BufferMatcher> matchers = new ArrayList<BufferMatcher>( patterns.size() );
+        for( Pattern pattern : patterns ) {
+            matchers.add( BufferMatcher.forPattern( pattern ) );
+        }
+        return new SequentialMultiMatcher( matchers );
+    }
+
+    /**
+     * @return about the given amount of log lines, followed by the given
+     * last line
+     */
+    private static String output(
+                                  int kilobytes,
+                                  String lastLine ) {
+
+        StringBuilder output = new StringBuilder( kilobytes * 1000 + lastLine.length() );
+        for( int line = 0; output.length() < kilobytes * 1000; line++ ) {
+            output.append( "line " ).append( line ).append( ": step done, nothing to report\n" );
+        }
+        return output.append( lastLine ).toString();
+    }
+
+    /**
+     * Give the output to the matcher one chunk more at a time, until the
+     * matcher finds a pattern.
+     *
+     * @return how long it took
+     */
+    private static long scan(
+                              MultiMatcher matcher,
+                              String output,
+                              int chunkSize ) {
+
+        long start = System.nanoTime();
+        int received = 0;
+        int found = -1;
+        while( found < 0 && received < output.length() ) {
+            received = Math.min( output.length(), received + chunkSize );
+            found = matcher.find( CharBuffer.wrap( output, 0, received ), 0 );
+        }
+        long nanos = System.nanoTime() - start;
+        if( found != matcher.size() - 1 || received != output.length() ) {
+            throw new IllegalStateException( "Found pattern " + found + " after " + received + " characters" );
+        }
+        return nanos;
+    }
+}
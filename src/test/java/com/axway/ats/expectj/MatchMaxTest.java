@@ -0,0 +1,71 @@
+package com.axway.ats.expectj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that text dropped by {@link Spawn#setMatchMax(int)} is never part of
+ * a match, for matchers keeping state between two reads.
+ */
+public class MatchMaxTest {
+
+    private Spawn spawn;
+
+    @Before
+    public void startSpawn() throws Exception {
+
+        // two reads: the text of the first one is partly dropped
+        spawn = new ExpectJ( 30 ).spawn( "sh -c 'printf abc; sleep 1; printf def; sleep 10'" );
+        spawn.setMatchMax( 2 );
+    }
+
+    @After
+    public void stopSpawn() {
+
+        spawn.stop();
+    }
+
+    @Test
+    public void plainTextsDoNotMatchDroppedText() throws Exception {
+
+        try {
+            int index = spawn.expectAny( Arrays.asList( "abcdef", "zzz" ), false, 3 );
+            fail( "Matched '" + spawn.getLastMatch().getMatchedText() + "' with pattern " + index );
+        } catch( ExpectJException e ) {
+            // expected, "a" was dropped
+        }
+    }
+
+    @Test
+    public void plainTextsMatchAcrossReads() throws Exception {
+
+        assertEquals( 0, spawn.expectAny( Arrays.asList( "cdef", "zzz" ), false, 3 ) );
+        assertEquals( "cdef", spawn.getLastMatch().getMatchedText() );
+        assertEquals( "b", spawn.getLastMatch().getTextBefore() );
+    }
+
+    @Test
+    public void plainTextDoesNotMatchDroppedText() throws Exception {
+
+        try {
+            spawn.expect( "abcdef", false, 3 );
+            fail( "Matched '" + spawn.getLastMatch().getMatchedText() + "'" );
+        } catch( TimeoutException e ) {
+            // expected, "a" was dropped
+        }
+    }
+
+    @Test
+    public void plainTextMatchesAcrossReads() throws Exception {
+
+        MatchResult match = spawn.expect( "cdef", false, 3 );
+        assertEquals( "cdef", match.getMatchedText() );
+        assertEquals( "b", match.getTextBefore() );
+    }
+}
@@ -0,0 +1,116 @@
+package com.axway.ats.expectj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link ExpectJ#expectAny(Map, long)} with a spawn that prints
+ * without stopping, next to spawns delivered directly or through pipes.
+ */
+public class SpawnSelectorTest {
+
+    private static final List<Pattern> NEVER = Arrays.asList( Pattern.compile( "NEVERMATCH" ) );
+
+    private Spawn                      printing;
+
+    private Spawn                      other;
+
+    private PrintStream                systemOut;
+
+    @Before
+    public void dropOutput() {
+
+        // the spawns copy their output to System.out
+        systemOut = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+            @Override
+            public void write(
+                               int b ) {
+
+            }
+
+            @Override
+            public void write(
+                               byte[] b,
+                               int off,
+                               int len ) {
+
+            }
+        } ) );
+    }
+
+    @After
+    public void stopSpawns() {
+
+        if( printing != null ) {
+            printing.stop();
+        }
+        if( other != null ) {
+            other.stop();
+        }
+        System.setOut( systemOut );
+    }
+
+    @Test( timeout = 20000 )
+    public void timesOutWhileASpawnKeepsPrinting() throws Exception {
+
+        ExpectJ expectJ = new ExpectJ( 30 );
+        printing = startPrinting( expectJ );
+        other = expectJ.spawn( "sleep 30" );
+
+        Map<Spawn, List<Pattern>> patterns = new LinkedHashMap<Spawn, List<Pattern>>();
+        patterns.put( printing, NEVER );
+        patterns.put( other, NEVER );
+        long start = System.currentTimeMillis();
+        try {
+            ExpectJ.expectAny( patterns, 2 );
+            fail( "Found a pattern that is never printed" );
+        } catch( TimeoutException e ) {
+            long millis = System.currentTimeMillis() - start;
+            assertTrue( "Timed out after " + millis + " ms", millis < 5000 );
+            assertTrue( e.getMessage(), e.getMessage().contains( "process 'yes'" ) );
+            assertTrue( e.getMessage(), e.getMessage().contains( "process 'sleep 30'" ) );
+        }
+    }
+
+    @Test( timeout = 20000 )
+    public void pipesAreReadWhileASpawnKeepsPrinting() throws Exception {
+
+        printing = startPrinting( new ExpectJ( 30 ) );
+        ExpectJ pipes = new ExpectJ( 30 );
+        pipes.setUseDirectDelivery( false );
+        other = pipes.spawn( "sh -c 'sleep 1; echo FOUND'" );
+
+        Map<Spawn, List<Pattern>> patterns = new LinkedHashMap<Spawn, List<Pattern>>();
+        patterns.put( printing, NEVER );
+        patterns.put( other, Arrays.asList( Pattern.compile( "FOUND" ) ) );
+        SpawnMatch match = ExpectJ.expectAny( patterns, 10 );
+        assertSame( other, match.getSpawn() );
+        assertEquals( "FOUND", match.getMatch().getMatchedText() );
+    }
+
+    /**
+     * @return a spawn printing as fast as it can, keeping little of it
+     */
+    private Spawn startPrinting(
+                                 ExpectJ expectJ ) throws Exception {
+
+        Spawn spawn = expectJ.spawn( "yes" );
+        spawn.setMatchMax( 10000 );
+        return spawn;
+    }
+}
@@ -0,0 +1,336 @@
+package com.axway.ats.expectj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.sshd.common.session.Session;
+import org.apache.sshd.common.session.SessionListener;
+import org.apache.sshd.common.session.helpers.AbstractSession;
+import org.apache.sshd.server.Environment;
+import org.apache.sshd.server.ExitCallback;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.auth.password.PasswordAuthenticator;
+import org.apache.sshd.server.channel.ChannelSession;
+import org.apache.sshd.server.command.Command;
+import org.apache.sshd.server.command.CommandFactory;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.server.session.ServerSession;
+import org.apache.sshd.server.shell.ShellFactory;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.jcraft.jsch.Channel;
+
+/**
+ * Tests {@link SshSessionPool} against an SSH server embedded in the test,
+ * whose shell echoes its input and whose exec channels print the command
+ * they were given.
+ */
+public class SshSessionPoolTest {
+
+    private static final String  HOST     = "127.0.0.1";
+
+    private static final String  USER     = "tester";
+
+    private static final String  PASSWORD = "secret";
+
+    private static SshServer     server;
+
+    private static int           port;
+
+    /**
+     * Sessions opened on the server.
+     */
+    private static AtomicInteger serverSessions;
+
+    private SshSessionPool       pool;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+
+        serverSessions = new AtomicInteger();
+        server = SshServer.setUpDefaultServer();
+        server.setHost( HOST );
+        server.setPort( 0 );
+        SimpleGeneratorHostKeyProvider hostKeys = new SimpleGeneratorHostKeyProvider();
+        hostKeys.setAlgorithm( "RSA" );
+        server.setKeyPairProvider( hostKeys );
+        server.setPasswordAuthenticator( new PasswordAuthenticator() {
+            public boolean authenticate(
+                                         String username,
+                                         String password,
+                                         ServerSession session ) {
+
+                return USER.equals( username ) && PASSWORD.equals( password );
+            }
+        } );
+        server.setShellFactory( new ShellFactory() {
+            public Command createShell(
+                                        ChannelSession channel ) {
+
+                return new TestCommand( null );
+            }
+        } );
+        server.setCommandFactory( new CommandFactory() {
+            public Command createCommand(
+                                          ChannelSession channel,
+                                          String command ) {
+
+                return new TestCommand( command );
+            }
+        } );
+        server.addSessionListener( new SessionListener() {
+            @Override
+            public void sessionCreated(
+                                        Session session ) {
+
+                serverSessions.incrementAndGet();
+            }
+        } );
+        server.start();
+        port = server.getPort();
+    }
+
+    @AfterClass
+    public static void stopServer() throws IOException {
+
+        server.stop( true );
+    }
+
+    @Before
+    public void createPool() {
+
+        pool = new SshSessionPool();
+        serverSessions.set( 0 );
+    }
+
+    @After
+    public void closePool() {
+
+        pool.close();
+    }
+
+    @Test
+    public void spawnsReuseTheSession() throws Exception {
+
+        ExpectJ expectJ = new ExpectJ( 10 );
+        expectJ.setSshSessionPool( pool );
+        for( int i = 0; i < 3; i++ ) {
+            Spawn shell = expectJ.spawn( HOST, port, USER, PASSWORD );
+            shell.send( "hello " + i + "\n" );
+            shell.expect( "hello " + i, false );
+            shell.stop();
+        }
+
+        Spawn command = expectJ.spawn( HOST, port, USER, PASSWORD, "uptime" );
+        command.expect( "ran uptime", false );
+        command.expectClose();
+        assertEquals( 3, command.getExitValue() );
+
+        assertEquals( 1, pool.getSessionCount() );
+        assertEquals( 1, serverSessions.get() );
+    }
+
+    @Test
+    public void sessionsCarryAtMostMaxChannels() throws Exception {
+
+        pool.setMaxChannelsPerSession( 2 );
+        List<Channel> channels = new ArrayList<Channel>();
+        for( int i = 0; i < 5; i++ ) {
+            channels.add( pool.openChannel( HOST, port, USER, PASSWORD, "shell", true ) );
+        }
+        assertEquals( 3, pool.getSessionCount() );
+        assertEquals( 3, serverSessions.get() );
+
+        // a released channel makes room for the next one
+        pool.releaseChannel( channels.remove( 0 ) );
+        channels.add( pool.openChannel( HOST, port, USER, PASSWORD, "shell", true ) );
+        assertEquals( 3, serverSessions.get() );
+
+        for( Channel channel : channels ) {
+            pool.releaseChannel( channel );
+        }
+        // idle sessions stay open until the idle timeout
+        assertEquals( 3, pool.getSessionCount() );
+    }
+
+    @Test
+    public void idleSessionsAreEvicted() throws Exception {
+
+        pool.setIdleTimeoutSeconds( 1 );
+        Channel channel = pool.openChannel( HOST, port, USER, PASSWORD, "shell", true );
+        Thread.sleep( 1500 );
+        // a session in use is never evicted
+        assertEquals( 1, pool.getSessionCount() );
+
+        pool.releaseChannel( channel );
+        assertEquals( 1, pool.getSessionCount() );
+        waitFor( 0, 5000 );
+        // the server sees the connection close a little later
+        long deadline = System.currentTimeMillis() + 5000;
+        while( !server.getActiveSessions().isEmpty() && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 50 );
+        }
+        assertEquals( 0, server.getActiveSessions().size() );
+    }
+
+    @Test
+    public void brokenSessionsAreReplaced() throws Exception {
+
+        pool.releaseChannel( pool.openChannel( HOST, port, USER, PASSWORD, "shell", true ) );
+        assertEquals( 1, serverSessions.get() );
+
+        // the server drops the connection while the session is idle
+        for( AbstractSession session : server.getActiveSessions() ) {
+            session.close( true );
+        }
+        Thread.sleep( 500 );
+
+        Channel channel = pool.openChannel( HOST, port, USER, PASSWORD, "shell", true );
+        assertTrue( channel.isConnected() );
+        assertEquals( 2, serverSessions.get() );
+        assertEquals( 1, pool.getSessionCount() );
+        pool.releaseChannel( channel );
+    }
+
+    @Test
+    public void prewarmedSessionsAreUsed() throws Exception {
+
+        pool.setMaxChannelsPerSession( 1 );
+        pool.prewarm( HOST, port, USER, PASSWORD, 3 );
+        assertEquals( 3, pool.getSessionCount() );
+        assertEquals( 3, serverSessions.get() );
+
+        // already warm enough
+        pool.prewarm( HOST, port, USER, PASSWORD, 2 );
+        assertEquals( 3, pool.getSessionCount() );
+
+        List<Channel> channels = new ArrayList<Channel>();
+        for( int i = 0; i < 3; i++ ) {
+            channels.add( pool.openChannel( HOST, port, USER, PASSWORD, "shell", true ) );
+        }
+        assertEquals( 3, serverSessions.get() );
+        for( Channel channel : channels ) {
+            pool.releaseChannel( channel );
+        }
+    }
+
+    @Test
+    public void sessionsAreNotSharedWithAnotherPassword() throws Exception {
+
+        Channel channel = pool.openChannel( HOST, port, USER, PASSWORD, "shell", true );
+        try {
+            pool.openChannel( HOST, port, USER, "wrong", "shell", true );
+            fail( "Got a channel with a wrong password" );
+        } catch( IOException e ) {
+            // expected, the wrong password gets a session of its own
+        }
+        assertEquals( 2, serverSessions.get() );
+        assertEquals( 1, pool.getSessionCount() );
+        pool.releaseChannel( channel );
+    }
+
+    /**
+     * Wait for the pool to have a number of sessions.
+     */
+    private void waitFor(
+                          int sessionCount,
+                          long timeoutMillis ) throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while( pool.getSessionCount() != sessionCount && System.currentTimeMillis() < deadline ) {
+            Thread.sleep( 50 );
+        }
+        assertEquals( sessionCount, pool.getSessionCount() );
+    }
+
+    /**
+     * An echoing shell, or a command printing "ran " and its command line,
+     * exiting with status 3.
+     */
+    private static class TestCommand implements Command, Runnable {
+
+        private final String command;
+
+        private InputStream  in;
+
+        private OutputStream out;
+
+        private ExitCallback exitCallback;
+
+        TestCommand( String command ) {
+
+            this.command = command;
+        }
+
+        public void setInputStream(
+                                    InputStream in ) {
+
+            this.in = in;
+        }
+
+        public void setOutputStream(
+                                     OutputStream out ) {
+
+            this.out = out;
+        }
+
+        public void setErrorStream(
+                                    OutputStream err ) {
+
+        }
+
+        public void setExitCallback(
+                                     ExitCallback exitCallback ) {
+
+            this.exitCallback = exitCallback;
+        }
+
+        public void start(
+                           ChannelSession channel,
+                           Environment env ) {
+
+            Thread thread = new Thread( this, "Test SSH command" );
+            thread.setDaemon( true );
+            thread.start();
+        }
+
+        public void destroy(
+                             ChannelSession channel ) {
+
+        }
+
+        public void run() {
+
+            try {
+                if( command != null ) {
+                    out.write( ( "ran " + command + "\n" ).getBytes( StandardCharsets.UTF_8 ) );
+                    out.flush();
+                    exitCallback.onExit( 3 );
+                    return;
+                }
+                byte[] buffer = new byte[1024];
+                int bytesRead;
+                while( ( bytesRead = in.read( buffer ) ) != -1 ) {
+                    out.write( buffer, 0, bytesRead );
+                    out.flush();
+                }
+            } catch( IOException e ) {
+                // the channel was closed
+            }
+            exitCallback.onExit( 0 );
+        }
+    }
+}
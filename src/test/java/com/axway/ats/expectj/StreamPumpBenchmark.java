@@ -0,0 +1,128 @@
+package com.axway.ats.expectj;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares reading spawn output with a thread per stream and with the shared
+ * {@link StreamPump}: the threads used by many idle spawns, the throughput of
+ * one spawn printing bulk data and the round trip of small messages.
+ * <p>
+ * Not a unit test, run it by hand on a machine with <code>sh</code>,
+ * <code>cat</code>, <code>yes</code> and <code>head</code>:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;reload4j and jsch jars&gt; \
+ *      com.axway.ats.expectj.StreamPumpBenchmark [spawns] [megabytes] [round trips]
+ * </pre>
+ */
+public class StreamPumpBenchmark {
+
+    public static void main(
+                             String[] args ) throws Exception {
+
+        int spawnCount = args.length > 0
+                                         ? Integer.parseInt( args[0] )
+                                         : 200;
+        int megabytes = args.length > 1
+                                        ? Integer.parseInt( args[1] )
+                                        : 50;
+        int roundTrips = args.length > 2
+                                         ? Integer.parseInt( args[2] )
+                                         : 1000;
+
+        // the spawns copy their output to System.out, keep it for the results
+        PrintStream report = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+            @Override
+            public void write(
+                               int b ) {
+
+            }
+
+            @Override
+            public void write(
+                               byte[] b,
+                               int off,
+                               int len ) {
+
+            }
+        } ) );
+
+        for( boolean useStreamPump : new boolean[]{ false, true } ) {
+            ExpectJ expectJ = new ExpectJ( 120 );
+            expectJ.setUseStreamPump( useStreamPump );
+            String mode = useStreamPump
+                                        ? "stream pump"
+                                        : "thread per stream";
+            report.println( mode + ": " + threadsPerSpawn( expectJ, spawnCount ) + " threads per spawn, "
+                            + bulkThroughput( expectJ, megabytes ) + " MB/s bulk, "
+                            + roundTripMicros( expectJ, roundTrips ) + " us per round trip" );
+        }
+        System.exit( 0 );
+    }
+
+    /**
+     * @return the threads added by each of many spawns waiting idle
+     */
+    private static double threadsPerSpawn(
+                                           ExpectJ expectJ,
+                                           int spawnCount ) throws Exception {
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        int before = threads.getThreadCount();
+        List<Spawn> spawns = new ArrayList<Spawn>();
+        for( int i = 0; i < spawnCount; i++ ) {
+            spawns.add( expectJ.spawn( "sh -c 'echo READY; read line; echo BYE'" ) );
+        }
+        for( Spawn spawn : spawns ) {
+            spawn.expect( "READY", false );
+        }
+        int during = threads.getThreadCount();
+        for( Spawn spawn : spawns ) {
+            spawn.send( "\n" );
+            spawn.expect( "BYE", false );
+            spawn.expectClose();
+        }
+        return ( double ) ( during - before ) / spawnCount;
+    }
+
+    /**
+     * @return how fast the output of one spawn printing bulk data is read
+     */
+    private static long bulkThroughput(
+                                        ExpectJ expectJ,
+                                        int megabytes ) throws Exception {
+
+        Spawn spawn = expectJ.spawn( "sh -c 'yes 0123456789abcdef | head -c " + megabytes * 1000000
+                                     + "; echo FINISHED'" );
+        long start = System.nanoTime();
+        spawn.expect( "FINISHED", false );
+        long millis = Math.max( 1, ( System.nanoTime() - start ) / 1000000 );
+        spawn.expectClose();
+        return megabytes * 1000L / millis;
+    }
+
+    /**
+     * @return the average time to send a line to <code>cat</code> and read it
+     * back
+     */
+    private static long roundTripMicros(
+                                         ExpectJ expectJ,
+                                         int roundTrips ) throws Exception {
+
+        Spawn spawn = expectJ.spawn( "cat" );
+        long start = System.nanoTime();
+        for( int i = 0; i < roundTrips; i++ ) {
+            spawn.send( "ping " + i + "\n" );
+            spawn.expect( "ping " + i + "\n", false );
+        }
+        long micros = ( System.nanoTime() - start ) / 1000 / roundTrips;
+        spawn.stop();
+        return micros;
+    }
+}
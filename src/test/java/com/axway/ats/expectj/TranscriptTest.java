@@ -0,0 +1,84 @@
+package com.axway.ats.expectj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the temporary files of the transcripts go away with their
+ * spawn.
+ */
+public class TranscriptTest {
+
+    @Rule
+    public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    private long           memoryLimit;
+
+    private PrintStream    systemOut;
+
+    @Before
+    public void limitMemory() {
+
+        // the spawns copy their output to System.out
+        systemOut = System.out;
+        System.setOut( new PrintStream( new OutputStream() {
+            @Override
+            public void write(
+                               int b ) {
+
+            }
+
+            @Override
+            public void write(
+                               byte[] b,
+                               int off,
+                               int len ) {
+
+            }
+        } ) );
+        memoryLimit = Transcript.getDefaultMemoryLimit();
+        Transcript.setDefaultMemoryLimit( Transcript.SEGMENT_SIZE * 4L );
+        Transcript.setSpillDirectory( spillDirectory.getRoot() );
+    }
+
+    @After
+    public void restoreDefaults() {
+
+        Transcript.setDefaultMemoryLimit( memoryLimit );
+        Transcript.setSpillDirectory( null );
+        System.setOut( systemOut );
+    }
+
+    @Test
+    public void closingTheSpawnDeletesTheTemporaryFile() throws Exception {
+
+        Spawn spawn = new ExpectJ( 30 ).spawn( "sh -c 'yes 0123456789abcdef | head -c 1000000; echo DONE'" );
+        spawn.expect( "DONE", false );
+        spawn.expectClose();
+
+        Transcript transcript = spawn.getStandardOutTranscript();
+        assertEquals( 1000005, transcript.length() );
+        assertTrue( transcript.getSpilledLength() > 0 );
+        assertEquals( 1, spillDirectory.getRoot().list().length );
+
+        spawn.close();
+        assertEquals( 0, spillDirectory.getRoot().list().length );
+        try {
+            transcript.openReader().read();
+            fail( "Read a closed transcript" );
+        } catch( IOException e ) {
+            // expected
+        }
+    }
+}